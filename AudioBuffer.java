@@ -0,0 +1,396 @@
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.io.IOException;
+
+
+/*
+  This class stores audio data outside of the Java heap.
+
+  The frames are stored one after another in a MemorySegment,
+  using exactly the bytes that appear in the data chunk of a
+  WAV file. A segment can therefore either be allocated by an
+  Arena, or be the data chunk of a WAV file mapped into memory,
+  and it can be written to a WAV file without any conversion.
+
+  Unlike a Java array, a segment can hold more than 2^31 samples,
+  and since it is not on the heap, it is never scanned or copied
+  by the garbage collector. Its memory is freed, or unmapped,
+  when the Arena which owns it is closed.
+
+  Samples can be read and written one at a time as shorts, ints
+  or floats, following the conventions of WAVSampleCodec, or a
+  whole range of one channel can be copied to or from an array.
+*/
+public final class AudioBuffer {
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt   INT   = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfFloat FLOAT = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final MemorySegment   segment;
+    private final WAVSampleFormat format;
+    private final int             channels;
+    private final int             sample_rate_per_chan;
+
+    private final int             bytes_per_sample;
+    private final long            frames;
+
+
+
+
+    private AudioBuffer(MemorySegment segment, WAVSampleFormat format, int channels, int sample_rate_per_chan) {
+        this.segment              = segment;
+        this.format               = format;
+        this.channels             = channels;
+        this.sample_rate_per_chan = sample_rate_per_chan;
+
+        this.bytes_per_sample     = format.getBytesPerSample();
+        this.frames               = segment.byteSize() / ((long) channels * bytes_per_sample);
+    }
+
+    /**
+     * This factory method allocates silent audio data.
+     *
+     * @param arena the Arena which owns the memory
+     * @param format the encoding of the samples
+     * @param channels 1 for mono, 2 for stereo
+     * @param sample_rate_per_chan often 44_100 or 48_000
+     * @param frames the number of frames
+     * @return an AudioBuffer whose memory is freed when 'arena' is closed
+    */
+    public static AudioBuffer allocate(Arena           arena,
+                                       WAVSampleFormat format,
+                                       int             channels,
+                                       int             sample_rate_per_chan,
+                                       long            frames) {
+        if (channels < 1) {
+            throw new WAVChannelException("there are no channels");
+        }
+
+        AudioBuffer audio = new AudioBuffer(arena.allocate(frames * channels * format.getBytesPerSample(), 8),
+                                            format, channels, sample_rate_per_chan);
+
+        /*
+          Silence is 0 for every format except 8-bit samples.
+        */
+        if (format == WAVSampleFormat.PCM_8) {
+            audio.segment.fill((byte) 128);
+        }
+        return audio;
+    }
+
+    /**
+     * This factory method allocates silent audio data
+     * in the format described by a WAVHeader.
+     *
+     * @param arena the Arena which owns the memory
+     * @param header a WAVHeader describing the audio data
+     * @param frames the number of frames
+     * @return an AudioBuffer whose memory is freed when 'arena' is closed
+    */
+    public static AudioBuffer allocate(Arena arena, WAVHeader header, long frames) throws WAVFormatException {
+        return allocate(arena, WAVSampleFormat.of(header), header.getChannels(), header.getSampleRate(), frames);
+    }
+
+    /**
+     * This factory method maps the data chunk of a WAV file into memory.
+     *
+     * @param arena the Arena which owns the mapping
+     * @param name the path to the WAV file to map
+     * @param mode READ_ONLY, or READ_WRITE to change the file in place
+     * @return an AudioBuffer which is unmapped when 'arena' is closed
+    */
+    public static AudioBuffer map(Arena arena, String name, FileChannel.MapMode mode) throws IOException {
+        StandardOpenOption[] options = mode == FileChannel.MapMode.READ_ONLY
+                                     ? new StandardOpenOption[] { StandardOpenOption.READ }
+                                     : new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE };
+
+        try (FileChannel channel = FileChannel.open(Paths.get(name), options)) {
+            return map(arena, channel, WAVHeader.readWAVHeader(channel), mode);
+        }
+    }
+
+    /**
+     * This factory method maps the data chunk of a WAV file into memory.
+     * The mapping stays valid after 'channel' is closed.
+     *
+     * @param arena the Arena which owns the mapping
+     * @param channel a channel opened for reading a WAV file
+     * @param header the WAVHeader read from 'channel'
+     * @param mode READ_ONLY, or READ_WRITE to change the file in place
+     * @return an AudioBuffer which is unmapped when 'arena' is closed
+    */
+    static AudioBuffer map(Arena arena, FileChannel channel, WAVHeader header, FileChannel.MapMode mode) throws IOException {
+        WAVSampleFormat format = WAVSampleFormat.of(header);
+
+        /*
+          We only map whole frames which are really in the file.
+        */
+        long offset = header.getDataOffset();
+        long size   = Math.max(0, Math.min(header.getDataSize(), channel.size() - offset));
+        size -= size % header.getBlockSize();
+
+        return new AudioBuffer(channel.map(mode, offset, size, arena), format, header.getChannels(), header.getSampleRate());
+    }
+
+
+
+
+    /**
+     * @return the memory storing the frames one after another
+    */
+    public MemorySegment segment() {
+        return segment;
+    }
+
+    /**
+     * @return the encoding of the samples
+    */
+    public WAVSampleFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return 1 for mono, 2 for stereo
+    */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return the number of samples per second per channel
+    */
+    public int getSampleRate() {
+        return sample_rate_per_chan;
+    }
+
+    /**
+     * @return the number of frames
+    */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * @return a WAVHeader for a WAV file storing this audio data
+    */
+    public WAVHeader makeWAVHeader() {
+        return new WAVHeader(format.getAudioFormat(), channels, sample_rate_per_chan, format.getBitDepth(), frames);
+    }
+
+
+
+
+    /**
+     * @param frame the index of a frame
+     * @param channel the index of a channel in the frame
+     * @return the sample as a 16-bit sample
+    */
+    public short getShort(long frame, int channel) {
+        long p = offset(frame, channel);
+        switch (format) {
+            case PCM_16:   return segment.get(SHORT, p);
+            case FLOAT_32: return (short) Math.max(-32768, Math.min(32767, Math.round(segment.get(FLOAT, p) * 32768f)));
+            default:       return (short) (getInt(frame, channel) >> 16);
+        }
+    }
+
+    /**
+     * @param frame the index of a frame
+     * @param channel the index of a channel in the frame
+     * @param value a 16-bit sample
+    */
+    public void setShort(long frame, int channel, short value) {
+        long p = offset(frame, channel);
+        switch (format) {
+            case PCM_16:   segment.set(SHORT, p, value); break;
+            case FLOAT_32: segment.set(FLOAT, p, value * (1f / 32768)); break;
+            default:       setInt(frame, channel, value << 16);
+        }
+    }
+
+    /**
+     * @param frame the index of a frame
+     * @param channel the index of a channel in the frame
+     * @return the sample as a 32-bit sample
+    */
+    public int getInt(long frame, int channel) {
+        long p = offset(frame, channel);
+        switch (format) {
+            case PCM_8:  return ((segment.get(ValueLayout.JAVA_BYTE, p) & 0xFF) - 128) << 24;
+            case PCM_16: return segment.get(SHORT, p) << 16;
+            case PCM_24: return ((segment.get(SHORT, p) & 0xFFFF) << 8) | (segment.get(ValueLayout.JAVA_BYTE, p + 2) << 24);
+            case PCM_32: return segment.get(INT, p);
+            default:     return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE,
+                                                                           Math.round(segment.get(FLOAT, p) * 2147483648.0)));
+        }
+    }
+
+    /**
+     * @param frame the index of a frame
+     * @param channel the index of a channel in the frame
+     * @param value a 32-bit sample
+    */
+    public void setInt(long frame, int channel, int value) {
+        long p = offset(frame, channel);
+        switch (format) {
+            case PCM_8:
+                segment.set(ValueLayout.JAVA_BYTE, p, (byte) ((value >> 24) + 128));
+                break;
+            case PCM_16:
+                segment.set(SHORT, p, (short) (value >> 16));
+                break;
+            case PCM_24:
+                segment.set(SHORT, p, (short) (value >> 8));
+                segment.set(ValueLayout.JAVA_BYTE, p + 2, (byte) (value >> 24));
+                break;
+            case PCM_32:
+                segment.set(INT, p, value);
+                break;
+            case FLOAT_32:
+                segment.set(FLOAT, p, (float) (value * (1.0 / 2147483648.0)));
+                break;
+        }
+    }
+
+    /**
+     * @param frame the index of a frame
+     * @param channel the index of a channel in the frame
+     * @return the sample as a sample between -1 and 1
+    */
+    public float getFloat(long frame, int channel) {
+        long p = offset(frame, channel);
+        switch (format) {
+            case PCM_16:   return segment.get(SHORT, p) * (1f / 32768);
+            case FLOAT_32: return segment.get(FLOAT, p);
+            default:       return (float) (getInt(frame, channel) * (1.0 / 2147483648.0));
+        }
+    }
+
+    /**
+     * @param frame the index of a frame
+     * @param channel the index of a channel in the frame
+     * @param value a sample between -1 and 1, which is clipped
+    */
+    public void setFloat(long frame, int channel, float value) {
+        long p = offset(frame, channel);
+        switch (format) {
+            case PCM_16:
+                segment.set(SHORT, p, (short) Math.max(-32768, Math.min(32767, Math.round(value * 32768f))));
+                break;
+            case FLOAT_32:
+                segment.set(FLOAT, p, value);
+                break;
+            default:
+                setInt(frame, channel, (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE,
+                                                                                   Math.round(value * 2147483648.0))));
+        }
+    }
+
+
+
+
+    /**
+     * This method copies samples of one channel into an array.
+     *
+     * @param channel the index of the channel
+     * @param first the index of the first frame
+     * @param dst where the samples are stored
+     * @param off the index in 'dst' of the first sample
+     * @param len the number of samples
+    */
+    public void readChannel(int channel, long first, float[] dst, int off, int len) {
+        if (format == WAVSampleFormat.FLOAT_32 && channels == 1) {
+            MemorySegment.copy(segment, FLOAT, offset(first, channel), dst, off, len);
+            return;
+        }
+        for (int i = 0; i < len; ++i) {
+            dst[off + i] = getFloat(first + i, channel);
+        }
+    }
+
+    /**
+     * This method copies samples of one channel from an array.
+     *
+     * @param channel the index of the channel
+     * @param first the index of the first frame
+     * @param src where the samples are read
+     * @param off the index in 'src' of the first sample
+     * @param len the number of samples
+    */
+    public void writeChannel(int channel, long first, float[] src, int off, int len) {
+        for (int i = 0; i < len; ++i) {
+            setFloat(first + i, channel, src[off + i]);
+        }
+    }
+
+    /**
+     * This method copies samples of one channel into an array.
+     *
+     * @param channel the index of the channel
+     * @param first the index of the first frame
+     * @param dst where the samples are stored
+     * @param off the index in 'dst' of the first sample
+     * @param len the number of samples
+    */
+    public void readChannel(int channel, long first, short[] dst, int off, int len) {
+        if (format == WAVSampleFormat.PCM_16 && channels == 1) {
+            MemorySegment.copy(segment, SHORT, offset(first, channel), dst, off, len);
+            return;
+        }
+        for (int i = 0; i < len; ++i) {
+            dst[off + i] = getShort(first + i, channel);
+        }
+    }
+
+    /**
+     * This method copies samples of one channel from an array.
+     *
+     * @param channel the index of the channel
+     * @param first the index of the first frame
+     * @param src where the samples are read
+     * @param off the index in 'src' of the first sample
+     * @param len the number of samples
+    */
+    public void writeChannel(int channel, long first, short[] src, int off, int len) {
+        for (int i = 0; i < len; ++i) {
+            setShort(first + i, channel, src[off + i]);
+        }
+    }
+
+
+
+
+    /**
+     * This method writes the frames at the current position of a channel,
+     * exactly as they appear in the data chunk of a WAV file.
+     *
+     * @param out a channel opened for writing a WAV file
+    */
+    void writeData(FileChannel out) throws IOException {
+        long size = segment.byteSize();
+        for (long p = 0; p < size; ) {
+            long       n     = Math.min(size - p, 1 << 30);
+            ByteBuffer bytes = segment.asSlice(p, n).asByteBuffer();
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            p += n;
+        }
+    }
+
+    private long offset(long frame, int channel) {
+        if (channel < 0 || channel >= channels) {
+            throw new IndexOutOfBoundsException("channel " + channel + " is not one of " + channels + " channels");
+        }
+        return (frame * channels + channel) * bytes_per_sample;
+    }
+}
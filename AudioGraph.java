@@ -0,0 +1,406 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.io.IOException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/*
+  This class chains operations on audio without holding all of it
+  in memory, e.g. reading two files, converting one to 44100 Hz,
+  mixing them, and writing the mix to a third file.
+
+  A graph is made of Nodes. Sources, such as a WAVFile or Oscillators,
+  and processors, such as gain, mix and resample, are all Nodes, and
+  the sink, a WAVWriter, pulls blocks of frames from the last Node
+  with 'run'. Each processor in turn pulls blocks from its inputs.
+
+  Every block has at most 'block' frames, and every Node gives
+  exactly 'block' frames except at the end of its audio, where it
+  gives a shorter block and then 0 frames.
+
+  Nodes which need somewhere to put the blocks of their inputs take
+  arrays from the pool of the AudioGraph and give them back as soon
+  as they are done with them, so the same arrays are reused for
+  every block. The memory used therefore depends on the block size
+  and the number of Nodes, not on the length of the audio. Since a
+  WAVFile decodes its frames straight from its mapping, pulling a
+  block does not allocate at all once the pool has its arrays.
+
+  A graph written to a file by 'run' is written to a temporary file,
+  which is renamed once it is complete, and cannot be written over
+  one of the files that its sources read. Since the length of a graph
+  is not known in advance, the file reserves a ds64 chunk.
+*/
+public final class AudioGraph {
+    /*
+      A Node gives blocks of frames, one array of samples
+      between -1 and 1 per channel.
+    */
+    public interface Node {
+        int getChannels();
+
+        int getSampleRate();
+
+        /**
+         * This method gives the next block of frames.
+         *
+         * @param dst an array for every channel, with room for a block
+         * @return the number of frames stored in 'dst', from index 0,
+         *         which is less than a block only at the end
+        */
+        int pull(float[][] dst) throws IOException;
+
+        /**
+         * @return the paths to the files that the Node reads,
+         *         including those read by its inputs
+        */
+        default List<Path> getSources() {
+            return List.of();
+        }
+    }
+
+    private final int block;
+
+    /*
+      Arrays for blocks that are not in use, by number of channels.
+    */
+    private final Map<Integer, ArrayDeque<float[][]>> pool = new HashMap<>();
+    private int                                       allocated;
+
+
+
+
+    /**
+     * @param block the number of frames in a block
+    */
+    public AudioGraph(int block) {
+        if (block <= 0) {
+            throw new IllegalArgumentException("a block must have at least one frame");
+        }
+        this.block = block;
+    }
+
+    public int getBlockSize() {
+        return block;
+    }
+
+    /**
+     * @return the number of arrays of blocks that the pool has allocated,
+     *         which stops growing after the first block has been pulled
+    */
+    public int getBuffersAllocated() {
+        return allocated;
+    }
+
+
+
+
+    /**
+     * @param file a WAVFile
+     * @return a Node giving the frames of 'file'
+    */
+    public Node source(WAVFile file) {
+        WAVHeader header   = file.getHeader();
+        int       channels = header.getChannels();
+        float[]   frames   = new float[block * channels];
+
+        return new Node() {
+            private long next;
+
+            public int getChannels() {
+                return channels;
+            }
+
+            public int getSampleRate() {
+                return header.getSampleRate();
+            }
+
+            public int pull(float[][] dst) throws IOException {
+                int n = (int) Math.min(block, file.getFrameCount() - next);
+                file.readFrames(next, n, frames, 0);
+                WAVInterleaver.deinterleave(frames, 0, dst, 0, n);
+                next += n;
+                return n;
+            }
+
+            public List<Path> getSources() {
+                return List.of(file.getPath());
+            }
+        };
+    }
+
+    /**
+     * @param oscillators an Oscillator for every channel
+     * @param sample_rate the sample rate of the Oscillators
+     * @param frames the number of frames to give
+     * @return a Node giving the output of the Oscillators
+    */
+    public Node generator(Oscillator[] oscillators, int sample_rate, long frames) {
+        return new Node() {
+            private long left = frames;
+
+            public int getChannels() {
+                return oscillators.length;
+            }
+
+            public int getSampleRate() {
+                return sample_rate;
+            }
+
+            public int pull(float[][] dst) {
+                int n = (int) Math.min(block, left);
+                SignalGenerator.fill(oscillators, dst, 0, n);
+                left -= n;
+                return n;
+            }
+        };
+    }
+
+
+
+
+    /**
+     * @param input the Node to take frames from
+     * @param gain the factor, e.g. 0.5 for about -6 dB
+     * @return a Node giving the frames of 'input' multiplied by 'gain'
+    */
+    public Node gain(Node input, float gain) {
+        return new Node() {
+            public int getChannels() {
+                return input.getChannels();
+            }
+
+            public int getSampleRate() {
+                return input.getSampleRate();
+            }
+
+            public int pull(float[][] dst) throws IOException {
+                int n = input.pull(dst);
+                for (float[] channel : dst) {
+                    DSPKernels.gain(channel, 0, channel, 0, n, gain);
+                }
+                return n;
+            }
+
+            public List<Path> getSources() {
+                return input.getSources();
+            }
+        };
+    }
+
+    /**
+     * This method mixes Nodes with the same channels and sample rate.
+     * A Node which ends early is treated as silence.
+     *
+     * @param inputs the Nodes to mix
+     * @param gains the gain of every Node
+     * @return a Node giving the sum of the frames of 'inputs'
+    */
+    public Node mix(Node[] inputs, float[] gains) {
+        if (inputs.length == 0 || inputs.length != gains.length) {
+            throw new IllegalArgumentException(inputs.length + " inputs but " + gains.length + " gains");
+        }
+        for (Node input : inputs) {
+            checkSameFormat(inputs[0], input);
+        }
+
+        return new Node() {
+            public int getChannels() {
+                return inputs[0].getChannels();
+            }
+
+            public int getSampleRate() {
+                return inputs[0].getSampleRate();
+            }
+
+            public int pull(float[][] dst) throws IOException {
+                for (float[] channel : dst) {
+                    Arrays.fill(channel, 0, block, 0f);
+                }
+
+                float[][] src = take(getChannels());
+                try {
+                    int n = 0;
+                    for (int i = 0; i < inputs.length; ++i) {
+                        int m = inputs[i].pull(src);
+                        for (int c = 0; c < src.length; ++c) {
+                            DSPKernels.mix(src[c], 0, gains[i], dst[c], 0, m);
+                        }
+                        n = Math.max(n, m);
+                    }
+                    return n;
+                }
+                finally {
+                    give(src);
+                }
+            }
+
+            public List<Path> getSources() {
+                List<Path> sources = new ArrayList<>();
+                for (Node input : inputs) {
+                    sources.addAll(input.getSources());
+                }
+                return sources;
+            }
+        };
+    }
+
+    /**
+     * @param input the Node to take frames from
+     * @param sample_rate the sample rate to convert to
+     * @return a Node giving the frames of 'input' at 'sample_rate'
+    */
+    public Node resample(Node input, int sample_rate) {
+        Resampler resampler = new Resampler(input.getChannels(), input.getSampleRate(), sample_rate);
+
+        return new Node() {
+            /*
+              Converted frames which have not been given yet,
+              from 'next' inclusive to 'end' exclusive.
+            */
+            private final float[][] out = new float[input.getChannels()][resampler.getMaxOutput(block)];
+            private int             next;
+            private int             end;
+            private boolean         flushed;
+
+            public int getChannels() {
+                return input.getChannels();
+            }
+
+            public int getSampleRate() {
+                return sample_rate;
+            }
+
+            public List<Path> getSources() {
+                return input.getSources();
+            }
+
+            public int pull(float[][] dst) throws IOException {
+                int n = 0;
+                while (n < block) {
+                    if (next == end) {
+                        if (flushed) {
+                            break;
+                        }
+                        convert();
+                        continue;
+                    }
+
+                    int count = Math.min(block - n, end - next);
+                    for (int c = 0; c < dst.length; ++c) {
+                        System.arraycopy(out[c], next, dst[c], n, count);
+                    }
+                    next += count;
+                    n    += count;
+                }
+                return n;
+            }
+
+            private void convert() throws IOException {
+                float[][] src = take(getChannels());
+                try {
+                    int count = input.pull(src);
+                    end  = count > 0 ? resampler.process(src, 0, count, out) : resampler.flush(out);
+                    next = 0;
+                    flushed = count == 0;
+                }
+                finally {
+                    give(src);
+                }
+            }
+        };
+    }
+
+
+
+
+    /**
+     * This method pulls every block from a Node and writes it.
+     *
+     * @param input the last Node of the graph
+     * @param out a WAVWriter with the channels of 'input'
+     * @return the number of frames written
+    */
+    public long run(Node input, WAVWriter out) throws IOException {
+        if (out.getHeader().getChannels() != input.getChannels()) {
+            throw new WAVChannelException(input.getChannels() + " channels cannot be written to a file of "
+                                          + out.getHeader().getChannels() + " channels");
+        }
+
+        float[][] frames = take(input.getChannels());
+        try {
+            long total = 0;
+            for (int n; (n = input.pull(frames)) > 0; total += n) {
+                out.writeFrames(frames, 0, n);
+            }
+            return total;
+        }
+        finally {
+            give(frames);
+        }
+    }
+
+    /**
+     * This method writes the output of a Node to a new WAV file.
+     *
+     * @param input the last Node of the graph
+     * @param name the path to the WAV file that is written
+     * @param audio_fmt the audio format of the file, 1 for PCM or 3 for floats
+     * @param bit_depth_of_sample the number of bits per sample
+     * @return the number of frames written
+     * @throws IllegalArgumentException if 'name' is read by a source of the graph
+    */
+    public long run(Node input, String name, int audio_fmt, int bit_depth_of_sample) throws IOException {
+        Path path = Paths.get(name);
+        WAV.checkNotSameFile(path, input.getSources().toArray(new Path[0]));
+
+        WAVHeader header    = new WAVHeader(audio_fmt, input.getChannels(), input.getSampleRate(), bit_depth_of_sample, 0);
+        Path      temporary = WAV.temporaryFor(path);
+        try {
+            long frames;
+            try (WAVWriter out = new WAVWriter(temporary.toString(), header, true)) {
+                frames = run(input, out);
+            }
+            WAV.replace(temporary, path);
+            return frames;
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+    }
+
+
+
+
+    private float[][] take(int channels) {
+        ArrayDeque<float[][]> free = pool.computeIfAbsent(channels, c -> new ArrayDeque<>());
+        if (free.isEmpty()) {
+            ++allocated;
+            return new float[channels][block];
+        }
+        return free.pop();
+    }
+
+    private void give(float[][] frames) {
+        pool.get(frames.length).push(frames);
+    }
+
+    private static void checkSameFormat(Node a, Node b) {
+        if (a.getChannels() != b.getChannels()) {
+            throw new WAVChannelException(b.getChannels() + " channels cannot be mixed with " + a.getChannels());
+        }
+        if (a.getSampleRate() != b.getSampleRate()) {
+            throw new IllegalArgumentException(b.getSampleRate() + " Hz cannot be mixed with "
+                                               + a.getSampleRate() + " Hz; resample it first");
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+  This class holds the loops that we run over whole arrays of samples
+  before writing them: gain, mixing tracks, clipping, and converting
+  samples between -1 and 1 to 16-bit samples, with or without dither.
+
+  When the jdk.incubator.vector module is present, e.g. when running
+  with '--add-modules jdk.incubator.vector', each loop is handed to
+  DSPVectorKernels, which handles many samples per instruction.
+  Otherwise the plain loops in this class are used.
+
+  Both versions do exactly the same float operations in the same
+  order, so they give bit-for-bit the same results. Test3 checks
+  this. In particular:
+
+   - 16-bit results are clipped to [-32768, 32767] and then rounded
+     to the nearest integer, with ties going to the even integer.
+     Rounding is done by adding and subtracting ROUND, which the
+     Vector API can do as well as plain Java;
+   - a mix adds its tracks in order, with a multiply and then an
+     add for each track, never a fused multiply-add.
+
+  Every method takes offsets and a length, so the source and the
+  destination may be the same array.
+*/
+public final class DSPKernels {
+    /*
+      1.5 * 2^23. Adding and then subtracting it rounds any float
+      smaller than 2^22 in magnitude to the nearest integer.
+    */
+    static final float ROUND = 12582912f;
+
+    /*
+      Whether the loops are handed to DSPVectorKernels.
+    */
+    static final boolean VECTOR = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+                                  && !Boolean.getBoolean("DSPKernels.scalar");
+
+
+    private DSPKernels() {
+    }
+
+
+
+
+    /**
+     * This method multiplies 16-bit samples by 'gain', then rounds and clips them.
+     *
+     * @param src an array of 16-bit samples
+     * @param src_off the index of the first sample of 'src'
+     * @param dst where the results are stored
+     * @param dst_off the index in 'dst' of the first result
+     * @param len the number of samples
+     * @param gain the factor, e.g. 0.5 for about -6 dB
+    */
+    public static void gain(short[] src, int src_off, short[] dst, int dst_off, int len, float gain) {
+        checkRange(src.length, src_off, len);
+        checkRange(dst.length, dst_off, len);
+        if (VECTOR) {
+            DSPVectorKernels.gain(src, src_off, dst, dst_off, len, gain);
+        }
+        else {
+            scalarGain(src, src_off, dst, dst_off, len, gain);
+        }
+    }
+
+    /**
+     * This method multiplies samples by 'gain'.
+     *
+     * @param src an array of samples
+     * @param src_off the index of the first sample of 'src'
+     * @param dst where the results are stored
+     * @param dst_off the index in 'dst' of the first result
+     * @param len the number of samples
+     * @param gain the factor, e.g. 0.5 for about -6 dB
+    */
+    public static void gain(float[] src, int src_off, float[] dst, int dst_off, int len, float gain) {
+        checkRange(src.length, src_off, len);
+        checkRange(dst.length, dst_off, len);
+        if (VECTOR) {
+            DSPVectorKernels.gain(src, src_off, dst, dst_off, len, gain);
+        }
+        else {
+            scalarGain(src, src_off, dst, dst_off, len, gain);
+        }
+    }
+
+
+
+
+    /**
+     * This method sums 16-bit tracks, each multiplied by its gain,
+     * then rounds and clips the sum.
+     *
+     * @param tracks an array of 16-bit samples for every track
+     * @param gains the gain of every track
+     * @param src_off the index of the first sample of every track
+     * @param dst where the mix is stored
+     * @param dst_off the index in 'dst' of the first sample of the mix
+     * @param len the number of samples
+    */
+    public static void mix(short[][] tracks, float[] gains, int src_off, short[] dst, int dst_off, int len) {
+        if (tracks.length != gains.length) {
+            throw new IllegalArgumentException(tracks.length + " tracks but " + gains.length + " gains");
+        }
+        for (short[] track : tracks) {
+            checkRange(track.length, src_off, len);
+        }
+        checkRange(dst.length, dst_off, len);
+        if (VECTOR) {
+            DSPVectorKernels.mix(tracks, gains, src_off, dst, dst_off, len);
+        }
+        else {
+            scalarMix(tracks, gains, src_off, dst, dst_off, len);
+        }
+    }
+
+    /**
+     * This method adds samples multiplied by 'gain' to 'acc',
+     * which is how tracks between -1 and 1 are summed.
+     *
+     * @param src an array of samples
+     * @param src_off the index of the first sample of 'src'
+     * @param gain the gain of 'src'
+     * @param acc the sum so far
+     * @param acc_off the index in 'acc' of the first sample of the sum
+     * @param len the number of samples
+    */
+    public static void mix(float[] src, int src_off, float gain, float[] acc, int acc_off, int len) {
+        checkRange(src.length, src_off, len);
+        checkRange(acc.length, acc_off, len);
+        if (VECTOR) {
+            DSPVectorKernels.mix(src, src_off, gain, acc, acc_off, len);
+        }
+        else {
+            scalarMix(src, src_off, gain, acc, acc_off, len);
+        }
+    }
+
+
+
+
+    /**
+     * This method clips samples to [-1, 1] in place.
+     *
+     * @param samples an array of samples
+     * @param off the index of the first sample
+     * @param len the number of samples
+    */
+    public static void clip(float[] samples, int off, int len) {
+        checkRange(samples.length, off, len);
+        if (VECTOR) {
+            DSPVectorKernels.clip(samples, off, len);
+        }
+        else {
+            scalarClip(samples, off, len);
+        }
+    }
+
+    /**
+     * This method converts samples between -1 and 1 to 16-bit samples,
+     * multiplying by 32768, clipping and rounding to the nearest integer.
+     *
+     * @param src an array of samples between -1 and 1
+     * @param src_off the index of the first sample of 'src'
+     * @param dst where the 16-bit samples are stored
+     * @param dst_off the index in 'dst' of the first 16-bit sample
+     * @param len the number of samples
+    */
+    public static void toPCM16(float[] src, int src_off, short[] dst, int dst_off, int len) {
+        checkRange(src.length, src_off, len);
+        checkRange(dst.length, dst_off, len);
+        if (VECTOR) {
+            DSPVectorKernels.toPCM16(src, src_off, dst, dst_off, len);
+        }
+        else {
+            scalarToPCM16(src, src_off, dst, dst_off, len);
+        }
+    }
+
+
+
+
+    /*
+      This class converts samples between -1 and 1 to 16-bit samples
+      with TPDF dither: before rounding, every sample has the sum of
+      two independent uniform noises of half a step added to it.
+      This turns the rounding error into a constant, quiet hiss
+      instead of distortion which follows the signal.
+
+      The noise comes from two Oscillator.noise generators, so a
+      Dither with the same seed always gives the same samples.
+      A Dither has state, so it should only be used by one thread
+      at a time; use one Dither per channel.
+    */
+    public static final class Dither {
+        private final Oscillator a;
+        private final Oscillator b;
+
+        private float[] noise_a = new float[0];
+        private float[] noise_b = new float[0];
+
+        /**
+         * @param seed the seed of the noise
+        */
+        public Dither(long seed) {
+            a = Oscillator.noise(seed, 1);
+            b = Oscillator.noise(~seed, 1);
+        }
+
+        /**
+         * This method converts samples between -1 and 1 to
+         * dithered 16-bit samples, clipping and rounding them.
+         *
+         * @param src an array of samples between -1 and 1
+         * @param src_off the index of the first sample of 'src'
+         * @param dst where the 16-bit samples are stored
+         * @param dst_off the index in 'dst' of the first 16-bit sample
+         * @param len the number of samples
+        */
+        public void toPCM16(float[] src, int src_off, short[] dst, int dst_off, int len) {
+            checkRange(src.length, src_off, len);
+            checkRange(dst.length, dst_off, len);
+            if (noise_a.length < len) {
+                noise_a = new float[len];
+                noise_b = new float[len];
+            }
+            a.fill(noise_a, 0, len);
+            b.fill(noise_b, 0, len);
+
+            if (VECTOR) {
+                DSPVectorKernels.toPCM16(src, src_off, noise_a, noise_b, dst, dst_off, len);
+            }
+            else {
+                scalarToPCM16(src, src_off, noise_a, noise_b, 0, dst, dst_off, len);
+            }
+        }
+    }
+
+
+
+
+    /*
+      The plain loops. DSPVectorKernels uses them for the samples
+      left over after its last whole vector, and Test3 uses them
+      as the reference for the vector loops.
+    */
+
+    static void scalarGain(short[] src, int src_off, short[] dst, int dst_off, int len, float gain) {
+        for (int i = 0; i < len; ++i) {
+            dst[dst_off + i] = toShort(src[src_off + i] * gain);
+        }
+    }
+
+    static void scalarGain(float[] src, int src_off, float[] dst, int dst_off, int len, float gain) {
+        for (int i = 0; i < len; ++i) {
+            dst[dst_off + i] = src[src_off + i] * gain;
+        }
+    }
+
+    static void scalarMix(short[][] tracks, float[] gains, int src_off, short[] dst, int dst_off, int len) {
+        for (int i = 0; i < len; ++i) {
+            float sum = 0;
+            for (int t = 0; t < tracks.length; ++t) {
+                sum += tracks[t][src_off + i] * gains[t];
+            }
+            dst[dst_off + i] = toShort(sum);
+        }
+    }
+
+    static void scalarMix(float[] src, int src_off, float gain, float[] acc, int acc_off, int len) {
+        for (int i = 0; i < len; ++i) {
+            acc[acc_off + i] += src[src_off + i] * gain;
+        }
+    }
+
+    static void scalarClip(float[] samples, int off, int len) {
+        for (int i = off; i < off + len; ++i) {
+            samples[i] = Math.min(1f, Math.max(-1f, samples[i]));
+        }
+    }
+
+    static void scalarToPCM16(float[] src, int src_off, short[] dst, int dst_off, int len) {
+        for (int i = 0; i < len; ++i) {
+            dst[dst_off + i] = toShort(src[src_off + i] * 32768f);
+        }
+    }
+
+    static void scalarToPCM16(float[] src, int src_off, float[] a, float[] b, int noise_off, short[] dst, int dst_off, int len) {
+        for (int i = 0; i < len; ++i) {
+            float noise = (a[noise_off + i] + b[noise_off + i]) * 0.5f;
+            dst[dst_off + i] = toShort(src[src_off + i] * 32768f + noise);
+        }
+    }
+
+    /**
+     * @return 'x' clipped to a 16-bit sample and rounded,
+     *         with ties going to the even integer
+    */
+    static short toShort(float x) {
+        x = Math.min(32767f, Math.max(-32768f, x));
+        return (short) (int) (x + ROUND - ROUND);
+    }
+
+    private static void checkRange(int length, int off, int len) {
+        if (off < 0 || len < 0 || off > length - len) {
+            throw new IndexOutOfBoundsException(len + " samples at " + off + " do not fit in " + length);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+
+/*
+  This class holds the Vector API versions of the loops in DSPKernels.
+  It is only loaded when the jdk.incubator.vector module is present.
+
+  Each loop works on F.length() samples at a time, as floats.
+  16-bit samples are loaded with the species S, which has the same
+  number of lanes in half as many bits, and converted to floats.
+  The samples left over after the last whole vector are handed
+  to the plain loops of DSPKernels.
+*/
+final class DSPVectorKernels {
+    private static final VectorSpecies<Float> F = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Short> S = VectorSpecies.of(short.class, VectorShape.forBitSize(F.vectorBitSize() / 2));
+
+
+    private DSPVectorKernels() {
+    }
+
+
+
+
+    static void gain(short[] src, int src_off, short[] dst, int dst_off, int len, float gain) {
+        int i = 0;
+        for (int end = F.loopBound(len); i < end; i += F.length()) {
+            toShort(load(src, src_off + i).mul(gain), dst, dst_off + i);
+        }
+        DSPKernels.scalarGain(src, src_off + i, dst, dst_off + i, len - i, gain);
+    }
+
+    static void gain(float[] src, int src_off, float[] dst, int dst_off, int len, float gain) {
+        int i = 0;
+        for (int end = F.loopBound(len); i < end; i += F.length()) {
+            FloatVector.fromArray(F, src, src_off + i).mul(gain).intoArray(dst, dst_off + i);
+        }
+        DSPKernels.scalarGain(src, src_off + i, dst, dst_off + i, len - i, gain);
+    }
+
+    static void mix(short[][] tracks, float[] gains, int src_off, short[] dst, int dst_off, int len) {
+        int i = 0;
+        for (int end = F.loopBound(len); i < end; i += F.length()) {
+            FloatVector sum = FloatVector.zero(F);
+            for (int t = 0; t < tracks.length; ++t) {
+                sum = sum.add(load(tracks[t], src_off + i).mul(gains[t]));
+            }
+            toShort(sum, dst, dst_off + i);
+        }
+        DSPKernels.scalarMix(tracks, gains, src_off + i, dst, dst_off + i, len - i);
+    }
+
+    static void mix(float[] src, int src_off, float gain, float[] acc, int acc_off, int len) {
+        int i = 0;
+        for (int end = F.loopBound(len); i < end; i += F.length()) {
+            FloatVector product = FloatVector.fromArray(F, src, src_off + i).mul(gain);
+            FloatVector.fromArray(F, acc, acc_off + i).add(product).intoArray(acc, acc_off + i);
+        }
+        DSPKernels.scalarMix(src, src_off + i, gain, acc, acc_off + i, len - i);
+    }
+
+    static void clip(float[] samples, int off, int len) {
+        int i = 0;
+        for (int end = F.loopBound(len); i < end; i += F.length()) {
+            FloatVector.fromArray(F, samples, off + i).max(-1f).min(1f).intoArray(samples, off + i);
+        }
+        DSPKernels.scalarClip(samples, off + i, len - i);
+    }
+
+    static void toPCM16(float[] src, int src_off, short[] dst, int dst_off, int len) {
+        int i = 0;
+        for (int end = F.loopBound(len); i < end; i += F.length()) {
+            toShort(FloatVector.fromArray(F, src, src_off + i).mul(32768f), dst, dst_off + i);
+        }
+        DSPKernels.scalarToPCM16(src, src_off + i, dst, dst_off + i, len - i);
+    }
+
+    static void toPCM16(float[] src, int src_off, float[] a, float[] b, short[] dst, int dst_off, int len) {
+        int i = 0;
+        for (int end = F.loopBound(len); i < end; i += F.length()) {
+            FloatVector noise = FloatVector.fromArray(F, a, i).add(FloatVector.fromArray(F, b, i)).mul(0.5f);
+            toShort(FloatVector.fromArray(F, src, src_off + i).mul(32768f).add(noise), dst, dst_off + i);
+        }
+        DSPKernels.scalarToPCM16(src, src_off + i, a, b, i, dst, dst_off + i, len - i);
+    }
+
+
+
+
+    private static FloatVector load(short[] src, int off) {
+        return (FloatVector) ShortVector.fromArray(S, src, off).convertShape(VectorOperators.S2F, F, 0);
+    }
+
+    /**
+     * This method clips, rounds and stores floats as 16-bit samples,
+     * exactly as DSPKernels.toShort does.
+    */
+    private static void toShort(FloatVector v, short[] dst, int off) {
+        v = v.max(-32768f).min(32767f).add(DSPKernels.ROUND).sub(DSPKernels.ROUND);
+        ((ShortVector) v.convertShape(VectorOperators.F2S, S, 0)).intoArray(dst, off);
+    }
+}
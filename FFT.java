@@ -0,0 +1,178 @@
+/*
+  This class computes the discrete Fourier transform of real
+  samples, e.g. a windowed block of audio, in O(n log n) time.
+
+  The size must be a power of 2. A real transform of 'size' samples
+  is computed as a complex transform of 'size / 2' points, whose real
+  parts are the even samples and whose imaginary parts are the odd
+  samples, followed by a pass which separates the two halves. This
+  takes about half the time of a complex transform of 'size' points.
+
+  The complex transform is an iterative radix-2 decimation in time.
+  The cosines and sines of every angle it needs, and the order in
+  which it reads its input, are computed once by the constructor, so
+  transforming a block does no trigonometry and allocates nothing.
+
+  An FFT is never changed after it is constructed, so one FFT can be
+  shared by many threads, as long as each passes its own arrays.
+*/
+public final class FFT {
+    private final int size;
+    private final int half;
+
+    /*
+      cos(2 pi k / size) and sin(2 pi k / size) for k < size / 2.
+    */
+    private final float[] cos;
+    private final float[] sin;
+
+    /*
+      The bit-reversed index of every point of the complex transform.
+    */
+    private final int[] reverse;
+
+
+
+
+    /**
+     * @param size the number of samples in a block, a power of 2 of at least 4
+    */
+    public FFT(int size) {
+        if (size < 4 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("the size of an FFT must be a power of 2 of at least 4, not " + size);
+        }
+        this.size = size;
+        this.half = size / 2;
+
+        cos = new float[half];
+        sin = new float[half];
+        for (int k = 0; k < half; ++k) {
+            double angle = 2 * Math.PI * k / size;
+            cos[k] = (float) Math.cos(angle);
+            sin[k] = (float) Math.sin(angle);
+        }
+
+        reverse = new int[half];
+        int bits = Integer.numberOfTrailingZeros(half);
+        for (int i = 0; i < half; ++i) {
+            reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of frequencies in a transform,
+     *         from 0 Hz to half the sample rate inclusive
+    */
+    public int getBins() {
+        return half + 1;
+    }
+
+
+
+
+    /**
+     * This method transforms a block of real samples.
+     * Bin 'k' is the frequency 'k * sample_rate / size'.
+     *
+     * @param x the 'size' samples, which are not changed
+     * @param re where the real part of every bin is stored,
+     *           with room for 'getBins()' values
+     * @param im where the imaginary part of every bin is stored,
+     *           with room for 'getBins()' values
+    */
+    public void forward(float[] x, float[] re, float[] im) {
+        for (int i = 0; i < half; ++i) {
+            int j = reverse[i];
+            re[j] = x[2 * i];
+            im[j] = x[2 * i + 1];
+        }
+        butterflies(re, im);
+        separate(re, im);
+    }
+
+    /**
+     * This method stores the power of every bin, re^2 + im^2.
+     *
+     * @param re the real parts from 'forward'
+     * @param im the imaginary parts from 'forward'
+     * @param power where the 'getBins()' powers are stored
+    */
+    public void power(float[] re, float[] im, float[] power) {
+        for (int k = 0; k <= half; ++k) {
+            power[k] = re[k] * re[k] + im[k] * im[k];
+        }
+    }
+
+
+
+
+    /**
+     * This method does the complex transform of 'half' points,
+     * which have already been put in bit-reversed order.
+    */
+    private void butterflies(float[] re, float[] im) {
+        for (int length = 2; length <= half; length <<= 1) {
+            int span = length >> 1;
+            int step = size / length;   // The angle 2 pi / length is 'step' angles of cos and sin.
+
+            for (int start = 0; start < half; start += length) {
+                for (int j = 0; j < span; ++j) {
+                    float wr =  cos[j * step];
+                    float wi = -sin[j * step];
+
+                    int   a  = start + j;
+                    int   b  = a + span;
+                    float tr = re[b] * wr - im[b] * wi;
+                    float ti = re[b] * wi + im[b] * wr;
+
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * This method turns the transform Z of the even and odd samples
+     * packed as complex points into the transform X of the samples:
+     *
+     *   X[k] = (Z[k] + conj(Z[h - k])) / 2 + W^k (Z[k] - conj(Z[h - k])) / 2i
+     *
+     * where h is 'half' and W is exp(-2 pi i / size). Bins 'k' and
+     * 'h - k' need the same two points, so both are done together.
+    */
+    private void separate(float[] re, float[] im) {
+        float r0 = re[0];
+        float i0 = im[0];
+        re[0]    = r0 + i0;
+        im[0]    = 0;
+        re[half] = r0 - i0;
+        im[half] = 0;
+
+        for (int k = 1, j = half - 1; k <= j; ++k, --j) {
+            float ar = re[k], ai = im[k];
+            float br = re[j], bi = im[j];
+
+            float er = (ar + br) * 0.5f;
+            float ei = (ai - bi) * 0.5f;
+            float or = (ai + bi) * 0.5f;
+            float oi = (br - ar) * 0.5f;
+
+            float c  = cos[k];
+            float s  = sin[k];
+            float tr = c * or + s * oi;
+            float ti = c * oi - s * or;
+
+            re[k] = er + tr;
+            im[k] = ei + ti;
+            re[j] = er - tr;
+            im[j] = ti - ei;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+  This class generates test signals and tones block by block.
+
+  Calling Math.sin for every sample is slow, so none of these
+  oscillators does. Instead...
+
+   - 'sine' rotates a point around the unit circle by a complex
+     multiplication per sample. Rounding errors slowly build up,
+     so every RESYNC samples the point is reset from Math.sin and
+     Math.cos of the exact phase. Before being rounded to a float,
+     the samples stay within 1e-9 of Math.sin(2 * PI * frequency * i /
+     sample_rate), so a float sample is within 1e-7 of it.
+
+   - 'sweep' does the same with a rotation which is itself rotated
+     every sample, which gives a linear sweep of frequency.
+
+   - 'square' and 'saw' keep a phase accumulator between 0 and 1.
+     The jumps are smoothed with polyBLEP corrections, which removes
+     most of the aliasing that a naive square or saw wave would have.
+
+   - 'noise' uses a xorshift generator, which is much cheaper than
+     java.util.Random and is reproducible from its seed.
+
+  An Oscillator has state, so it should only be used by one thread
+  at a time. Several channels can be generated in parallel with one
+  Oscillator per channel, see SignalGenerator.
+*/
+public abstract class Oscillator {
+    /*
+      The number of samples between resets of the recurrences.
+    */
+    static final int RESYNC = 1 << 12;
+
+    private static final double TAU = 2 * Math.PI;
+
+    protected final double sample_rate;
+
+    private float[] scratch;
+
+
+
+
+    protected Oscillator(double sample_rate) {
+        if (!(sample_rate > 0)) {
+            throw new IllegalArgumentException("sample rate must be positive");
+        }
+        this.sample_rate = sample_rate;
+    }
+
+    /**
+     * This method generates the next samples, between -1 and 1.
+     *
+     * @param dst where the samples are stored
+     * @param off the index in 'dst' of the first sample
+     * @param len the number of samples
+    */
+    public abstract void fill(float[] dst, int off, int len);
+
+    /**
+     * This method generates the next samples as 16-bit samples.
+     *
+     * @param dst where the samples are stored
+     * @param off the index in 'dst' of the first sample
+     * @param len the number of samples
+     * @param amplitude the largest sample, e.g. 24576
+    */
+    public void fill(short[] dst, int off, int len, double amplitude) {
+        if (scratch == null) {
+            scratch = new float[RESYNC];
+        }
+        float a = (float) Math.min(32767, amplitude);
+
+        for (int end = off + len; off < end; ) {
+            int n = Math.min(scratch.length, end - off);
+            fill(scratch, 0, n);
+            for (int i = 0; i < n; ++i) {
+                dst[off + i] = (short) Math.round(a * scratch[i]);
+            }
+            off += n;
+        }
+    }
+
+
+
+
+    /**
+     * @param frequency the frequency in Hz
+     * @param sample_rate the number of samples per second
+     * @return an Oscillator for a sine wave starting at phase 0
+    */
+    public static Oscillator sine(double frequency, double sample_rate) {
+        return new Sine(frequency, sample_rate);
+    }
+
+    /**
+     * @param frequency the frequency in Hz
+     * @param sample_rate the number of samples per second
+     * @return an Oscillator for a band-limited square wave
+    */
+    public static Oscillator square(double frequency, double sample_rate) {
+        return new Square(frequency, sample_rate);
+    }
+
+    /**
+     * @param frequency the frequency in Hz
+     * @param sample_rate the number of samples per second
+     * @return an Oscillator for a band-limited rising saw wave
+    */
+    public static Oscillator saw(double frequency, double sample_rate) {
+        return new Saw(frequency, sample_rate);
+    }
+
+    /**
+     * @param seed the seed of the generator
+     * @param sample_rate the number of samples per second
+     * @return an Oscillator for uniform white noise
+    */
+    public static Oscillator noise(long seed, double sample_rate) {
+        return new Noise(seed, sample_rate);
+    }
+
+    /**
+     * @param from the frequency in Hz at the start
+     * @param to the frequency in Hz after 'seconds'
+     * @param seconds the length of the sweep; the frequency
+     *                keeps changing at the same rate afterwards
+     * @param sample_rate the number of samples per second
+     * @return an Oscillator for a sine wave whose frequency changes linearly
+    */
+    public static Oscillator sweep(double from, double to, double seconds, double sample_rate) {
+        return new Sweep(from, to, seconds, sample_rate);
+    }
+
+
+
+
+    private static final class Sine extends Oscillator {
+        private final double w;    // The phase increment per sample.
+        private final double cos_w;
+        private final double sin_w;
+
+        private long   n;          // The index of the next sample.
+        private double c;          // cos of the phase of the next sample.
+        private double s;          // sin of the phase of the next sample.
+
+        Sine(double frequency, double sample_rate) {
+            super(sample_rate);
+            w     = TAU * frequency / sample_rate;
+            cos_w = Math.cos(w);
+            sin_w = Math.sin(w);
+            c     = 1;
+        }
+
+        public void fill(float[] dst, int off, int len) {
+            for (int i = 0; i < len; ++i, ++n) {
+                if (n % RESYNC == 0) {
+                    c = Math.cos(w * n);
+                    s = Math.sin(w * n);
+                }
+                dst[off + i] = (float) s;
+
+                double t = c * cos_w - s * sin_w;
+                s        = s * cos_w + c * sin_w;
+                c        = t;
+            }
+        }
+    }
+
+    private static final class Sweep extends Oscillator {
+        private final double w0;   // The phase increment of the first sample.
+        private final double k;    // The change of the increment per sample.
+        private final double cos_k;
+        private final double sin_k;
+
+        private long   n;
+        private double c, s;       // The phase of the next sample.
+        private double rc, rs;     // The increment of the next sample.
+
+        Sweep(double from, double to, double seconds, double sample_rate) {
+            super(sample_rate);
+            w0    = TAU * from / sample_rate;
+            k     = TAU * (to - from) / (seconds * sample_rate * sample_rate);
+            cos_k = Math.cos(k);
+            sin_k = Math.sin(k);
+        }
+
+        public void fill(float[] dst, int off, int len) {
+            for (int i = 0; i < len; ++i, ++n) {
+                if (n % RESYNC == 0) {
+                    /*
+                      The phase of sample n is w0 * n + k * n * (n - 1) / 2,
+                      and the increment to sample n + 1 is w0 + k * n.
+                    */
+                    double phase = w0 * n + k * (n * (double) (n - 1) / 2);
+                    double inc   = w0 + k * n;
+                    c  = Math.cos(phase);
+                    s  = Math.sin(phase);
+                    rc = Math.cos(inc);
+                    rs = Math.sin(inc);
+                }
+                dst[off + i] = (float) s;
+
+                double t = c * rc - s * rs;
+                s        = s * rc + c * rs;
+                c        = t;
+
+                t  = rc * cos_k - rs * sin_k;
+                rs = rs * cos_k + rc * sin_k;
+                rc = t;
+            }
+        }
+    }
+
+    private static final class Square extends Oscillator {
+        private final double dt;
+        private double       phase;
+
+        Square(double frequency, double sample_rate) {
+            super(sample_rate);
+            dt = frequency / sample_rate;
+        }
+
+        public void fill(float[] dst, int off, int len) {
+            for (int i = 0; i < len; ++i) {
+                double v = phase < 0.5 ? 1 : -1;
+                v += polyBLEP(phase, dt);
+                v -= polyBLEP(phase + 0.5 - Math.floor(phase + 0.5), dt);
+                dst[off + i] = (float) v;
+
+                phase += dt;
+                phase -= Math.floor(phase);
+            }
+        }
+    }
+
+    private static final class Saw extends Oscillator {
+        private final double dt;
+        private double       phase;
+
+        Saw(double frequency, double sample_rate) {
+            super(sample_rate);
+            dt = frequency / sample_rate;
+        }
+
+        public void fill(float[] dst, int off, int len) {
+            for (int i = 0; i < len; ++i) {
+                dst[off + i] = (float) (2 * phase - 1 - polyBLEP(phase, dt));
+
+                phase += dt;
+                phase -= Math.floor(phase);
+            }
+        }
+    }
+
+    private static final class Noise extends Oscillator {
+        private long state;
+
+        Noise(long seed, double sample_rate) {
+            super(sample_rate);
+            state = seed == 0 ? 0x9E3779B97F4A7C15L : seed;
+        }
+
+        public void fill(float[] dst, int off, int len) {
+            long x = state;
+            for (int i = 0; i < len; ++i) {
+                x ^= x >>> 12;
+                x ^= x << 25;
+                x ^= x >>> 27;
+                long r = x * 0x2545F4914F6CDD1DL;
+
+                /*
+                  The top 24 bits give a uniform float in [-1, 1).
+                */
+                dst[off + i] = (int) (r >> 40) * (1f / (1 << 23));
+            }
+            state = x;
+        }
+    }
+
+
+
+
+    /**
+     * This method corrects a jump of 2 at phase 0 of a wave
+     * whose phase moves by 'dt' per sample.
+     *
+     * @return the polynomial band-limited step correction
+    */
+    private static double polyBLEP(double t, double dt) {
+        if (t < dt) {
+            t /= dt;
+            return t + t - t * t - 1;
+        }
+        if (t > 1 - dt) {
+            t = (t - 1) / dt;
+            return t * t + t + t + 1;
+        }
+        return 0;
+    }
+}
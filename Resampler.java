@@ -0,0 +1,427 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+
+/*
+  This class converts audio from one sample rate to another,
+  e.g. from 44100 Hz to 48000 Hz, block by block.
+
+  The ratio of the rates is reduced to L / M, e.g. 160 / 147 for
+  44100 to 48000. Each output sample lies at a position between two
+  input samples, and there are only L such positions, or phases,
+  so the windowed sinc filter for every phase is computed once,
+  when the Resampler is made. Producing a sample is then a dot
+  product of TAPS input samples with the filter of its phase.
+
+  When L is larger than MAX_PHASES, e.g. for 44100 to 44101 Hz,
+  only MAX_PHASES filters are kept and the filter of a phase is
+  interpolated linearly between the two nearest ones.
+
+  When converting to a lower rate, the filter also removes the
+  frequencies that the new rate cannot hold, so it gets wider,
+  with more taps, in proportion.
+
+  A Resampler only keeps the last few input samples of each channel,
+  so its memory does not depend on the length of the audio. Every
+  channel is independent, so channels are converted in parallel by
+  the common ForkJoinPool when a block is large enough.
+
+  The output is delayed so that output sample 0 lies on input sample 0,
+  and after 'flush' exactly ceil(n * L / M) frames have been produced
+  for n input frames.
+*/
+public final class Resampler {
+    /*
+      The number of taps of each filter when converting to a higher rate.
+    */
+    static final int TAPS = 32;
+
+    /*
+      The largest number of filters that are kept.
+    */
+    static final int MAX_PHASES = 1024;
+
+    /*
+      The cutoff of the filters, as a fraction of the lower Nyquist frequency,
+      and the beta of their Kaiser window.
+    */
+    static final double CUTOFF = 0.95;
+    static final double BETA   = 8.6;
+
+    /*
+      The number of samples below which we do not fork,
+      and the number of frames converted at a time by 'resample'.
+    */
+    static final int THRESHOLD = 1 << 15;
+    static final int BLOCK     = 1 << 14;
+
+    private final int from_rate;
+    private final int to_rate;
+
+    private final int l;          // The output rate divided by the gcd.
+    private final int m;          // The input rate divided by the gcd.
+
+    private final int       taps;
+    private final int       phases;
+    private final float[][] filters;  // 'phases' + 1 filters of 'taps' coefficients.
+
+    private final Channel[] channels;
+
+    private long frames_in;
+    private long frames_out;
+
+
+
+
+    /**
+     * @param channels the number of channels
+     * @param from_rate the sample rate of the input
+     * @param to_rate the sample rate of the output
+    */
+    public Resampler(int channels, int from_rate, int to_rate) {
+        if (channels <= 0) {
+            throw new WAVChannelException("there are no channels");
+        }
+        if (from_rate <= 0 || to_rate <= 0) {
+            throw new IllegalArgumentException("sample rates must be positive");
+        }
+
+        this.from_rate = from_rate;
+        this.to_rate   = to_rate;
+
+        int gcd = gcd(from_rate, to_rate);
+        l = to_rate   / gcd;
+        m = from_rate / gcd;
+
+        double scale = Math.min(1, (double) l / m);
+        int    half  = (int) Math.ceil(TAPS / 2 / scale);
+
+        taps    = 2 * half;
+        phases  = Math.min(l, MAX_PHASES);
+        filters = makeFilters(phases, half, 0.5 * CUTOFF * scale);
+
+        this.channels = new Channel[channels];
+        for (int c = 0; c < channels; ++c) {
+            this.channels[c] = new Channel();
+        }
+    }
+
+
+
+
+    /**
+     * @param count a number of input frames
+     * @return the most frames that 'process' can produce for them,
+     *         which is also enough for 'flush'
+    */
+    public int getMaxOutput(int count) {
+        return (int) (((long) count + taps) * l / m) + 2;
+    }
+
+    /**
+     * Writers of a resampled file use this to decide whether
+     * the file needs a ds64 chunk before any of it is written.
+     *
+     * @param frames the number of frames of a file
+     * @param from_rate the sample rate of the file
+     * @param to_rate the sample rate it is converted to
+     * @return at least as many frames as converting the file produces
+    */
+    public static long getMaxFrameCount(long frames, int from_rate, int to_rate) {
+        return (long) Math.ceil((double) frames * to_rate / from_rate) + BLOCK;
+    }
+
+    /**
+     * This method converts the next frames.
+     *
+     * @param in an array of samples for every channel
+     * @param off the index of the first sample of each channel to convert
+     * @param count the number of frames to convert
+     * @param out an array for every channel, with room for 'getMaxOutput(count)' samples
+     * @return the number of frames stored in 'out', from index 0
+    */
+    public int process(float[][] in, int off, int count, float[][] out) {
+        checkChannels(in);
+        checkChannels(out);
+
+        frames_in += count;
+        for (int c = 0; c < channels.length; ++c) {
+            channels[c].append(in[c], off, count);
+        }
+        return produce(out, count, Long.MAX_VALUE);
+    }
+
+    /**
+     * This method converts the last frames, which were waiting for
+     * the input samples after them, as if the input was followed by silence.
+     *
+     * @param out an array for every channel, with room for 'getMaxOutput(0)' samples
+     * @return the number of frames stored in 'out', from index 0
+    */
+    public int flush(float[][] out) {
+        checkChannels(out);
+
+        float[] silence = new float[taps];
+        for (int c = 0; c < channels.length; ++c) {
+            channels[c].append(silence, 0, taps);
+        }
+        return produce(out, taps, getOutputFrames(frames_in));
+    }
+
+    /**
+     * @return the number of output frames for 'frames' input frames
+    */
+    public long getOutputFrames(long frames) {
+        return (frames * l + m - 1) / m;
+    }
+
+    public int getInputRate() {
+        return from_rate;
+    }
+
+    public int getOutputRate() {
+        return to_rate;
+    }
+
+
+
+
+    /**
+     * This method converts a WAV file to another sample rate,
+     * keeping its channels and sample format. The file is written to
+     * a temporary file, which is renamed to 'to' once it is complete.
+     *
+     * @param from the path to the WAV file to convert
+     * @param to the path to the WAV file that is written
+     * @param to_rate the sample rate of 'to'
+     * @throws IllegalArgumentException if 'from' and 'to' are the same file
+    */
+    public static void resample(String from, String to, int to_rate) throws IOException {
+        Path path = Paths.get(to);
+        WAV.checkNotSameFile(path, Paths.get(from));
+
+        try (WAVFile in = WAVFile.open(from)) {
+            WAVHeader source = in.getHeader();
+            long      frames = getMaxFrameCount(in.getFrameCount(), source.getSampleRate(), to_rate);
+            WAVHeader header = new WAVHeader(source.getAudioFormat(), source.getChannels(), to_rate,
+                                             source.getBitDepth(), frames);   // Reserves a ds64 chunk if needed.
+
+            Path temporary = WAV.temporaryFor(path);
+            try {
+                try (WAVWriter out = new WAVWriter(temporary.toString(), header)) {
+                    resample(in, out);
+                }
+                WAV.replace(temporary, path);
+            }
+            catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temporary);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * This method converts all of a WAVFile to the sample rate of a WAVWriter,
+     * reading, converting and writing BLOCK frames at a time.
+     *
+     * @param in the WAVFile to convert
+     * @param out a WAVWriter with as many channels as 'in'
+    */
+    public static void resample(WAVFile in, WAVWriter out) throws IOException {
+        int n = in.getHeader().getChannels();
+        if (out.getHeader().getChannels() != n) {
+            throw new WAVChannelException(n + " channels cannot be written to a file of "
+                                          + out.getHeader().getChannels() + " channels");
+        }
+
+        Resampler resampler = new Resampler(n, in.getHeader().getSampleRate(), out.getHeader().getSampleRate());
+
+        float[]   frames = new float[BLOCK * n];
+        float[][] src    = new float[n][BLOCK];
+        float[][] dst    = new float[n][resampler.getMaxOutput(BLOCK)];
+
+        long total = in.getFrameCount();
+        for (long first = 0; first < total; first += BLOCK) {
+            int count = (int) Math.min(BLOCK, total - first);
+            in.readFrames(first, count, frames, 0);
+            WAVInterleaver.deinterleave(frames, 0, src, 0, count);
+            out.writeFrames(dst, 0, resampler.process(src, 0, count, dst));
+        }
+        out.writeFrames(dst, 0, resampler.flush(dst));
+    }
+
+
+
+
+    /*
+      The input samples of one channel which are still needed,
+      and the position of the next output sample among them.
+    */
+    private final class Channel {
+        private float[] history;
+        private int     have;     // The number of samples in 'history'.
+        private int     next;     // The index of the first sample of the next dot product.
+        private long    phase;    // The position of the next output sample past 'next + taps / 2 - 1', in 1 / l.
+
+        Channel() {
+            /*
+              The first output sample lies on input sample 0,
+              so it is preceded by taps / 2 - 1 samples of silence.
+            */
+            history = new float[2 * taps];
+            have    = taps / 2 - 1;
+        }
+
+        void append(float[] src, int off, int count) {
+            if (next > 0) {
+                System.arraycopy(history, next, history, 0, have - next);
+                have -= next;
+                next  = 0;
+            }
+            if (history.length < have + count) {
+                history = Arrays.copyOf(history, have + count);
+            }
+            System.arraycopy(src, off, history, have, count);
+            have += count;
+        }
+
+        /**
+         * @return the number of samples stored in 'dst'
+        */
+        int produce(float[] dst, long limit) {
+            int n = 0;
+            while (n < limit && next + taps <= have) {
+                dst[n++] = dot(history, next, phase);
+
+                phase += m;
+                next  += (int) (phase / l);
+                phase %= l;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * This method produces output samples from every channel,
+     * in parallel when there are enough of them.
+     *
+     * @param count the number of input frames just appended
+     * @param total the number of output frames to stop at
+     * @return the number of frames stored in 'out'
+    */
+    private int produce(float[][] out, int count, long total) {
+        long limit = total - frames_out;
+
+        if (channels.length > 1 && (long) count * channels.length >= THRESHOLD) {
+            IntStream.range(1, channels.length).parallel().forEach(c -> channels[c].produce(out[c], limit));
+        }
+        else {
+            for (int c = 1; c < channels.length; ++c) {
+                channels[c].produce(out[c], limit);
+            }
+        }
+
+        /*
+          Every channel produces the same number of frames.
+        */
+        int n = channels[0].produce(out[0], limit);
+        frames_out += n;
+        return n;
+    }
+
+    /**
+     * @return the output sample at 'phase' / l past
+     *         history[next + taps / 2 - 1]
+    */
+    private float dot(float[] history, int next, long phase) {
+        float[] h;
+        if (phases == l) {
+            h = filters[(int) phase];
+        }
+        else {
+            double t    = (double) phase * phases / l;
+            int    k    = (int) t;
+            float  frac = (float) (t - k);
+            float[] h0  = filters[k];
+            float[] h1  = filters[k + 1];
+
+            float sum = 0;
+            for (int j = 0; j < taps; ++j) {
+                sum += history[next + j] * (h0[j] + frac * (h1[j] - h0[j]));
+            }
+            return sum;
+        }
+
+        float sum = 0;
+        for (int j = 0; j < taps; ++j) {
+            sum += history[next + j] * h[j];
+        }
+        return sum;
+    }
+
+    /**
+     * This method computes a windowed sinc filter for every phase,
+     * plus one for phase 1, which interpolation needs.
+     * Every filter is normalized so that a constant signal keeps its level.
+     *
+     * @param cutoff the cutoff in cycles per input sample
+    */
+    private static float[][] makeFilters(int phases, int half, double cutoff) {
+        float[][] filters = new float[phases + 1][2 * half];
+        double    i0_beta = besselI0(BETA);
+
+        for (int p = 0; p <= phases; ++p) {
+            double f   = (double) p / phases;
+            double sum = 0;
+            double[] h = new double[2 * half];
+
+            for (int j = 0; j < 2 * half; ++j) {
+                double t = j - half + 1 - f;
+                double x = t / half;
+                double w = Math.abs(x) >= 1 ? 0 : besselI0(BETA * Math.sqrt(1 - x * x)) / i0_beta;
+                double s = t == 0 ? 1 : Math.sin(2 * Math.PI * cutoff * t) / (2 * Math.PI * cutoff * t);
+
+                h[j] = 2 * cutoff * s * w;
+                sum += h[j];
+            }
+            for (int j = 0; j < 2 * half; ++j) {
+                filters[p][j] = (float) (h[j] / sum);
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * @return the modified Bessel function of the first kind of order 0
+    */
+    private static double besselI0(double x) {
+        double sum  = 1;
+        double term = 1;
+        for (int k = 1; term > 1e-12 * sum; ++k) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum  += term;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private void checkChannels(float[][] samples) {
+        if (samples.length != channels.length) {
+            throw new WAVChannelException(samples.length + " arrays for " + channels.length + " channels");
+        }
+    }
+}
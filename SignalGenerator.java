@@ -0,0 +1,140 @@
+import java.io.IOException;
+
+import java.util.stream.IntStream;
+
+
+/*
+  This class generates many channels of audio with an Oscillator
+  for each channel, e.g. a 220 Hz sine on the left and 440 Hz on
+  the right, and writes them straight into a WAV file.
+
+  Every channel has its own Oscillator, so the channels of a block
+  can be generated in parallel by the common ForkJoinPool. Blocks
+  with fewer than THRESHOLD samples are generated sequentially,
+  since forking would cost more than it saves.
+
+  Frames are generated and written BLOCK frames at a time, so the
+  memory used does not depend on the length of the file.
+*/
+public final class SignalGenerator {
+    /*
+      The number of frames generated at a time when writing.
+    */
+    static final int BLOCK = 1 << 14;
+
+    /*
+      The number of samples below which we do not fork.
+    */
+    static final int THRESHOLD = 1 << 15;
+
+
+    private SignalGenerator() {
+    }
+
+
+
+
+    /**
+     * This method generates the next samples of every channel.
+     *
+     * @param oscillators an Oscillator for every channel
+     * @param channels an array of floats for every channel
+     * @param first the index of the first sample of each channel to store
+     * @param count the number of frames to generate
+    */
+    public static void fill(Oscillator[] oscillators, float[][] channels, int first, int count) {
+        if (oscillators.length != channels.length) {
+            throw new WAVChannelException(oscillators.length + " oscillators for " + channels.length + " channels");
+        }
+
+        if (channels.length > 1 && (long) count * channels.length >= THRESHOLD) {
+            IntStream.range(0, channels.length).parallel().forEach(c -> oscillators[c].fill(channels[c], first, count));
+        }
+        else {
+            for (int c = 0; c < channels.length; ++c) {
+                oscillators[c].fill(channels[c], first, count);
+            }
+        }
+    }
+
+    /**
+     * @param oscillators an Oscillator for every channel
+     * @param count the number of frames to generate
+     * @return an array of floats for every channel
+    */
+    public static float[][] generate(Oscillator[] oscillators, int count) {
+        float[][] channels = new float[oscillators.length][count];
+        fill(oscillators, channels, 0, count);
+        return channels;
+    }
+
+
+
+
+    /**
+     * This method generates frames and writes them to a WAVWriter,
+     * in whatever format its header describes.
+     *
+     * @param out the WAVWriter, with one channel for every Oscillator
+     * @param oscillators an Oscillator for every channel
+     * @param frames the number of frames to write
+    */
+    public static void write(WAVWriter out, Oscillator[] oscillators, long frames) throws IOException {
+        checkChannels(out.getHeader(), oscillators);
+
+        float[][] channels = new float[oscillators.length][(int) Math.min(BLOCK, frames)];
+        while (frames > 0) {
+            int n = (int) Math.min(BLOCK, frames);
+            fill(oscillators, channels, 0, n);
+            out.writeFrames(channels, 0, n);
+            frames -= n;
+        }
+    }
+
+    /**
+     * This method generates frames and writes them to a WAVAsyncWriter,
+     * so the next block is generated while the previous one is written.
+     *
+     * @param out the WAVAsyncWriter, with one channel for every Oscillator
+     * @param oscillators an Oscillator for every channel
+     * @param frames the number of frames to write
+    */
+    public static void write(WAVAsyncWriter out, Oscillator[] oscillators, long frames) throws IOException {
+        checkChannels(out.getHeader(), oscillators);
+
+        int       block    = (int) Math.min(BLOCK, frames);
+        float[][] channels = new float[oscillators.length][block];
+        float[]   frame    = new float[block * oscillators.length];
+        while (frames > 0) {
+            int n = (int) Math.min(BLOCK, frames);
+            fill(oscillators, channels, 0, n);
+            WAVInterleaver.interleave(channels, 0, n, frame, 0);
+            out.writeFrames(frame, 0, n);
+            frames -= n;
+        }
+    }
+
+    /**
+     * This method writes a CD quality WAV file of generated audio.
+     *
+     * @param name the path to the WAV file that is written
+     * @param oscillators an Oscillator for every channel,
+     *                    which should have a sample rate of 44100
+     * @param frames the number of frames to write
+    */
+    public static void writeCompactDiskQualityWAVFile(String name, Oscillator[] oscillators, long frames) throws IOException {
+        WAVHeader header = new WAVHeader(1, oscillators.length, 44100, 16, frames);   // Reserves a ds64 chunk if needed.
+        try (WAVWriter out = new WAVWriter(name, header)) {
+            write(out, oscillators, frames);
+        }
+    }
+
+
+
+
+    private static void checkChannels(WAVHeader header, Oscillator[] oscillators) {
+        if (header.getChannels() != oscillators.length) {
+            throw new WAVChannelException(oscillators.length + " oscillators for " + header.getChannels() + " channels");
+        }
+    }
+}
@@ -11,16 +11,13 @@ public class Test {
 
       WAVHeader head = WAVHeader.readWAVHeaderFromFile("fmt1_chan1_sr48000_bit16.wav"); 
       System.out.println(head);
-      head.getBytes(); //make sure getbytes has print statements
+      head.getBytes(); //make sure getbytes works
 
         /*
           First, we test our ability to
           read a WAVHeader from a file.
-          This tests the constructor
-
-            WAVHeader(byte[])
-
-          that you wrote.
+          This tests the chunk walker in WAVChunkIndex,
+          which should reject files that are not WAV files.
         */
         System.out.println(WAVHeader.readWAVHeaderFromFile("fmt1_chan1_sr44100_bit16.wav")); 
         System.out.println(WAVHeader.readWAVHeaderFromFile("fmt1_chan2_sr44100_bit16.wav"));
@@ -31,7 +28,13 @@ public class Test {
         System.out.println(WAVHeader.readWAVHeaderFromFile("fmt3_chan1_sr48000_bit32.wav"));
         System.out.println(WAVHeader.readWAVHeaderFromFile("fmt3_chan2_sr44100_bit32.wav"));
         System.out.println(WAVHeader.readWAVHeaderFromFile("euclid.wav"));
-        System.out.println(WAVHeader.readWAVHeaderFromFile("not_WAV.wav"));
+
+        try {
+            System.out.println(WAVHeader.readWAVHeaderFromFile("not_WAV.wav"));
+        }
+        catch (WAVFormatException e) {
+            System.out.println("not_WAV.wav was rejected");
+        }
 
 
 
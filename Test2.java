@@ -19,7 +19,7 @@ public class Test2 {
         // Store euclid.wav's bytes.
         FileInputStream in = new FileInputStream("euclid.wav");
 
-        byte[]  bytes = new byte[euclid.getHeaderSize() + euclid.getDataSize()];
+        byte[]  bytes = new byte[euclid.getHeaderSize() + (int) euclid.getDataSize()];
         in.read(bytes);
 
         in.close();
@@ -0,0 +1,140 @@
+import java.util.Arrays;
+import java.util.Random;
+
+
+public class Test3 {
+    public static void main(String[] args) {
+        /*
+          This file checks that the loops of DSPKernels give
+          bit-for-bit the same samples as the plain reference loops.
+          Run it with '--add-modules jdk.incubator.vector' so that
+          the Vector API loops are the ones being checked.
+        */
+        System.out.println(DSPKernels.VECTOR ? "checking the Vector API loops"
+                                             : "the Vector API is not present, checking the plain loops");
+
+        Random random = new Random(2024);
+
+        /*
+          Random lengths and offsets test the samples left over
+          after the last whole vector. The floats include values
+          far outside [-1, 1], halves which test the rounding,
+          and NaN and the infinities.
+        */
+        boolean ok = true;
+        for (int round = 0; round < 1000; ++round) {
+            int len = random.nextInt(300);
+            int off = random.nextInt(7);
+
+            short[]   a      = shorts(random, off + len);
+            short[]   b      = shorts(random, off + len);
+            float[]   x      = floats(random, off + len);
+            float[]   y      = floats(random, off + len);
+            float     gain   = random.nextFloat() * 4 - 2;
+            float[]   gains  = { random.nextFloat() * 2, random.nextFloat() * -2 };
+            short[][] tracks = { a, b };
+
+            short[] s1 = new short[off + len], s2 = new short[off + len];
+            DSPKernels.gain(a, off, s1, off, len, gain);
+            DSPKernels.scalarGain(a, off, s2, off, len, gain);
+            ok &= check("gain(short[])", Arrays.equals(s1, s2));
+
+            float[] f1 = new float[off + len], f2 = new float[off + len];
+            DSPKernels.gain(x, off, f1, off, len, gain);
+            DSPKernels.scalarGain(x, off, f2, off, len, gain);
+            ok &= check("gain(float[])", Arrays.equals(f1, f2));
+
+            DSPKernels.mix(tracks, gains, off, s1, off, len);
+            DSPKernels.scalarMix(tracks, gains, off, s2, off, len);
+            ok &= check("mix(short[][])", Arrays.equals(s1, s2));
+
+            f1 = y.clone();
+            f2 = y.clone();
+            DSPKernels.mix(x, off, gain, f1, off, len);
+            DSPKernels.scalarMix(x, off, gain, f2, off, len);
+            ok &= check("mix(float[])", Arrays.equals(f1, f2));
+
+            f1 = x.clone();
+            f2 = x.clone();
+            DSPKernels.clip(f1, off, len);
+            DSPKernels.scalarClip(f2, off, len);
+            ok &= check("clip", Arrays.equals(f1, f2));
+
+            DSPKernels.toPCM16(x, off, s1, off, len);
+            DSPKernels.scalarToPCM16(x, off, s2, off, len);
+            ok &= check("toPCM16", Arrays.equals(s1, s2));
+
+            long seed = random.nextLong();
+            new DSPKernels.Dither(seed).toPCM16(x, off, s1, off, len);
+
+            float[] noise_a = new float[len];
+            float[] noise_b = new float[len];
+            Oscillator.noise(seed, 1).fill(noise_a, 0, len);
+            Oscillator.noise(~seed, 1).fill(noise_b, 0, len);
+            DSPKernels.scalarToPCM16(x, off, noise_a, noise_b, 0, s2, off, len);
+            ok &= check("Dither.toPCM16", Arrays.equals(s1, s2));
+        }
+
+        /*
+          Some samples whose results we know.
+        */
+        short[] s = new short[8];
+        DSPKernels.toPCM16(new float[] { 0, 0.5f / 32768, 1.5f / 32768, -0.5f / 32768, 1, -1, 2, -2 }, 0, s, 0, 8);
+        ok &= check("rounding", Arrays.equals(s, new short[] { 0, 0, 2, 0, 32767, -32768, 32767, -32768 }));
+
+        DSPKernels.gain(new short[] { 1000, -1000, 30000, -30000, 3, -3, 0, 1 }, 0, s, 0, 8, 1.5f);
+        ok &= check("saturation", Arrays.equals(s, new short[] { 1500, -1500, 32767, -32768, 4, -4, 0, 2 }));
+
+        System.out.println(ok ? "all loops are bit-exact" : "some loops differ");
+
+
+
+
+        /*
+          Finally, we time the loops over a minute of CD quality audio.
+        */
+        float[] x = floats(random, 44100 * 60 * 2);
+        short[] a = shorts(random, x.length);
+        short[] d = new short[x.length];
+        for (int i = 0; i < 5; ++i) {
+            long start = System.nanoTime();
+            DSPKernels.toPCM16(x, 0, d, 0, x.length);
+            long middle = System.nanoTime();
+            DSPKernels.scalarToPCM16(x, 0, d, 0, x.length);
+            long end = System.nanoTime();
+            DSPKernels.gain(a, 0, d, 0, a.length, 0.7f);
+            long last = System.nanoTime();
+            System.out.printf("toPCM16 %.1f ms, plain %.1f ms, gain(short[]) %.1f ms%n",
+                              (middle - start) / 1e6, (end - middle) / 1e6, (last - end) / 1e6);
+        }
+    }
+
+    private static boolean check(String name, boolean equal) {
+        if (!equal) {
+            System.out.println(name + " differs from the plain loop");
+        }
+        return equal;
+    }
+
+    private static short[] shorts(Random random, int n) {
+        short[] samples = new short[n];
+        for (int i = 0; i < n; ++i) {
+            samples[i] = (short) random.nextInt();
+        }
+        return samples;
+    }
+
+    private static float[] floats(Random random, int n) {
+        float[] samples = new float[n];
+        for (int i = 0; i < n; ++i) {
+            switch (random.nextInt(20)) {
+                case 0:  samples[i] = Float.NaN; break;
+                case 1:  samples[i] = random.nextBoolean() ? Float.POSITIVE_INFINITY : Float.NEGATIVE_INFINITY; break;
+                case 2:  samples[i] = (random.nextInt(65536) - 32768 + 0.5f) / 32768; break;
+                case 3:  samples[i] = (float) random.nextGaussian() * 100; break;
+                default: samples[i] = random.nextFloat() * 2.2f - 1.1f; break;
+            }
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.nio.file.Paths;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+public class Test4 {
+    public static void main(String[] args) throws IOException {
+        /*
+          This file checks that WAVSampleCodec gives back the
+          samples it was given, for every WAVSampleFormat and every
+          kind of array, up to the bits that the format drops.
+        */
+        Random  random = new Random(2025);
+        boolean ok     = true;
+
+        /*
+          Random lengths, offsets and buffer positions test the
+          samples at the ends of an array, and packed 24-bit samples
+          which do not start on a multiple of 2 or 4 bytes.
+        */
+        for (WAVSampleFormat format : WAVSampleFormat.values()) {
+            int bits = format.getBytesPerSample() * 8;
+
+            for (int round = 0; round < 200; ++round) {
+                int len = random.nextInt(300);
+                int off = random.nextInt(7);
+                int pos = random.nextInt(5);
+
+                ByteBuffer bytes = ByteBuffer.allocate(pos + len * format.getBytesPerSample());
+
+                /*
+                  Integer formats keep the upper bits of a sample,
+                  and 32-bit floats keep every 16-bit sample.
+                */
+                short[] s  = shorts(random, off + len);
+                short[] s2 = new short[off + len];
+                WAVSampleCodec.encode(s, off, len, format, bytes.position(pos));
+                ok &= check(format + " encode(short[]) position", bytes.position() == bytes.capacity());
+                WAVSampleCodec.decode(bytes.position(pos), format, s2, off, len);
+                ok &= check(format + " decode(short[]) position", bytes.position() == bytes.capacity());
+                for (int i = off; i < off + len; ++i) {
+                    int kept = format == WAVSampleFormat.FLOAT_32 ? s[i] : s[i] >> Math.max(0, 16 - bits) << Math.max(0, 16 - bits);
+                    ok &= check(format + " short[] sample " + s[i], s2[i] == (short) kept);
+                }
+
+                /*
+                  A 32-bit float only has 24 bits of precision,
+                  so a 32-bit sample may move by half of 2^8.
+                */
+                int[] n  = ints(random, off + len);
+                int[] n2 = new int[off + len];
+                WAVSampleCodec.encode(n, off, len, format, bytes.position(pos));
+                WAVSampleCodec.decode(bytes.position(pos), format, n2, off, len);
+                for (int i = off; i < off + len; ++i) {
+                    if (format == WAVSampleFormat.FLOAT_32) {
+                        ok &= check(format + " int[] sample " + n[i], Math.abs((long) n2[i] - n[i]) <= 128);
+                    }
+                    else {
+                        ok &= check(format + " int[] sample " + n[i], n2[i] == n[i] >> (32 - bits) << (32 - bits));
+                    }
+                }
+
+                /*
+                  Floats between -1 and 1 are rounded to the nearest
+                  integer sample, so they move by at most half a step.
+                */
+                float[] x  = floats(random, off + len);
+                float[] x2 = new float[off + len];
+                WAVSampleCodec.encode(x, off, len, format, bytes.position(pos));
+                WAVSampleCodec.decode(bytes.position(pos), format, x2, off, len);
+                double step = format == WAVSampleFormat.FLOAT_32 ? 0 : Math.scalb(1.0, 1 - bits);
+                for (int i = off; i < off + len; ++i) {
+                    ok &= check(format + " float[] sample " + x[i], Math.abs(x2[i] - x[i]) <= step / 2 + 1e-7);
+                }
+            }
+        }
+
+        /*
+          Some samples whose bytes we know.
+        */
+        ok &= check("PCM_24 bytes", Arrays.equals(encode(new int[] { 0x12345678, -0x100 }, WAVSampleFormat.PCM_24),
+                                                  new byte[] { 0x56, 0x34, 0x12, -1, -1, -1 }));
+        ok &= check("PCM_8 bytes", Arrays.equals(encode(new int[] { 0, Integer.MIN_VALUE, Integer.MAX_VALUE }, WAVSampleFormat.PCM_8),
+                                                 new byte[] { (byte) 128, 0, (byte) 255 }));
+        ok &= check("FLOAT_32 bytes", Arrays.equals(encode(new int[] { Integer.MIN_VALUE }, WAVSampleFormat.FLOAT_32),
+                                                    new byte[] { 0, 0, (byte) 0x80, (byte) 0xBF }));
+
+        float[] clipped = new float[4];
+        ByteBuffer bytes = ByteBuffer.allocate(4 * 3);
+        WAVSampleCodec.encode(new float[] { 2, -2, 1, Float.NaN }, 0, 4, WAVSampleFormat.PCM_24, bytes);
+        WAVSampleCodec.decode(bytes.flip(), WAVSampleFormat.PCM_24, clipped, 0, 4);
+        ok &= check("PCM_24 clipping", Arrays.equals(clipped, new float[] { 8388607f / 8388608, -1, 8388607f / 8388608, 0 }));
+
+        /*
+          Finally, a packed 24-bit file goes through a
+          WAVWriter and a WAVFile and comes back the same.
+        */
+        int[] frames = ints(random, 2 * 10007);
+        for (int i = 0; i < frames.length; ++i) {
+            frames[i] &= 0xFFFFFF00;
+        }
+        try (WAVWriter out = new WAVWriter("test4_pcm24.wav", new WAVHeader(1, 2, 48000, 24, 0))) {
+            out.writeFrames(frames, 0, 10007);
+        }
+        int[] back = new int[frames.length];
+        try (WAVFile in = WAVFile.open("test4_pcm24.wav")) {
+            ok &= check("PCM_24 file frames", in.getFrameCount() == 10007);
+            in.readFrames(0, 10007, back, 0);
+        }
+        ok &= check("PCM_24 file", Arrays.equals(frames, back));
+
+        /*
+          IMA ADPCM is lossy, but a stereo sine which does not end on
+          a block comes back close to what was written, with its length,
+          and the catalog counts its frames from the fact chunk.
+          The encoder starts with its smallest step, so it takes
+          a few samples to catch up with a loud start.
+        */
+        short[][] stereo = new short[2][44100 + 123];
+        for (int i = 0; i < stereo[0].length; ++i) {
+            stereo[0][i] = (short) (12000 * Math.sin(2 * Math.PI * 440 * i / 44100));
+            stereo[1][i] = (short) (8000 * Math.sin(2 * Math.PI * 1000 * i / 44100) + random.nextInt(200) - 100);
+        }
+        WAV.writeIMAADPCMWAVFile("test4_adpcm.wav", 44100, stereo);
+        short[][] decoded = WAV.readIMAADPCMWAVFile("test4_adpcm.wav");
+        int       error   = 0;
+        for (int c = 0; c < 2; ++c) {
+            ok &= check("ADPCM length", decoded[c].length == stereo[c].length);
+            for (int i = 32; i < stereo[c].length; ++i) {
+                error = Math.max(error, Math.abs(decoded[c][i] - stereo[c][i]));
+            }
+        }
+        ok &= check("ADPCM error " + error, error < 256);
+
+        WAVCatalog.Entry entry = WAVCatalog.scan(Paths.get("."), 1).getEntries().stream()
+                                           .filter(e -> e.path().endsWith("test4_adpcm.wav")).findFirst().get();
+        ok &= check("ADPCM duration", entry.frames() == 44100 + 123 && Math.abs(entry.getDuration() - 44223.0 / 44100) < 1e-9);
+
+        System.out.println(ok ? "every format gives back its samples" : "some formats differ");
+    }
+
+    private static byte[] encode(int[] samples, WAVSampleFormat format) {
+        ByteBuffer bytes = ByteBuffer.allocate(samples.length * format.getBytesPerSample()).order(ByteOrder.LITTLE_ENDIAN);
+        WAVSampleCodec.encode(samples, 0, samples.length, format, bytes);
+        return bytes.array();
+    }
+
+    private static boolean check(String name, boolean equal) {
+        if (!equal) {
+            System.out.println(name + " was not given back");
+        }
+        return equal;
+    }
+
+    private static short[] shorts(Random random, int n) {
+        short[] samples = new short[n];
+        for (int i = 0; i < n; ++i) {
+            samples[i] = (short) random.nextInt();
+        }
+        if (n > 1) {
+            samples[0]     = Short.MIN_VALUE;
+            samples[n / 2] = Short.MAX_VALUE;
+        }
+        return samples;
+    }
+
+    private static int[] ints(Random random, int n) {
+        int[] samples = new int[n];
+        for (int i = 0; i < n; ++i) {
+            samples[i] = random.nextInt();
+        }
+        if (n > 1) {
+            samples[0]     = Integer.MIN_VALUE;
+            samples[n / 2] = Integer.MAX_VALUE;
+        }
+        return samples;
+    }
+
+    /**
+     * @return samples from -1 to the largest 8-bit sample,
+     *         so that no format clips them
+    */
+    private static float[] floats(Random random, int n) {
+        float[] samples = new float[n];
+        for (int i = 0; i < n; ++i) {
+            samples[i] = Math.min(random.nextFloat() * 2 - 1, 127f / 128);
+        }
+        if (n > 1) {
+            samples[0] = -1;
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.time.Duration;
+
+
+public class Test5 {
+    public static void main(String[] args) throws IOException {
+        /*
+          This file checks that WAVHeaderCache answers hits without
+          reading the file, notices when a file has changed, evicts
+          the least recently used header, and hands out copies.
+        */
+        Path    directory = Files.createTempDirectory("test5");
+        Path    a         = directory.resolve("a.wav");
+        Path    b         = directory.resolve("b.wav");
+        Path    c         = directory.resolve("c.wav");
+        boolean ok        = true;
+
+        write(a, 100);
+        write(b, 200);
+        write(c, 300);
+
+        /*
+          Within 'revalidate_after' a header is trusted, so a file
+          which has changed still gives its old header.
+        */
+        WAVHeaderCache trusting = new WAVHeaderCache(8, Duration.ZERO, Duration.ofHours(1));
+        ok &= check("first request misses", trusting.get(a).getFrameCount() == 100 && trusting.getMisses() == 1);
+        ok &= check("second request hits",  trusting.get(a).getFrameCount() == 100 && trusting.getHits() == 1);
+        write(a, 150);
+        ok &= check("a trusted header is not checked", trusting.get(a).getFrameCount() == 100 && trusting.getMisses() == 1);
+        trusting.invalidate(a);
+        ok &= check("an invalidated header is read again", trusting.get(a).getFrameCount() == 150 && trusting.getMisses() == 2);
+
+        /*
+          With a 'revalidate_after' of zero every request stats the
+          file, which is still a hit while the file is unchanged.
+        */
+        WAVHeaderCache checking = new WAVHeaderCache(8, Duration.ZERO, Duration.ZERO);
+        checking.get(b);
+        ok &= check("an unchanged file hits", checking.get(b).getFrameCount() == 200 && checking.getHits() == 1);
+        write(b, 250);
+        ok &= check("a changed file misses", checking.get(b).getFrameCount() == 250 && checking.getMisses() == 2);
+        Files.delete(b);
+        ok &= check("a deleted file throws", throwsIOException(checking, b) && checking.size() == 0);
+        write(b, 200);
+
+        /*
+          Asking for 'a' again makes 'b' the least recently used.
+        */
+        WAVHeaderCache small = new WAVHeaderCache(2);
+        small.get(a);
+        small.get(b);
+        small.get(a);
+        small.get(c);
+        ok &= check("one header is evicted", small.getEvictions() == 1 && small.size() == 2);
+        small.get(a);
+        ok &= check("the recently used header is kept", small.getHits() == 2);
+        small.get(b);
+        ok &= check("the least recently used header is evicted", small.getMisses() == 4);
+
+        /*
+          A header which has expired is read again even though
+          its file has not changed.
+        */
+        WAVHeaderCache expiring = new WAVHeaderCache(8, Duration.ofNanos(1), Duration.ofHours(1));
+        expiring.get(c);
+        expiring.get(c);
+        ok &= check("an expired header is read again", expiring.getExpirations() == 1 && expiring.getMisses() == 2);
+
+        /*
+          Changing a header from the cache does not change the next one.
+        */
+        WAVHeader header = trusting.get(a);
+        header.setDataSize(0);
+        header.reserveDS64();
+        WAVHeader again = trusting.get(a);
+        ok &= check("a header from the cache is a copy", again.getFrameCount() == 150 && again.getHeaderSize() == 44);
+
+        for (Path path : new Path[] { a, b, c }) {
+            Files.deleteIfExists(path);
+        }
+        Files.delete(directory);
+
+        System.out.println(ok ? "the cache hits, revalidates and evicts" : "the cache is wrong");
+    }
+
+    private static void write(Path path, int frames) throws IOException {
+        try (WAVWriter out = new WAVWriter(path.toString(), new WAVHeader(1, 1, 8000, 16, 0))) {
+            out.writeFrames(new short[frames], 0, frames);
+        }
+    }
+
+    private static boolean throwsIOException(WAVHeaderCache cache, Path path) {
+        try {
+            cache.get(path);
+            return false;
+        }
+        catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static boolean check(String name, boolean passed) {
+        if (!passed) {
+            System.out.println(name + " failed");
+        }
+        return passed;
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+
+public class Test6 {
+    public static void main(String[] args) throws IOException {
+        /*
+          This file checks that the classes which write a WAV file
+          from other WAV files never write over a file being read,
+          and never leave a temporary file or a mixed up file behind.
+        */
+        Path    directory = Files.createTempDirectory("test6");
+        Path    a         = directory.resolve("a").resolve("x.wav");
+        Path    b         = directory.resolve("b").resolve("x.wav");
+        Path    out       = directory.resolve("out");
+        boolean ok        = true;
+
+        write(a, 22050, 20000, 1000);
+        write(b, 44100, 30000, -1000);
+
+        /*
+          Two files of the same name in a list have the same target,
+          so only the first is converted, and the target is the same
+          as converting the first file on its own.
+        */
+        WAVTranscoder batch = WAVTranscoder.transcode(List.of(a, b), out, 4, WAVTranscoder.DEFAULT_MEMORY_BUDGET);
+        ok &= check("one of two files with the same target fails", batch.getFailures().size() == 1
+                                                                   && batch.getFailures().get(0).from().equals(b));
+        Path alone = directory.resolve("alone.wav");
+        WAVTranscoder.transcode(a, alone);
+        ok &= check("the target is the first file converted", Arrays.equals(Files.readAllBytes(out.resolve("x.wav")),
+                                                                            Files.readAllBytes(alone)));
+
+        /*
+          Converting a file over itself fails and leaves it as it was.
+        */
+        byte[] before = Files.readAllBytes(a);
+        ok &= check("a file is not converted over itself", throwsIOException(() -> WAVTranscoder.transcode(a, a)));
+        ok &= check("the file converted over itself is kept", Arrays.equals(Files.readAllBytes(a), before));
+
+        /*
+          Resampling a file over itself fails and leaves it as it was.
+        */
+        ok &= check("a file is not resampled over itself", throwsIOException(() -> Resampler.resample(a.toString(), a.toString(), 44100)));
+        ok &= check("the file resampled over itself is kept", Arrays.equals(Files.readAllBytes(a), before));
+
+        /*
+          A graph cannot be written over a file that one of its
+          sources reads, even behind other Nodes.
+        */
+        AudioGraph graph = new AudioGraph(1024);
+        try (WAVFile x = WAVFile.open(a.toString()); WAVFile y = WAVFile.open(alone.toString())) {
+            AudioGraph.Node node = graph.mix(new AudioGraph.Node[] { graph.resample(graph.source(x), 44100), graph.source(y) },
+                                             new float[] { 0.5f, 0.5f });
+            ok &= check("a graph is not written over its source", throwsIOException(() -> graph.run(node, a.toString(), 1, 16)));
+            ok &= check("a graph is written to a new file", graph.run(node, directory.resolve("mix.wav").toString(), 1, 16) > 0);
+        }
+        ok &= check("the source of a graph is kept", Arrays.equals(Files.readAllBytes(a), before));
+
+        ok &= check("no temporary file is left", count(directory, ".tmp") == 0);
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted((x, y) -> y.compareTo(x)).toList()) {
+                Files.delete(path);
+            }
+        }
+
+        System.out.println(ok ? "no file is written over a file being read" : "a file was written over");
+    }
+
+    private interface Action {
+        void run() throws IOException;
+    }
+
+    private static void write(Path path, int sample_rate_per_chan, int frames, int step) throws IOException {
+        Files.createDirectories(path.getParent());
+
+        short[] samples = new short[2 * frames];
+        for (int i = 0; i < samples.length; ++i) {
+            samples[i] = (short) (i * step);
+        }
+        try (WAVWriter out = new WAVWriter(path.toString(), new WAVHeader(1, 2, sample_rate_per_chan, 16, 0))) {
+            out.writeFrames(samples, 0, frames);
+        }
+    }
+
+    private static long count(Path directory, String suffix) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(path -> path.toString().endsWith(suffix)).count();
+        }
+    }
+
+    private static boolean throwsIOException(Action action) {
+        try {
+            action.run();
+            return false;
+        }
+        catch (IOException | IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    private static boolean check(String name, boolean passed) {
+        if (!passed) {
+            System.out.println(name + " failed");
+        }
+        return passed;
+    }
+}
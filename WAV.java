@@ -1,50 +1,78 @@
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
-import java.io.FileOutputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
 
 /*
   This class allows the writing of mono and stereo CD-quality WAV files.
+
+  The audio data is streamed through a WAVWriter,
+  so it is never copied into one big array of bytes.
+
+  The asynchronous versions of these methods return as soon as
+  the audio data has been encoded, while a WAVAsyncWriter is
+  still writing it, and report the outcome with a CompletableFuture.
+
+  IMA ADPCM files, which take about a quarter of the space of 16-bit
+  files, are written and read with WAVADPCMCodec, many blocks at a time.
+
+  It also allows WAV files to be copied, trimmed and concatenated.
+  These methods write a fresh WAVHeader and then let the kernel
+  move the audio data from file to file with FileChannel.transferTo,
+  so the samples never pass through the JVM.
+
+  Every file that these methods write, including the files streamed
+  through a WAVWriter or a WAVAsyncWriter, is written to a temporary
+  file next to it, which is renamed once it is complete, so a failure
+  never leaves half a file behind and never destroys the file that was
+  there before. A file cannot be written over one of the files it is
+  made from. A WAVWriter or WAVAsyncWriter used on its own writes
+  straight to its file.
 */
 public class WAV {
+    /*
+      The number of bytes of IMA ADPCM blocks encoded at a time,
+      which is enough blocks for them to be encoded in parallel.
+    */
+    private static final int ADPCM_BUFFER_SIZE = 1 << 20;
+
+    /*
+      A Frames writes all the audio data of a file to a WAVWriter.
+    */
+    private interface Frames {
+        void writeTo(WAVWriter out) throws IOException;
+    }
+
+
     /**
      * This method allows the writing of a mono WAV file.
      * 
      * @param name the path to the WAV file that is written
      * @param mono an array of shorts storing audio data
     */
-    public static void writeCompactDiskQualityWAVFile(String name, short[] mono) {
+    public static void writeCompactDiskQualityWAVFile(String name, short[] mono) throws IOException {
         /*
-          We create an appropriate header and store its bytes.
-        */
-        WAVHeader   header = WAVHeader.makeWAVHeaderForCompactDiskQualityAudio(mono); //what does this do??
-        byte[] headerBytes = header.getBytes(); // ok ... 
+          We create an appropriate header
+          and let a WAVWriter encode the audio data
+          block by block as it writes it to the file.
 
-        /*
-          We create an array of bytes for storing the audio data.
-          We wrap it in a ByteBuffer so that we can conveniently
-          convert shorts to two bytes using little endian.
+          The header already knows how much audio data
+          there is, so it is an RF64 header if it needs to be
+          and the WAVWriter does not need to reserve a JUNK chunk.
         */
-        byte[]   dataBytes = new byte[header.getDataSize()];
-        ByteBuffer    data = ByteBuffer.wrap(dataBytes);
-        data.order(ByteOrder.LITTLE_ENDIAN);
+        WAVHeader header = WAVHeader.makeWAVHeaderForCompactDiskQualityAudio(mono);
 
-        /*
-          We add the audio data to the array of bytes
-          by using the ByteBuffer.
-        */
-        for (int i = 0; i < mono.length; ++i) {
-            data.putShort(mono[i]);
-        }
-
-        /*
-          We now have two arrays of bytes.
-          We write them to the specified file.
-        */
-        write(name, headerBytes, dataBytes);
+        write(name, header, out -> out.writeFrames(mono, 0, mono.length));
     }
 
 
@@ -55,70 +83,514 @@ public class WAV {
      * @param left an array of shorts storing audio data
      * @param right an array of shorts storing audio data
     */
-    public static void writeCompactDiskQualityWAVFile(String name, short[] left, short[] right) {
+    public static void writeCompactDiskQualityWAVFile(String name, short[] left, short[] right) throws IOException {
         /*
-          We create an appropriate header and store its bytes.
+          We create an appropriate header, which checks
+          that the channels have the same length, and let
+          a WAVWriter interleave the channels as it writes.
         */
-        WAVHeader   header = WAVHeader.makeWAVHeaderForCompactDiskQualityAudio(left, right);
-        byte[] headerBytes = header.getBytes();
+        WAVHeader header = WAVHeader.makeWAVHeaderForCompactDiskQualityAudio(left, right);
 
-        /*
-          We create an array of bytes for storing the audio data.
-          We wrap it in a ByteBuffer so that we can conveniently
-          convert shorts to two bytes using little endian.
-        */
-        byte[]   dataBytes = new byte[header.getDataSize()];
-        ByteBuffer    data = ByteBuffer.wrap(dataBytes);
-        data.order(ByteOrder.LITTLE_ENDIAN);
+        write(name, header, out -> out.writeFrames(left, right, 0, left.length));
+    }
 
-        /*
-          We add the audio data to the array of bytes
-          by using the ByteBuffer.
-        */
-        for (int i = 0; i < left.length; ++i) {
-            data.putShort(left[i]);
-            data.putShort(right[i]);
+
+    /**
+     * This method allows the writing of a WAV file
+     * with any number of channels.
+     * 
+     * @param name the path to the WAV file that is written
+     * @param channels an array of shorts for every channel
+    */
+    public static void writeCompactDiskQualityWAVFile(String name, short[][] channels) throws IOException {
+        WAVHeader header = WAVHeader.makeWAVHeaderForCompactDiskQualityAudio(channels);
+
+        write(name, header, out -> out.writeFrames(channels, 0, channels[0].length));
+    }
+
+
+
+
+    /**
+     * This method allows the writing of a mono WAV file
+     * without waiting for the disk.
+     * 
+     * @param name the path to the WAV file that is written
+     * @param mono an array of shorts storing audio data
+     * @return a future which completes with the number of bytes written,
+     *         or completes exceptionally with the IOException that occurred
+    */
+    public static CompletableFuture<Long> writeCompactDiskQualityWAVFileAsync(String name, short[] mono) {
+        return writeAsync(name, WAVHeader.makeWAVHeaderForCompactDiskQualityAudio(mono), new short[][] { mono });
+    }
+
+
+    /**
+     * This method allows the writing of a stereo WAV file
+     * without waiting for the disk.
+     * 
+     * @param name the path to the WAV file that is written
+     * @param left an array of shorts storing audio data
+     * @param right an array of shorts storing audio data
+     * @return a future which completes with the number of bytes written,
+     *         or completes exceptionally with the IOException that occurred
+    */
+    public static CompletableFuture<Long> writeCompactDiskQualityWAVFileAsync(String name, short[] left, short[] right) {
+        return writeAsync(name, WAVHeader.makeWAVHeaderForCompactDiskQualityAudio(left, right), new short[][] { left, right });
+    }
+
+
+    /**
+     * This method allows the writing of a WAV file with any
+     * number of channels without waiting for the disk.
+     * 
+     * @param name the path to the WAV file that is written
+     * @param channels an array of shorts for every channel
+     * @return a future which completes with the number of bytes written,
+     *         or completes exceptionally with the IOException that occurred
+    */
+    public static CompletableFuture<Long> writeCompactDiskQualityWAVFileAsync(String name, short[][] channels) {
+        return writeAsync(name, WAVHeader.makeWAVHeaderForCompactDiskQualityAudio(channels), channels);
+    }
+
+
+
+
+    /**
+     * This method allows the writing of a WAV file whose audio data
+     * is stored outside of the Java heap, in any format and with any
+     * number of channels. The audio data is written without conversion.
+     * 
+     * @param name the path to the WAV file that is written
+     * @param audio an AudioBuffer storing audio data
+    */
+    public static void writeWAVFile(String name, AudioBuffer audio) throws IOException {
+        WAVHeader header = WAVHeader.makeWAVHeaderForAudioBuffer(audio);
+
+        create(name, out -> {
+            writeHeader(out, header, audio.getFrameCount());
+            audio.writeData(out);
+            writePad(out, header);
+        });
+    }
+
+
+
+
+    /**
+     * This method allows the writing of an IMA ADPCM WAV file,
+     * which is lossy but about a quarter of the size of a 16-bit file.
+     * 
+     * @param name the path to the WAV file that is written
+     * @param sample_rate_per_chan often 44_100 or 48_000
+     * @param channels an array of shorts for every channel
+    */
+    public static void writeIMAADPCMWAVFile(String name, int sample_rate_per_chan, short[][] channels) throws IOException {
+        int       frames      = WAVInterleaver.checkLengths(channels);
+        WAVHeader header      = WAVHeader.makeWAVHeaderForIMAADPCM(channels.length, sample_rate_per_chan, frames);
+        int       block_align = header.getBlockSize();
+        int       blocks      = (int) (header.getDataSize() / block_align);
+        int       group       = Math.max(1, ADPCM_BUFFER_SIZE / block_align);
+
+        ByteBuffer bytes = ByteBuffer.allocateDirect(Math.max(header.getHeaderSize(), group * block_align));
+        create(name, out -> {
+            header.writeTo(bytes);
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+
+            for (int first = 0; first < blocks; first += group) {
+                bytes.clear();
+                WAVADPCMCodec.encode(channels, frames, block_align, first, Math.min(group, blocks - first), bytes);
+                bytes.flip();
+                while (bytes.hasRemaining()) {
+                    out.write(bytes);
+                }
+            }
+            writePad(out, header);
+        });
+    }
+
+    /**
+     * This method allows the reading of an IMA ADPCM WAV file.
+     * 
+     * @param name the path to the WAV file that is read
+     * @return an array of shorts for every channel
+     * @throws WAVFormatException if 'name' is not an IMA ADPCM WAV file
+    */
+    public static short[][] readIMAADPCMWAVFile(String name) throws IOException {
+        try (WAVFile file = WAVFile.open(name)) {
+            WAVHeader header = file.getHeader();
+            if (header.getAudioFormat() != WAVADPCMCodec.AUDIO_FORMAT) {
+                throw new WAVFormatException(name + " does not store IMA ADPCM audio");
+            }
+            if (header.getFrameCount() > Integer.MAX_VALUE) {
+                throw new WAVFormatException(name + " has too many frames for an array");
+            }
+
+            /*
+              The blocks are decoded a window at a time, since
+              the data chunk of a long file is larger than 2 GB.
+              WAVFile counts the blocks of IMA ADPCM as its frames.
+            */
+            short[][] channels = new short[header.getChannels()][(int) header.getFrameCount()];
+            int       blocks   = (int) Math.min(file.getFrameCount(),
+                                                WAVADPCMCodec.getBlockCount(header.getFrameCount(), header.getSamplesPerBlock()));
+            int       window   = Math.max(1, WAVFile.WINDOW_SIZE / header.getBlockSize());
+
+            for (int first = 0; first < blocks; first += window) {
+                int count = Math.min(window, blocks - first);
+                WAVADPCMCodec.decode(file.asByteBuffer(first, count), header.getBlockSize(), first, count, channels);
+            }
+            return channels;
         }
+    }
 
-        /*
-          We now have two arrays of bytes.
-          We write them to the specified file.
-        */
-        write(name, headerBytes, dataBytes);
+
+
+
+    /**
+     * This method copies the audio data of a WAV file into a new WAV file.
+     * Chunks that WAVHeader does not consider are left behind.
+     * 
+     * @param from the path to the WAV file that is read
+     * @param to the path to the WAV file that is written
+     * @throws IllegalArgumentException if 'from' and 'to' are the same file
+    */
+    public static void copy(String from, String to) throws IOException {
+        concatenate(to, from);
     }
 
 
     /**
-     * This method writes two arrays of bytes to a specified file.
+     * This method copies a range of frames of a WAV file into a new WAV file.
      * 
-     * @param name the path to the file that is written
-     * @param header an array of bytes obtained from a WAVHeader
-     * @param data an array of bytes storing audio data
+     * @param from the path to the WAV file that is read
+     * @param to the path to the WAV file that is written
+     * @param first the index of the first frame to copy
+     * @param count the number of frames to copy
+     * @throws IllegalArgumentException if 'from' and 'to' are the same file
     */
-    private static void write(String name, byte[] header, byte[] data) {
-        FileOutputStream fout = null;
+    public static void trim(String from, String to, long first, long count) throws IOException {
+        checkNotSameFile(Paths.get(to), Paths.get(from));
+
+        try (FileChannel in = open(from)) {
+            WAVHeader source = WAVHeader.readWAVHeader(in);
+            if (source.getSamplesPerBlock() != 0) {
+                throw new WAVFormatException(from + " stores IMA ADPCM audio, which can only be cut between blocks");
+            }
+            long      block  = source.getBlockSize();
+            long      frames = source.getDataSize() / block;
+
+            if (first < 0 || count < 0 || first + count > frames) {
+                throw new IndexOutOfBoundsException("frames " + first + " to " + (first + count)
+                                                    + " are not in a file of " + frames + " frames");
+            }
+
+            create(to, out -> {
+                WAVHeader header = writeHeader(out, source, count);
+                transfer(in, source.getDataOffset() + first * block, count * block, out);
+                writePad(out, header);
+            });
+        }
+    }
+
+
+    /**
+     * This method writes the audio data of several WAV files,
+     * one after another, into a new WAV file. The WAV files must
+     * have the same audio format, channels, sample rate and bit depth.
+     * 
+     * @param to the path to the WAV file that is written
+     * @param from the paths to the WAV files that are read
+     * @throws WAVFormatException if the WAV files have different formats
+     * @throws IllegalArgumentException if 'to' is the same file as one of 'from'
+    */
+    public static void concatenate(String to, String... from) throws IOException {
+        if (from.length == 0) {
+            throw new IllegalArgumentException("no WAV files to concatenate");
+        }
+        Path[] sources = new Path[from.length];
+        for (int i = 0; i < from.length; ++i) {
+            sources[i] = Paths.get(from[i]);
+        }
+        checkNotSameFile(Paths.get(to), sources);
+
+        FileChannel[] in      = new FileChannel[from.length];
+        WAVHeader[]   headers = new WAVHeader[from.length];
+
+        try {
+            /*
+              We read and check every header up front,
+              so nothing is written for incompatible files.
+            */
+            long frames = 0;
+            for (int i = 0; i < from.length; ++i) {
+                in[i]      = open(from[i]);
+                headers[i] = WAVHeader.readWAVHeader(in[i]);
+
+                if (!headers[i].hasSameFormatAs(headers[0])) {
+                    throw new WAVFormatException(from[i] + " does not have the same format as " + from[0]);
+                }
+
+                /*
+                  Blocks of IMA ADPCM can only follow a full block.
+                */
+                int samples_per_block = headers[i].getSamplesPerBlock();
+                if (samples_per_block != 0 && i < from.length - 1 && headers[i].getFrameCount() % samples_per_block != 0) {
+                    throw new WAVFormatException(from[i] + " does not end with a full block of IMA ADPCM");
+                }
+                frames += headers[i].getFrameCount();
+            }
+
+            long total = frames;
+            create(to, out -> {
+                WAVHeader header = writeHeader(out, headers[0], total);
+                for (int i = 0; i < from.length; ++i) {
+                    transfer(in[i], headers[i].getDataOffset(), wholeBlocks(headers[i]), out);
+                }
+                writePad(out, header);
+            });
+        }
+        finally {
+            for (FileChannel channel : in) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+
+
+
+    /**
+     * This method streams the audio data of a file through a WAVWriter
+     * into a temporary file, which is renamed to 'name' once it is complete.
+    */
+    private static void write(String name, WAVHeader header, Frames frames) throws IOException {
+        Path path      = Paths.get(name);
+        Path temporary = temporaryFor(path);
 
         try {
-            fout = new FileOutputStream(name);
+            try (WAVWriter out = new WAVWriter(temporary.toString(), header, false)) {
+                frames.writeTo(out);
+            }
+            replace(temporary, path);
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            if (e instanceof IOException) {
+                System.out.println("Writing to file called " + name + " failed");
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * This method interleaves the channels block by block
+     * into a WAVAsyncWriter, which writes each block while
+     * the next one is being interleaved and encoded, into
+     * a temporary file which is renamed once it is complete.
+    */
+    private static CompletableFuture<Long> writeAsync(String name, WAVHeader header, short[][] channels) {
+        Path path      = Paths.get(name);
+        Path temporary = temporaryFor(path);
 
-            fout.write(header);
-            fout.write(data);
+        WAVAsyncWriter out;
+        try {
+            out = new WAVAsyncWriter(temporary.toString(), header, false);
         }
-        catch (FileNotFoundException e) {
-            System.out.println("File cannot be opened");
+        catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        try {
+            int     count = channels[0].length;
+            short[] block = new short[(1 << 16) * channels.length];
+            int     per   = block.length / channels.length;
+
+            for (int first = 0; first < count; first += per) {
+                int n = Math.min(per, count - first);
+                WAVInterleaver.interleave(channels, first, n, block, 0);
+                out.writeFrames(block, 0, n);
+            }
         }
         catch (IOException e) {
-            System.out.println("Writing to file failed");
+            /*
+              The future already fails with the first IOException,
+              but we still let it close the file.
+            */
         }
-        finally {
-            if (fout != null) {
+        return out.closeAsync()
+            .thenApply(size -> {
                 try {
-                    fout.close();
+                    replace(temporary, path);
                 }
                 catch (IOException e) {
-                    System.out.println("Closing file stream failed");
+                    throw new CompletionException(e);
+                }
+                return size;
+            })
+            .whenComplete((size, e) -> {
+                if (e != null) {
+                    try {
+                        Files.deleteIfExists(temporary);
+                    }
+                    catch (IOException deleting) {
+                        e.addSuppressed(deleting);
+                    }
+                }
+            });
+    }
+
+    private static FileChannel open(String name) throws IOException {
+        return FileChannel.open(Paths.get(name), StandardOpenOption.READ);
+    }
+
+    /*
+      An Output writes a whole file to a FileChannel.
+    */
+    private interface Output {
+        void writeTo(FileChannel out) throws IOException;
+    }
+
+    /**
+     * This method writes a file to a temporary file next to it,
+     * and renames the temporary file to 'name' once it is complete.
+     * If writing fails, the temporary file is deleted and any
+     * existing file called 'name' is left as it was.
+    */
+    private static void create(String name, Output output) throws IOException {
+        Path path      = Paths.get(name);
+        Path temporary = temporaryFor(path);
+
+        try (FileChannel out = FileChannel.open(temporary,
+                                                StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            output.writeTo(out);
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        replace(temporary, path);
+    }
+
+    /**
+     * This method is shared with the other classes which write
+     * a file from files that they read.
+     *
+     * @param to the path to the file that is written
+     * @param from the paths to the files that are read
+     * @throws IllegalArgumentException if 'to' is the same file as one of 'from'
+    */
+    static void checkNotSameFile(Path to, Path... from) throws IOException {
+        if (!Files.exists(to)) {
+            return;
+        }
+        for (Path path : from) {
+            if (Files.isSameFile(to, path)) {
+                throw new IllegalArgumentException(to + " cannot be written over " + path + ", which is being read");
+            }
+        }
+    }
+
+    /**
+     * @param path the path to a file that is written
+     * @return the path to the temporary file written in its place
+    */
+    static Path temporaryFor(Path path) {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    /**
+     * This method renames a complete temporary file to its final name,
+     * replacing any file of that name in a single step.
+    */
+    static void replace(Path temporary, Path path) throws IOException {
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * This method writes a fresh header with the format of 'source'
+     * and leaves 'out' positioned at the start of the audio data.
+    */
+    private static WAVHeader writeHeader(FileChannel out, WAVHeader source, long frames) throws IOException {
+        WAVHeader header;
+        if (source.getSamplesPerBlock() != 0) {
+            header = WAVHeader.makeWAVHeaderForIMAADPCM(source.getChannels(),
+                                                        source.getSampleRate(),
+                                                        source.getBlockSize(),
+                                                        frames);
+        }
+        else {
+            header = new WAVHeader(source.getAudioFormat(),
+                                   source.getChannels(),
+                                   source.getSampleRate(),
+                                   source.getBitDepth(),
+                                   frames);
+        }
+
+        ByteBuffer bytes = ByteBuffer.allocate(header.getHeaderSize());
+        header.writeTo(bytes);
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+        return header;
+    }
+
+    /**
+     * This method moves 'count' bytes starting at 'position' of 'in'
+     * to the current position of 'out'. A single call to transferTo
+     * may move fewer bytes than requested, so we loop.
+    */
+    private static void transfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+        WAVEvents.FileWrite event = new WAVEvents.FileWrite(out.position());
+
+        long size = count;
+        try {
+            while (count > 0) {
+                long n = in.transferTo(position, count, out);
+                if (n <= 0) {
+                    throw new WAVFormatException("data chunk is truncated");
                 }
+                position += n;
+                count    -= n;
             }
         }
+        catch (IOException e) {
+            event.bytes = size - count;
+            event.end(0, 0, 0, e);
+            throw e;
+        }
+
+        event.bytes = size;
+        event.end(size, 0, 0, null);
+    }
+
+    /**
+     * @return the number of bytes of whole frames, or for
+     *         IMA ADPCM, of the blocks holding every frame
+    */
+    private static long wholeBlocks(WAVHeader header) {
+        long block = header.getBlockSize();
+        if (header.getSamplesPerBlock() != 0) {
+            return WAVADPCMCodec.getBlockCount(header.getFrameCount(), header.getSamplesPerBlock()) * block;
+        }
+        return header.getDataSize() / block * block;
+    }
+
+    /**
+     * RIFF chunks must have an even size,
+     * so odd-sized data is followed by a pad byte.
+    */
+    private static void writePad(FileChannel out, WAVHeader header) throws IOException {
+        if ((header.getDataSize() & 1) != 0) {
+            out.write(ByteBuffer.allocate(1));
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,333 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.util.stream.IntStream;
+
+
+/*
+  This class converts 16-bit samples to and from IMA ADPCM,
+  audio format 0x11, which stores each sample in 4 bits, so a
+  WAV file takes about a quarter of the space of 16-bit PCM.
+  It is lossy, so it suits archives rather than masters.
+
+  Each sample is stored as the difference from a prediction, the
+  previous decoded sample, measured in steps whose size adapts to
+  how quickly the audio changes. The audio data is split into blocks
+  of 'block_align' bytes. Every block starts with a header for each
+  channel: the first sample of the block as 2 bytes, the index of
+  the step size as 1 byte, and a byte of 0. After the headers,
+  the channels take turns with 4 bytes, i.e. 8 samples, each.
+  Within a byte, the first sample is in the low 4 bits.
+
+  A block can be decoded without the blocks before it, so blocks
+  are decoded in parallel. To encode blocks in parallel too, the
+  step index that a block starts with is found by running the
+  encoder over the WARMUP samples before the block, rather than
+  taken from the end of the block before. The last block is padded
+  with silence, and the 'fact' chunk of the WAV file records how
+  many frames there really are.
+
+  Blocks are handled in parallel by the common ForkJoinPool
+  when there are at least THRESHOLD samples.
+*/
+public final class WAVADPCMCodec {
+    /*
+      The audio format of IMA ADPCM in a WAV file.
+    */
+    public static final int AUDIO_FORMAT = 0x11;
+
+    /*
+      The number of bits per sample.
+    */
+    public static final int BIT_DEPTH = 4;
+
+    /*
+      The number of samples encoded, without being stored,
+      to find the step index that a block starts with.
+    */
+    static final int WARMUP = 32;
+
+    /*
+      The number of samples below which we do not fork.
+    */
+    static final int THRESHOLD = 1 << 15;
+
+    private static final short[] STEP = {
+            7,     8,     9,    10,    11,    12,    13,    14,    16,    17,
+           19,    21,    23,    25,    28,    31,    34,    37,    41,    45,
+           50,    55,    60,    66,    73,    80,    88,    97,   107,   118,
+          130,   143,   157,   173,   190,   209,   230,   253,   279,   307,
+          337,   371,   408,   449,   494,   544,   598,   658,   724,   796,
+          876,   963,  1060,  1166,  1282,  1411,  1552,  1707,  1878,  2066,
+         2272,  2499,  2749,  3024,  3327,  3660,  4026,  4428,  4871,  5358,
+         5894,  6484,  7132,  7845,  8630,  9493, 10442, 11487, 12635, 13899,
+        15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    private static final byte[] INDEX = {
+        -1, -1, -1, -1, 2, 4, 6, 8,
+        -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+
+    private WAVADPCMCodec() {
+    }
+
+
+
+
+    /**
+     * @param channels 1 for mono, 2 for stereo
+     * @param sample_rate_per_chan the number of samples per second per channel
+     * @return the usual size of a block in bytes: 256 bytes per channel
+     *         at 11025 Hz, doubling with the sample rate up to 44100 Hz
+    */
+    public static int getBlockAlign(int channels, int sample_rate_per_chan) {
+        int per_channel = 256;
+        for (int rate = 11025 * 2; rate <= sample_rate_per_chan && per_channel < 1024; rate *= 2) {
+            per_channel *= 2;
+        }
+        return per_channel * channels;
+    }
+
+    /**
+     * @param block_align the size of a block in bytes
+     * @param channels 1 for mono, 2 for stereo
+     * @return the number of frames in a block
+     * @throws IllegalArgumentException if no whole number of frames fits in the block
+    */
+    public static int getSamplesPerBlock(int block_align, int channels) {
+        int data = block_align - 4 * channels;
+        if (channels <= 0 || data < 0 || data % (4 * channels) != 0) {
+            throw new IllegalArgumentException("a block of " + block_align + " bytes does not fit "
+                                               + channels + " channels of IMA ADPCM");
+        }
+        return data / channels * 2 + 1;
+    }
+
+    /**
+     * @return the number of blocks needed for 'frames' frames
+    */
+    public static long getBlockCount(long frames, int samples_per_block) {
+        return (frames + samples_per_block - 1) / samples_per_block;
+    }
+
+
+
+
+    /**
+     * This method encodes a range of blocks of audio.
+     *
+     * @param channels an array of 16-bit samples for every channel,
+     *                 all of length at least 'frames'
+     * @param frames the number of frames of audio
+     * @param block_align the size of a block in bytes
+     * @param first the index of the first block to encode
+     * @param count the number of blocks to encode
+     * @param dst where the blocks are written, from its position,
+     *            which is moved past them
+    */
+    public static void encode(short[][] channels, int frames, int block_align, int first, int count, ByteBuffer dst) {
+        int samples_per_block = getSamplesPerBlock(block_align, channels.length);
+        int base              = dst.position();
+        if ((long) count * block_align > dst.remaining()) {
+            throw new IndexOutOfBoundsException(count + " blocks do not fit in " + dst.remaining() + " bytes");
+        }
+        ByteBuffer bytes = dst.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        long start = WAVMetrics.start();
+        if ((long) count * samples_per_block * channels.length >= THRESHOLD) {
+            IntStream.range(0, count).parallel().forEach(b -> {
+                encodeBlock(channels, frames, samples_per_block, first + b, bytes, base + b * block_align);
+            });
+        }
+        else {
+            for (int b = 0; b < count; ++b) {
+                encodeBlock(channels, frames, samples_per_block, first + b, bytes, base + b * block_align);
+            }
+        }
+        dst.position(base + count * block_align);
+
+        long done = Math.min((long) count * samples_per_block, Math.max(0, frames - (long) first * samples_per_block));
+        WAVMetrics.ENCODING.record(start, (long) count * block_align, done, done * channels.length);
+    }
+
+    /**
+     * This method decodes a range of blocks of audio.
+     *
+     * @param src where the blocks are read, from its position,
+     *            which is moved past them
+     * @param block_align the size of a block in bytes
+     * @param first the index of the first block to decode
+     * @param count the number of blocks to decode
+     * @param channels an array for the 16-bit samples of every channel;
+     *                 samples beyond the end of the arrays are dropped
+    */
+    public static void decode(ByteBuffer src, int block_align, int first, int count, short[][] channels) {
+        int samples_per_block = getSamplesPerBlock(block_align, channels.length);
+        int base              = src.position();
+        if ((long) count * block_align > src.remaining()) {
+            throw new IndexOutOfBoundsException(count + " blocks are not in " + src.remaining() + " bytes");
+        }
+        ByteBuffer bytes = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        long start = WAVMetrics.start();
+        if ((long) count * samples_per_block * channels.length >= THRESHOLD) {
+            IntStream.range(0, count).parallel().forEach(b -> {
+                decodeBlock(bytes, base + b * block_align, samples_per_block, first + b, channels);
+            });
+        }
+        else {
+            for (int b = 0; b < count; ++b) {
+                decodeBlock(bytes, base + b * block_align, samples_per_block, first + b, channels);
+            }
+        }
+        src.position(base + count * block_align);
+
+        long done = Math.min((long) count * samples_per_block, Math.max(0, channels[0].length - (long) first * samples_per_block));
+        WAVMetrics.DECODING.record(start, (long) count * block_align, done, done * channels.length);
+    }
+
+
+
+
+    /**
+     * This method encodes block 'block' at index 'p' of 'dst'.
+    */
+    private static void encodeBlock(short[][] channels, int frames, int samples_per_block, int block, ByteBuffer dst, int p) {
+        int n     = channels.length;
+        int first = block * samples_per_block;
+
+        for (int c = 0; c < n; ++c) {
+            short[] samples = channels[c];
+
+            /*
+              The first sample is stored as it is, and the step index
+              is what encoding the samples before the block leads to.
+            */
+            int index = 0;
+            int from  = Math.max(0, first - WARMUP);
+            if (from < first) {
+                int predictor = samples[from];
+                for (int i = from + 1; i < first; ++i) {
+                    int nibble = nibble(samples[i] - predictor, index);
+                    predictor  = predict(predictor, nibble, index);
+                    index      = adapt(index, nibble);
+                }
+            }
+
+            int predictor = sample(samples, first, frames);
+            dst.putShort(p + 4 * c, (short) predictor);
+            dst.put(p + 4 * c + 2, (byte) index);
+            dst.put(p + 4 * c + 3, (byte) 0);
+
+            for (int g = 0, q = p + 4 * n + 4 * c; 1 + g * 8 < samples_per_block; ++g, q += 4 * n) {
+                for (int k = 0; k < 4; ++k) {
+                    int i = first + 1 + g * 8 + 2 * k;
+
+                    int low   = nibble(sample(samples, i, frames) - predictor, index);
+                    predictor = predict(predictor, low, index);
+                    index     = adapt(index, low);
+
+                    int high  = nibble(sample(samples, i + 1, frames) - predictor, index);
+                    predictor = predict(predictor, high, index);
+                    index     = adapt(index, high);
+
+                    dst.put(q + k, (byte) (low | high << 4));
+                }
+            }
+        }
+    }
+
+    /**
+     * This method decodes the block at index 'p' of 'src' as block 'block'.
+    */
+    private static void decodeBlock(ByteBuffer src, int p, int samples_per_block, int block, short[][] channels) {
+        int n     = channels.length;
+        int first = block * samples_per_block;
+
+        for (int c = 0; c < n; ++c) {
+            short[] samples = channels[c];
+            int     end     = (int) Math.min(samples.length, (long) first + samples_per_block);
+
+            int predictor = src.getShort(p + 4 * c);
+            int index     = Math.min(STEP.length - 1, src.get(p + 4 * c + 2) & 0xFF);
+            if (first < end) {
+                samples[first] = (short) predictor;
+            }
+
+            for (int g = 0, q = p + 4 * n + 4 * c; 1 + g * 8 < samples_per_block; ++g, q += 4 * n) {
+                for (int k = 0; k < 4; ++k) {
+                    int i    = first + 1 + g * 8 + 2 * k;
+                    int bits = src.get(q + k);
+
+                    predictor = predict(predictor, bits & 0xF, index);
+                    index     = adapt(index, bits & 0xF);
+                    if (i < end) {
+                        samples[i] = (short) predictor;
+                    }
+
+                    predictor = predict(predictor, bits >> 4 & 0xF, index);
+                    index     = adapt(index, bits >> 4 & 0xF);
+                    if (i + 1 < end) {
+                        samples[i + 1] = (short) predictor;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the 4 bits which best store 'difference' with the step at 'index'
+    */
+    private static int nibble(int difference, int index) {
+        int step   = STEP[index];
+        int nibble = 0;
+        if (difference < 0) {
+            nibble     = 8;
+            difference = -difference;
+        }
+        if (difference >= step) {
+            nibble     |= 4;
+            difference -= step;
+        }
+        if (difference >= step >> 1) {
+            nibble     |= 2;
+            difference -= step >> 1;
+        }
+        if (difference >= step >> 2) {
+            nibble |= 1;
+        }
+        return nibble;
+    }
+
+    /**
+     * @return the next decoded sample, exactly as a decoder computes it
+    */
+    private static int predict(int predictor, int nibble, int index) {
+        int step  = STEP[index];
+        int delta = step >> 3;
+        if ((nibble & 4) != 0) {
+            delta += step;
+        }
+        if ((nibble & 2) != 0) {
+            delta += step >> 1;
+        }
+        if ((nibble & 1) != 0) {
+            delta += step >> 2;
+        }
+        predictor += (nibble & 8) != 0 ? -delta : delta;
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, predictor));
+    }
+
+    private static int adapt(int index, int nibble) {
+        return Math.max(0, Math.min(STEP.length - 1, index + INDEX[nibble]));
+    }
+
+    /**
+     * @return the sample at 'i', or silence after the last frame
+    */
+    private static int sample(short[] samples, int i, int frames) {
+        return i < frames ? samples[i] : 0;
+    }
+}
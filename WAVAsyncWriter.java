@@ -0,0 +1,409 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.io.IOException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/*
+  This class allows the writing of WAV files without waiting for the disk.
+
+  Like a WAVWriter, a WAVAsyncWriter is given blocks of frames as they
+  are produced, but it encodes them into one of several rotating direct
+  buffers. When a buffer is full, it is handed to an AsynchronousFileChannel
+  and the next free buffer is used, so generating and encoding the next
+  frames overlaps with writing the previous ones. If every buffer is still
+  being written, the caller waits for one to become free, so a fast
+  producer cannot use more memory than the buffers.
+
+  The result is a CompletableFuture which completes with the number of
+  bytes written once the header has been patched and the file closed,
+  or completes exceptionally with the IOException that made a write fail.
+  Once a write has failed, every later call throws that IOException too.
+  Filling a buffer which would take the file past 4 GB, without a
+  reserved ds64 chunk, fails the same way before the buffer is written.
+*/
+public class WAVAsyncWriter implements AutoCloseable {
+    /*
+      The default number and size of the rotating buffers.
+      The size is a multiple of 2, 3 and 4 bytes.
+    */
+    public static final int DEFAULT_BUFFERS     = 3;
+    public static final int DEFAULT_BUFFER_SIZE = 3 << 18;
+
+    private final AsynchronousFileChannel channel;
+    private final WAVHeader               header;
+    private final WAVSampleFormat         format;
+
+    private final BlockingQueue<ByteBuffer> free;
+    private ByteBuffer                      current;
+
+    private long data_size;
+
+    /*
+      The number of writes which have not finished, plus one until
+      'this' is closed; 'drained' completes when it reaches zero.
+    */
+    private final AtomicInteger           outstanding = new AtomicInteger(1);
+    private final CompletableFuture<Void> drained     = new CompletableFuture<>();
+
+    private CompletableFuture<Long> result;
+
+    private volatile IOException failure;
+
+
+
+
+    /**
+     * This constructor opens a WAV file for writing with the default
+     * buffers and the usual 44 byte header, so the file must stay
+     * under 4 GB. Any existing file called 'name' is truncated.
+     *
+     * @param name the path to the WAV file that is written
+     * @param header a WAVHeader describing the format of the audio data,
+     *               which is copied rather than changed
+    */
+    public WAVAsyncWriter(String name, WAVHeader header) throws IOException {
+        this(name, header, false);
+    }
+
+    /**
+     * This constructor opens a WAV file for writing with the default buffers.
+     * Any existing file called 'name' is truncated.
+     *
+     * @param name the path to the WAV file that is written
+     * @param header a WAVHeader describing the format of the audio data,
+     *               which is copied rather than changed
+     * @param reserve_ds64 true to reserve a JUNK chunk so the file
+     *                     can become an RF64 file larger than 4 GB
+    */
+    public WAVAsyncWriter(String name, WAVHeader header, boolean reserve_ds64) throws IOException {
+        this(name, header, reserve_ds64, DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * This constructor opens a WAV file for writing.
+     * Any existing file called 'name' is truncated.
+     *
+     * @param name the path to the WAV file that is written
+     * @param header a WAVHeader describing the format of the audio data,
+     *               which is copied rather than changed
+     * @param reserve_ds64 true to reserve a JUNK chunk so the file
+     *                     can become an RF64 file larger than 4 GB
+     * @param buffers the number of rotating buffers, at least 2
+     * @param buffer_size the size of each buffer in bytes
+    */
+    public WAVAsyncWriter(String name, WAVHeader header, boolean reserve_ds64, int buffers, int buffer_size) throws IOException {
+        if (buffers < 2) {
+            throw new IllegalArgumentException("at least 2 buffers are needed to overlap writing");
+        }
+
+        this.header = header.copy();
+        if (reserve_ds64) {
+            this.header.reserveDS64();
+        }
+        this.header.setDataSize(0);
+
+        this.format  = WAVSampleFormat.of(header);
+        this.channel = AsynchronousFileChannel.open(Paths.get(name),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING);
+
+        int size = Math.max(buffer_size - buffer_size % 12, 12);
+        free = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; ++i) {
+            free.add(ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        track(write(headerBytes(), 0, 0));
+        current = take();
+    }
+
+
+
+
+    /**
+     * This method writes frames of 16-bit audio data
+     * that are stored one after another, e.g. left, right, left, right.
+     *
+     * @param frames an array of shorts storing interleaved audio data
+     * @param offset the index of the first short to write
+     * @param count the number of frames to write
+    */
+    public void writeFrames(short[] frames, int offset, int count) throws IOException {
+        int remaining = count * header.getChannels();
+        while (remaining > 0) {
+            int n = Math.min(remaining, room());
+            WAVSampleCodec.encode(frames, offset, n, format, current);
+
+            offset    += n;
+            remaining -= n;
+        }
+    }
+
+    /**
+     * This method writes frames of 32-bit audio data
+     * that are stored one after another, e.g. left, right, left, right.
+     *
+     * @param frames an array of ints storing interleaved audio data
+     * @param offset the index of the first int to write
+     * @param count the number of frames to write
+    */
+    public void writeFrames(int[] frames, int offset, int count) throws IOException {
+        int remaining = count * header.getChannels();
+        while (remaining > 0) {
+            int n = Math.min(remaining, room());
+            WAVSampleCodec.encode(frames, offset, n, format, current);
+
+            offset    += n;
+            remaining -= n;
+        }
+    }
+
+    /**
+     * This method writes frames of audio data between -1 and 1
+     * that are stored one after another, e.g. left, right, left, right.
+     *
+     * @param frames an array of floats storing interleaved audio data
+     * @param offset the index of the first float to write
+     * @param count the number of frames to write
+    */
+    public void writeFrames(float[] frames, int offset, int count) throws IOException {
+        int remaining = count * header.getChannels();
+        while (remaining > 0) {
+            int n = Math.min(remaining, room());
+            WAVSampleCodec.encode(frames, offset, n, format, current);
+
+            offset    += n;
+            remaining -= n;
+        }
+    }
+
+
+
+
+    /**
+     * This method starts writing any buffered audio data and,
+     * once every write has finished, patches the header and
+     * closes the file. It does not wait for any of this.
+     * Calling it more than once returns the same future.
+     *
+     * @return a future which completes with the size of the file in bytes
+    */
+    public CompletableFuture<Long> closeAsync() {
+        if (result != null) {
+            return result;
+        }
+
+        if (failure == null) {
+            submit();
+        }
+
+        long end = header.getHeaderSize() + data_size;
+        if ((data_size & 1) != 0) {
+            track(write(ByteBuffer.allocate(1), end, 0));
+            ++end;
+        }
+        release();   // No more writes are started, so the count can reach zero.
+
+        long size = end;
+        result = drained
+            .thenCompose(done -> {
+                if (failure != null) {
+                    throw new CompletionException(failure);
+                }
+                header.setDataSize(data_size);
+                return write(headerBytes(), 0, 0);
+            })
+            .handle((done, e) -> {
+                try {
+                    channel.close();
+                }
+                catch (IOException closing) {
+                    e = e == null ? closing : e;
+                }
+                if (e != null) {
+                    throw new CompletionException(unwrap(e));
+                }
+                return size;
+            });
+        return result;
+    }
+
+    /**
+     * This method closes the file and waits until it has been written.
+     *
+     * @throws IOException the first failure of any write
+    */
+    public void close() throws IOException {
+        try {
+            closeAsync().join();
+        }
+        catch (CompletionException e) {
+            throw unwrap(e);
+        }
+    }
+
+
+
+
+    /**
+     * @return the WAVHeader describing the file being written
+    */
+    public WAVHeader getHeader() {
+        return header;
+    }
+
+
+
+
+    /**
+     * This method hands the current buffer to the channel
+     * if it is full, and waits for a free buffer if needed.
+     *
+     * @return the number of samples that fit in the current buffer
+    */
+    private int room() throws IOException {
+        if (result != null) {
+            throw new IllegalStateException("WAVAsyncWriter is closed");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (current.remaining() < format.getBytesPerSample()) {
+            submit();
+            if (failure != null) {
+                throw failure;
+            }
+            current = take();
+        }
+        return current.remaining() / format.getBytesPerSample();
+    }
+
+    /**
+     * This method starts writing the current buffer after
+     * the data which has already been handed to the channel.
+    */
+    private void submit() {
+        ByteBuffer buffer = current;
+        if (!header.canHold(data_size + buffer.position())) {
+            buffer.clear();
+            if (failure == null) {
+                failure = new IOException("a WAV file larger than 4 GB needs a WAVAsyncWriter which reserves a ds64 chunk");
+            }
+            return;
+        }
+        buffer.flip();
+
+        long position = header.getHeaderSize() + data_size;
+        data_size += buffer.remaining();
+
+        outstanding.incrementAndGet();
+        write(buffer, position, buffer.remaining() / header.getBlockSize()).whenComplete((done, e) -> {
+            buffer.clear();
+            free.add(buffer);
+            release();
+        });
+    }
+
+    /**
+     * This method counts a write as outstanding until it has finished.
+     * 'this' still holds its own count, so the count cannot reach
+     * zero here even if the write has already finished.
+    */
+    private void track(CompletableFuture<Void> written) {
+        outstanding.incrementAndGet();
+        written.whenComplete((done, e) -> release());
+    }
+
+    private void release() {
+        if (outstanding.decrementAndGet() == 0) {
+            drained.complete(null);
+        }
+    }
+
+    private ByteBuffer take() throws IOException {
+        try {
+            return free.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a free buffer", e);
+        }
+    }
+
+    private ByteBuffer headerBytes() {
+        ByteBuffer bytes = ByteBuffer.allocate(header.getHeaderSize());
+        header.writeTo(bytes);
+        bytes.flip();
+        return bytes;
+    }
+
+    /**
+     * This method writes all of a buffer at 'position', issuing
+     * further writes when the channel writes fewer bytes than asked.
+     * A write which the channel refuses at once, e.g. because the
+     * channel is closed, fails the future rather than throwing, so
+     * the write is always counted as finished.
+     *
+     * @param frames the number of frames in the buffer, 0 for a header
+     * @return a future which completes when the buffer has been written
+    */
+    private CompletableFuture<Void> write(ByteBuffer buffer, long position, long frames) {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        WAVEvents.FileWrite     event   = new WAVEvents.FileWrite(position);
+        int                     size    = buffer.remaining();
+
+        CompletionHandler<Integer, Long> handler = new CompletionHandler<>() {
+            public void completed(Integer n, Long at) {
+                if (buffer.hasRemaining()) {
+                    start(buffer, at + n, this);
+                }
+                else {
+                    event.bytes = size;
+                    event.end(size, frames, 0, null);
+                    written.complete(null);
+                }
+            }
+
+            public void failed(Throwable e, Long at) {
+                IOException cause = e instanceof IOException ? (IOException) e : new IOException(e);
+                if (failure == null) {
+                    failure = cause;
+                }
+                event.bytes = size - buffer.remaining();
+                event.end(0, 0, 0, cause);
+                written.completeExceptionally(cause);
+            }
+        };
+        start(buffer, position, handler);
+        return written;
+    }
+
+    private void start(ByteBuffer buffer, long position, CompletionHandler<Integer, Long> handler) {
+        try {
+            channel.write(buffer, position, position, handler);
+        }
+        catch (RuntimeException e) {
+            handler.failed(e, position);
+        }
+    }
+
+    private static IOException unwrap(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e instanceof IOException ? (IOException) e : new IOException(e);
+    }
+}
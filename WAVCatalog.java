@@ -0,0 +1,234 @@
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+
+/*
+  This class makes a catalog of the WAV files in a directory tree.
+
+  Reading a header costs an open, a few small reads and a close,
+  so most of the time is spent waiting for the disk. We therefore
+  read the headers concurrently, with one virtual thread per file.
+  A semaphore bounds how many files are open at once, so a large
+  library neither runs out of file descriptors nor floods the disk.
+
+  Files which are not WAV files, or which cannot be read for any
+  reason, are recorded as failures rather than stopping the scan.
+*/
+public class WAVCatalog {
+    /**
+     * One line of the catalog.
+     *
+     * @param path the path to the WAV file
+     * @param audio_fmt 1 for integer samples, 3 for floating point samples
+     * @param channels 1 for mono, 2 for stereo
+     * @param sample_rate_per_chan the number of samples per second per channel
+     * @param bit_depth_of_sample the number of bits per sample
+     * @param data_offset the position of the audio data in the file
+     * @param data_size the size of the audio data in bytes
+     * @param frames the number of frames, which for IMA ADPCM
+     *               comes from the fact chunk, not the data size
+    */
+    public record Entry(Path path,
+                        int  audio_fmt,
+                        int  channels,
+                        int  sample_rate_per_chan,
+                        int  bit_depth_of_sample,
+                        long data_offset,
+                        long data_size,
+                        long frames) {
+
+        /**
+         * @return the length of the audio in seconds
+        */
+        public double getDuration() {
+            if (sample_rate_per_chan == 0) {
+                return 0;
+            }
+            return (double) frames / sample_rate_per_chan;
+        }
+
+        /**
+         * @return the fields of 'this' separated by tabs
+        */
+        public String toString() {
+            return String.format(Locale.ROOT, "%s\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%.3f",
+                                 path, audio_fmt, channels, sample_rate_per_chan,
+                                 bit_depth_of_sample, data_offset, data_size, frames, getDuration());
+        }
+    }
+
+
+
+
+    /*
+      The default number of files that are open at once.
+    */
+    public static final int DEFAULT_MAX_OPEN_FILES = 256;
+
+    private final List<Entry>            entries;
+    private final Map<Path, IOException> failures;
+
+
+
+
+    private WAVCatalog(List<Entry> entries, Map<Path, IOException> failures) {
+        this.entries  = entries;
+        this.failures = failures;
+    }
+
+    /**
+     * This factory method scans a directory tree for files
+     * ending in ".wav" and reads their headers concurrently.
+     *
+     * @param root the directory to scan
+     * @param max_open_files the largest number of files that are open at once
+     * @return a catalog of the WAV files found, sorted by path
+    */
+    public static WAVCatalog scan(Path root, int max_open_files) throws IOException {
+        if (max_open_files < 1) {
+            throw new IllegalArgumentException("max_open_files must be at least 1");
+        }
+
+        Semaphore                    open     = new Semaphore(max_open_files);
+        ConcurrentLinkedQueue<Entry> entries  = new ConcurrentLinkedQueue<>();
+        Map<Path, IOException>       failures = new TreeMap<>();
+
+        try (Stream<Path> paths = Files.walk(root);
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+
+            Iterator<Path> it = paths.filter(WAVCatalog::isWAVFile).iterator();
+            while (it.hasNext()) {
+                Path path = it.next();
+
+                /*
+                  We acquire a permit before starting the virtual thread,
+                  so walking the tree cannot get far ahead of the disk.
+                */
+                open.acquireUninterruptibly();
+                executor.execute(() -> {
+                    try {
+                        entries.add(read(path));
+                    }
+                    catch (IOException e) {
+                        synchronized (failures) {
+                            failures.put(path, e);
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        /*
+                          A bug in parsing a header must not lose the file,
+                          or escape to the virtual thread's handler.
+                        */
+                        synchronized (failures) {
+                            failures.put(path, new IOException(path + " could not be read: " + e, e));
+                        }
+                    }
+                    finally {
+                        open.release();
+                    }
+                });
+            }
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause(); // Files.walk failed to list a directory.
+        }
+
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing(Entry::path));
+        return new WAVCatalog(sorted, failures);
+    }
+
+
+
+
+    /**
+     * @return the WAV files found, sorted by path
+    */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the files which could not be read, with the reason why
+    */
+    public Map<Path, IOException> getFailures() {
+        return failures;
+    }
+
+    /**
+     * This method writes the catalog with one tab separated line per file.
+     *
+     * @param out where the catalog is written
+    */
+    public void writeTo(Appendable out) throws IOException {
+        out.append("path\taudio_fmt\tchannels\tsample_rate_per_chan\tbit_depth_of_sample\tdata_offset\tdata_size\tframes\tseconds\n");
+        for (Entry entry : entries) {
+            out.append(entry.toString()).append('\n');
+        }
+    }
+
+
+
+
+    /**
+     * This method prints the catalog of a directory tree.
+     *
+     * @param args the directory to scan, optionally followed by
+     *             the largest number of files that are open at once
+    */
+    public static void main(String[] args) throws IOException {
+        Path root           = Paths.get(args.length > 0 ? args[0] : ".");
+        int  max_open_files = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MAX_OPEN_FILES;
+
+        WAVCatalog catalog = scan(root, max_open_files);
+        catalog.writeTo(System.out);
+
+        for (Map.Entry<Path, IOException> failure : catalog.getFailures().entrySet()) {
+            System.err.println(failure.getKey() + ": " + failure.getValue().getMessage());
+        }
+    }
+
+
+
+
+    private static Entry read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            WAVHeader header = WAVHeader.readWAVHeader(channel);
+            return new Entry(path,
+                             header.getAudioFormat(),
+                             header.getChannels(),
+                             header.getSampleRate(),
+                             header.getBitDepth(),
+                             header.getDataOffset(),
+                             header.getDataSize(),
+                             header.getFrameCount());
+        }
+    }
+
+    static boolean isWAVFile(Path path) {
+        Path file = path.getFileName();
+        return file != null
+               && file.toString().toLowerCase(Locale.ROOT).endsWith(".wav")
+               && Files.isRegularFile(path);
+    }
+}
@@ -0,0 +1,15 @@
+/*
+  An instance of this class will be thrown
+  if someone provides the channels of a multi-channel WAV file
+  as separate arrays but the arrays have different lengths,
+  or provides the wrong number of channels.
+*/
+public class WAVChannelException extends RuntimeException {
+    public WAVChannelException(int channel, int expected, int actual) {
+        super("channel " + channel + " has " + actual + " samples but channel 0 has " + expected);
+    }
+
+    public WAVChannelException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,253 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/*
+  This class is written to find the chunks of a WAV file
+  without reading the chunks themselves.
+
+  A RIFF file is a sequence of chunks. Every chunk starts with
+  4 bytes storing its id, e.g. 'f', 'm', 't', ' ', followed by
+  an int which says how many bytes of payload follow. Chunks
+  with an odd number of bytes are followed by a pad byte.
+
+  We walk the chunks with positional reads of 8 bytes, and we
+  skip each payload by moving the position past it, so indexing
+  a file costs a few small reads no matter how much JUNK, LIST,
+  or other metadata it carries. The index records where the
+  payload of each chunk starts and how large it is.
+
+  Files that do not start with 'R', 'I', 'F', 'F' followed by
+  'W', 'A', 'V', 'E' are rejected straight away.
+
+  RF64 and BW64 files are accepted too. Their 4 byte sizes are
+  0xFFFFFFFF, so we take the RIFF size and the size of the data
+  chunk from the ds64 chunk which must follow 'W', 'A', 'V', 'E'.
+
+  In a plain RIFF file, the data chunk is cut short at the end
+  of the file. Files which are still being streamed, or which
+  were never finished, often say that their data chunk is
+  0xFFFFFFFF bytes long, and truncated files say it is longer
+  than it is, so we trust the file rather than the chunk.
+*/
+public class WAVChunkIndex {
+    /**
+     * The location of one chunk of a RIFF file.
+     *
+     * @param id the 4 characters which identify the chunk
+     * @param offset the position of the chunk's payload in the file
+     * @param size the number of bytes of payload
+    */
+    public record Chunk(String id, long offset, long size) {
+    }
+
+
+
+
+    /*
+      The walk stops after this many chunks. A WAV file
+      has a handful of chunks, so a file with more is
+      almost certainly corrupt.
+    */
+    private static final int MAX_CHUNKS = 1024;
+
+    private final String      riff_id;
+    private final List<Chunk> chunks;
+    private final long        riff_size;
+
+
+
+
+    private WAVChunkIndex(String riff_id, List<Chunk> chunks, long riff_size) {
+        this.riff_id   = riff_id;
+        this.chunks    = Collections.unmodifiableList(chunks);
+        this.riff_size = riff_size;
+    }
+
+    /**
+     * This factory method indexes the chunks of a WAV file.
+     * The position of the channel is not used or changed.
+     *
+     * @param channel a channel opened for reading a WAV file
+     * @return a WAVChunkIndex of the chunks that follow 'W', 'A', 'V', 'E'
+    */
+    public static WAVChunkIndex read(FileChannel channel) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+
+        bytes.limit(12);
+        if (!readFully(channel, bytes, 0)) {
+            throw new WAVFormatException("file is too short to be a WAV file");
+        }
+
+        String riff_id = idAt(bytes, 0);
+        boolean rf64   = riff_id.equals("RF64") || riff_id.equals("BW64");
+        if (!rf64 && !riff_id.equals("RIFF")) {
+            throw new WAVFormatException("file does not start with RIFF");
+        }
+        if (!hasId(bytes, 8, "WAVE")) {
+            throw new WAVFormatException("RIFF file is not a WAVE file");
+        }
+        long riff_size = Integer.toUnsignedLong(bytes.getInt(4));
+        long data_size = -1;
+
+        /*
+          An RF64 file stores its real sizes in a ds64 chunk,
+          whose first 16 bytes of payload are the RIFF size
+          and the data size.
+        */
+        if (rf64) {
+            bytes.clear().limit(24);
+            if (!readFully(channel, bytes, 12) || !hasId(bytes, 0, "ds64")
+                || Integer.toUnsignedLong(bytes.getInt(4)) < 16) {
+                throw new WAVFormatException(riff_id + " file does not have a ds64 chunk");
+            }
+            riff_size = bytes.getLong(8);
+            data_size = bytes.getLong(16);
+        }
+
+        /*
+          The chunks end at the end of the RIFF chunk
+          or at the end of the file, whichever is first.
+        */
+        long end    = Math.min(channel.size(), 8 + riff_size);
+        long offset = 12;
+
+        List<Chunk> chunks = new ArrayList<>();
+
+        while (offset + 8 <= end && chunks.size() < MAX_CHUNKS) {
+            bytes.clear().limit(8);
+            if (!readFully(channel, bytes, offset)) {
+                break;
+            }
+
+            String id   = idAt(bytes, 0);
+            long   size = Integer.toUnsignedLong(bytes.getInt(4));
+            if (rf64 && id.equals("data") && size == 0xFFFFFFFFL) {
+                size = data_size;
+            }
+            else if (!rf64 && id.equals("data")) {
+                size = Math.max(0, Math.min(size, channel.size() - (offset + 8)));
+            }
+            chunks.add(new Chunk(id, offset + 8, size));
+
+            offset += 8 + size + (size & 1);
+        }
+
+        return new WAVChunkIndex(riff_id, chunks, riff_size);
+    }
+
+
+
+
+    /**
+     * @param id the 4 characters which identify a chunk
+     * @return the first chunk called 'id', or null if there is none
+    */
+    public Chunk find(String id) {
+        for (Chunk chunk : chunks) {
+            if (chunk.id().equals(id)) {
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param id the 4 characters which identify a chunk
+     * @return the first chunk called 'id'
+     * @throws WAVFormatException if there is no such chunk
+    */
+    public Chunk require(String id) throws WAVFormatException {
+        Chunk chunk = find(id);
+        if (chunk == null) {
+            throw new WAVFormatException("WAV file has no '" + id + "' chunk");
+        }
+        return chunk;
+    }
+
+    /**
+     * @return every chunk found after 'W', 'A', 'V', 'E', in file order
+    */
+    public List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return 'RIFF', or 'RF64' or 'BW64' for files larger than 4 GB
+    */
+    public String getRiffId() {
+        return riff_id;
+    }
+
+    /**
+     * @return the size recorded in the RIFF chunk,
+     *         or in the ds64 chunk of an RF64 file
+    */
+    public long getRiffSize() {
+        return riff_size;
+    }
+
+
+
+
+    /**
+     * This method reads a chunk's payload, or its first 'max' bytes.
+     *
+     * @param channel a channel opened for reading the indexed file
+     * @param chunk a chunk of the indexed file
+     * @param max the largest number of bytes to read
+     * @return a little endian buffer holding the bytes read
+    */
+    public static ByteBuffer readPayload(FileChannel channel, Chunk chunk, int max) throws IOException {
+        int        size  = (int) Math.min(chunk.size(), max);
+        ByteBuffer bytes = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+
+        if (!readFully(channel, bytes, chunk.offset())) {
+            throw new EOFException("'" + chunk.id() + "' chunk is truncated");
+        }
+        bytes.flip();
+        return bytes;
+    }
+
+    /**
+     * This method fills the remaining space of a buffer
+     * with the bytes of a channel starting at 'position'.
+     *
+     * @return false if the end of the channel was reached first
+    */
+    static boolean readFully(FileChannel channel, ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            int n = channel.read(bytes, position);
+            if (n < 0) {
+                return false;
+            }
+            position += n;
+        }
+        return true;
+    }
+
+    private static boolean hasId(ByteBuffer bytes, int index, String id) {
+        for (int i = 0; i < 4; ++i) {
+            if (bytes.get(index + i) != id.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String idAt(ByteBuffer bytes, int index) {
+        char[] id = new char[4];
+        for (int i = 0; i < 4; ++i) {
+            id[i] = (char) (bytes.get(index + i) & 0xFF);
+        }
+        return new String(id);
+    }
+}
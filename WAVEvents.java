@@ -0,0 +1,152 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/*
+  This class holds the Java Flight Recorder events of the WAV library.
+
+  Every event is timed from 'begin' to 'commit', so a recording shows
+  how long each header read, sample conversion and file write took,
+  and on which thread. When JFR is not recording these events, 'begin'
+  and 'commit' do nothing and the JIT removes the event objects, so the
+  library runs as fast as it does without them.
+
+  Every event is an Operation, which also counts itself in a Counter
+  of WAVMetrics. An Operation is started by its constructor and ended
+  by 'end', so every operation is measured in one place.
+
+  Start a recording with e.g.
+
+    java -XX:StartFlightRecording:filename=wav.jfr ...
+
+  and the events appear in JDK Mission Control, or with
+  'jfr print --categories WAV wav.jfr'.
+*/
+final class WAVEvents {
+    private WAVEvents() {
+    }
+
+
+
+
+    /*
+      An operation which is counted in a WAVMetrics.Counter as well
+      as recorded as an event. Transient fields are not recorded.
+    */
+    abstract static class Operation extends Event {
+        @Label("Error")
+        String error;
+
+        private final transient WAVMetrics.Counter counter;
+        private final transient long               start;
+
+        Operation(WAVMetrics.Counter counter) {
+            this.counter = counter;
+            this.start   = WAVMetrics.start();
+            begin();
+        }
+
+        /**
+         * This method counts the operation and commits the event,
+         * whose other fields must already have been set.
+         *
+         * The JIT only removes an event object if every call which
+         * is given it is inlined, and a call in a catch block which
+         * has never run is not, so a hot caller should catch into a
+         * local variable and call 'end' after the try statement.
+         *
+         * @param cause why the operation failed, or null
+        */
+        final void end(long bytes, long frames, long samples, Throwable cause) {
+            if (cause == null) {
+                counter.record(start, bytes, frames, samples);
+            }
+            else {
+                counter.fail(start);
+            }
+            if (shouldCommit()) {
+                error = cause == null ? null : cause.toString();
+                commit();
+            }
+        }
+    }
+
+
+
+
+    @Name("wav.HeaderRead")
+    @Label("WAV Header Read")
+    @Category("WAV")
+    @Description("The chunks of a WAV file were walked and its format chunk parsed")
+    static final class HeaderRead extends Operation {
+        @Label("Audio Format")
+        int audio_fmt;
+
+        @Label("Channels")
+        int channels;
+
+        @Label("Sample Rate")
+        int sample_rate_per_chan;
+
+        @Label("Bit Depth")
+        int bit_depth_of_sample;
+
+        @Label("Data Size")
+        @DataAmount
+        long data_size;
+
+        HeaderRead() {
+            super(WAVMetrics.HEADER_READS);
+        }
+    }
+
+    @Name("wav.SampleConversion")
+    @Label("WAV Sample Conversion")
+    @Category("WAV")
+    @Description("Samples were encoded into, or decoded from, the bytes of a WAV file")
+    static final class SampleConversion extends Operation {
+        @Label("Encode")
+        @Description("True for encoding, false for decoding")
+        boolean encode;
+
+        @Label("Format")
+        String format;
+
+        @Label("Samples")
+        int samples;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        SampleConversion(boolean encode, WAVSampleFormat format, int samples) {
+            super(encode ? WAVMetrics.ENCODING : WAVMetrics.DECODING);
+            this.encode  = encode;
+            this.format  = format.name();
+            this.samples = samples;
+            this.bytes   = (long) samples * format.getBytesPerSample();
+        }
+    }
+
+    @Name("wav.FileWrite")
+    @Label("WAV File Write")
+    @Category("WAV")
+    @Description("Bytes of a WAV file were written to its channel")
+    static final class FileWrite extends Operation {
+        @Label("Position")
+        long position;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        FileWrite(long position) {
+            super(WAVMetrics.WRITES);
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.IntBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.io.IOException;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/*
+  This class allows the reading of pre-existing WAV files
+  without copying their audio data onto the heap.
+
+  The data chunk is mapped into memory with FileChannel.map,
+  and the samples are exposed as little endian buffer views
+  which match the format described by the file's WAVHeader:
+
+   - ShortBuffer for 16-bit integer samples;
+   - IntBuffer   for 32-bit integer samples;
+   - FloatBuffer for 32-bit floating point samples.
+
+  Other formats, e.g. 24-bit integer samples, are available
+  as a ByteBuffer, and frames of any format can be decoded in
+  bulk into short[], int[] or float[] arrays by WAVSampleCodec.
+
+  Because the pages belong to the OS page cache, several
+  processes mapping the same file share the same memory.
+
+  A single buffer cannot be larger than 2^31 - 1 bytes,
+  so the views of larger files are taken over ranges of frames.
+  To read frames of such files, the data chunk is mapped as
+  windows of about WINDOW_SIZE bytes, each of which overlaps the
+  next by OVERLAP bytes, so any read of up to OVERLAP bytes lies in
+  a single window. A window is mapped the first time it is read and
+  then kept, so reading a file block by block maps it only a few
+  times rather than once per block. Frames are decoded from their
+  window at absolute indexes, so the window is never duplicated
+  and reading a block does not allocate.
+*/
+public class WAVFile implements AutoCloseable {
+    /*
+      The size of a window of a data chunk larger than 2 GB,
+      and how far it overlaps the next window, in bytes, before
+      they are rounded down to a whole number of frames.
+    */
+    static final int WINDOW_SIZE = 1 << 30;
+    static final int OVERLAP     = 1 << 26;
+
+    private final Path            path;
+    private final FileChannel     channel;
+    private final WAVHeader       header;
+    private final WAVSampleFormat format;   // null if WAVSampleCodec cannot decode the samples.
+
+    private final long data_offset;
+    private final long data_size;
+
+    /*
+      The distance between the starts of windows, and the size of
+      the overlap, in bytes. A data chunk of up to 2 GB is a single
+      window which is the whole data chunk.
+    */
+    private final long stride;
+    private final long overlap;
+
+    /*
+      The windows of the data chunk, each mapped lazily
+      the first time that it is asked for.
+    */
+    private final AtomicReferenceArray<MappedByteBuffer> windows;
+
+
+
+
+    private WAVFile(Path path, FileChannel channel, WAVHeader header) throws IOException {
+        this.path        = path;
+        this.channel     = channel;
+        this.header      = header;
+        this.format      = WAVSampleFormat.find(header.getAudioFormat(), header.getBitDepth());
+        this.data_offset = header.getDataOffset();
+
+        /*
+          We trust the file rather than the header
+          when the file has been truncated.
+        */
+        long data_size = header.getDataSize();
+        this.data_size = Math.max(0, Math.min(data_size, channel.size() - data_offset));
+
+        long block = header.getBlockSize();
+        if (this.data_size <= Integer.MAX_VALUE) {
+            this.stride  = Math.max(this.data_size, 1);
+            this.overlap = 0;
+        }
+        else {
+            this.stride  = WINDOW_SIZE / block * block;
+            this.overlap = OVERLAP / block * block;
+        }
+        this.windows = new AtomicReferenceArray<>((int) Math.max(1, (this.data_size + stride - 1) / stride));
+    }
+
+    /**
+     * This factory method opens a pre-existing WAV file for reading.
+     *
+     * @param name the path to the WAV file to read
+     * @return a WAVFile whose data chunk can be mapped
+    */
+    public static WAVFile open(String name) throws IOException {
+        Path        path    = Paths.get(name);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            return new WAVFile(path, channel, WAVHeader.readWAVHeader(channel));
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+
+
+    /**
+     * @return the path that the file was opened with
+    */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return the WAVHeader read from the start of the file
+    */
+    public WAVHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * @return the number of complete frames in the data chunk
+    */
+    public long getFrameCount() {
+        return data_size / header.getBlockSize();
+    }
+
+
+
+
+    /**
+     * @return a read-only, little endian view of the whole data chunk
+    */
+    public ByteBuffer asByteBuffer() throws IOException {
+        if (data_size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("data chunk is too large for a single buffer; map a range of frames");
+        }
+        return window(0).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @param first the index of the first frame to map
+     * @param count the number of frames to map
+     * @return a read-only, little endian view of the frames
+    */
+    public ByteBuffer asByteBuffer(long first, int count) throws IOException {
+        long block = header.getBlockSize();
+        if (first < 0 || count < 0 || first + count > getFrameCount()) {
+            throw new IndexOutOfBoundsException("frames " + first + " to " + (first + count)
+                                                + " are not in a file of " + getFrameCount() + " frames");
+        }
+        if (block * count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many frames for a single buffer");
+        }
+
+        MappedByteBuffer range = channel.map(FileChannel.MapMode.READ_ONLY,
+                                             data_offset + block * first,
+                                             block * count);
+        range.order(ByteOrder.LITTLE_ENDIAN);
+        return range;
+    }
+
+
+
+
+    /**
+     * @return a view of the whole data chunk for 16-bit integer samples
+    */
+    public ShortBuffer asShortBuffer() throws IOException {
+        checkFormat(1, 16);
+        return asByteBuffer().asShortBuffer();
+    }
+
+    /**
+     * @param first the index of the first frame to map
+     * @param count the number of frames to map
+     * @return a view of the frames for 16-bit integer samples
+    */
+    public ShortBuffer asShortBuffer(long first, int count) throws IOException {
+        checkFormat(1, 16);
+        return asByteBuffer(first, count).asShortBuffer();
+    }
+
+    /**
+     * @return a view of the whole data chunk for 32-bit integer samples
+    */
+    public IntBuffer asIntBuffer() throws IOException {
+        checkFormat(1, 32);
+        return asByteBuffer().asIntBuffer();
+    }
+
+    /**
+     * @param first the index of the first frame to map
+     * @param count the number of frames to map
+     * @return a view of the frames for 32-bit integer samples
+    */
+    public IntBuffer asIntBuffer(long first, int count) throws IOException {
+        checkFormat(1, 32);
+        return asByteBuffer(first, count).asIntBuffer();
+    }
+
+    /**
+     * @return a view of the whole data chunk for 32-bit floating point samples
+    */
+    public FloatBuffer asFloatBuffer() throws IOException {
+        checkFormat(3, 32);
+        return asByteBuffer().asFloatBuffer();
+    }
+
+    /**
+     * @param first the index of the first frame to map
+     * @param count the number of frames to map
+     * @return a view of the frames for 32-bit floating point samples
+    */
+    public FloatBuffer asFloatBuffer(long first, int count) throws IOException {
+        checkFormat(3, 32);
+        return asByteBuffer(first, count).asFloatBuffer();
+    }
+
+
+
+
+    /**
+     * This method decodes frames into an array of 16-bit samples.
+     *
+     * @param first the index of the first frame to decode
+     * @param count the number of frames to decode
+     * @param dst where the interleaved samples are stored
+     * @param off the index in 'dst' of the first sample
+    */
+    public void readFrames(long first, int count, short[] dst, int off) throws IOException {
+        WAVSampleCodec.decode(frames(first, count), offset(first, count), format(), dst, off, count * header.getChannels());
+    }
+
+    /**
+     * This method decodes frames into an array of 32-bit samples.
+     *
+     * @param first the index of the first frame to decode
+     * @param count the number of frames to decode
+     * @param dst where the interleaved samples are stored
+     * @param off the index in 'dst' of the first sample
+    */
+    public void readFrames(long first, int count, int[] dst, int off) throws IOException {
+        WAVSampleCodec.decode(frames(first, count), offset(first, count), format(), dst, off, count * header.getChannels());
+    }
+
+    /**
+     * This method decodes frames into an array of samples between -1 and 1.
+     *
+     * @param first the index of the first frame to decode
+     * @param count the number of frames to decode
+     * @param dst where the interleaved samples are stored
+     * @param off the index in 'dst' of the first sample
+    */
+    public void readFrames(long first, int count, float[] dst, int off) throws IOException {
+        WAVSampleCodec.decode(frames(first, count), offset(first, count), format(), dst, off, count * header.getChannels());
+    }
+
+
+
+
+    /**
+     * This method closes the file. Buffers that have already
+     * been mapped stay valid until they are garbage collected.
+    */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return the window which holds the frames, which is shared
+     *         and so must only be read at absolute indexes, or a
+     *         mapping of their own if they are larger than the
+     *         overlap of two windows
+    */
+    private ByteBuffer frames(long first, int count) throws IOException {
+        if (first < 0 || count < 0 || first + count > getFrameCount()) {
+            throw new IndexOutOfBoundsException("frames " + first + " to " + (first + count)
+                                                + " are not in a file of " + getFrameCount() + " frames");
+        }
+        if (!fits(first, count)) {
+            return asByteBuffer(first, count);
+        }
+        return window(indexOf(first));
+    }
+
+    /**
+     * @return the index of frame 'first' in what 'frames' returns
+    */
+    private int offset(long first, int count) {
+        return fits(first, count) ? (int) (first * header.getBlockSize() - indexOf(first) * stride) : 0;
+    }
+
+    /**
+     * @return true if the frames lie in a single window
+    */
+    private boolean fits(long first, int count) {
+        int index = indexOf(first);
+        return (first + count) * header.getBlockSize() <= index * stride + windowSize(index);
+    }
+
+    /**
+     * @return the window in which frame 'first' starts, or the last
+     *         window for the empty range at the end of the file
+    */
+    private int indexOf(long first) {
+        return (int) Math.min(first * header.getBlockSize() / stride, windows.length() - 1);
+    }
+
+    private WAVSampleFormat format() throws WAVFormatException {
+        return format != null ? format : WAVSampleFormat.of(header);
+    }
+
+    /**
+     * @return window 'index', which is mapped if this is the first time
+     *         it is asked for; threads which ask at once may each map
+     *         it, but they all go on to use the same mapping
+    */
+    private MappedByteBuffer window(int index) throws IOException {
+        MappedByteBuffer window = windows.get(index);
+        if (window == null) {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, data_offset + index * stride, windowSize(index));
+            if (!windows.compareAndSet(index, null, window)) {
+                window = windows.get(index);
+            }
+        }
+        return window;
+    }
+
+    private long windowSize(int index) {
+        return Math.min(stride + overlap, data_size - index * stride);
+    }
+
+    private void checkFormat(int audio_fmt, int bit_depth_of_sample) {
+        if (header.getAudioFormat() != audio_fmt || header.getBitDepth() != bit_depth_of_sample) {
+            throw new IllegalStateException("WAV file stores " + header.getBitDepth() + "-bit samples"
+                                            + " of audio format " + header.getAudioFormat());
+        }
+    }
+}
@@ -0,0 +1,15 @@
+import java.io.IOException;
+
+
+/*
+  An instance of this class will be thrown
+  if someone attempts to read a WAVHeader from a file
+  which is not a well-formed WAV file, e.g. because it
+  does not start with 'R', 'I', 'F', 'F', or because
+  it has no format chunk or no data chunk.
+*/
+public class WAVFormatException extends IOException {
+    public WAVFormatException(String message) {
+        super(message);
+    }
+}
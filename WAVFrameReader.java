@@ -0,0 +1,262 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/*
+  This class serves ranges of frames of one WAV file
+  to many threads at once, e.g. excerpts for many clients.
+
+  The file is opened once. Frame 'f' starts at byte
+  'getDataOffset() + f * getBlockSize()' of the file, so every request
+  is a positional read at that offset into a direct buffer, and the
+  samples are decoded straight from the buffer by WAVSampleCodec.
+  Positional reads do not move a shared position, so requests from
+  different threads do not wait for each other.
+
+  The direct buffers are taken from a pool and given back after each
+  request, so a request does not allocate. The pool is a lock-free
+  queue; it keeps at most MAX_POOLED buffers, and makes a new buffer
+  whenever every pooled buffer is in use. Requests larger than a
+  buffer are read a buffer at a time.
+
+  Unlike a WAVFile, nothing is mapped, so a WAVFrameReader suits
+  files that are larger than the address space that one would want
+  to map, and many small requests spread over many files.
+*/
+public final class WAVFrameReader implements AutoCloseable {
+    /*
+      The size of each direct buffer in bytes,
+      before it is rounded down to a whole number of frames.
+    */
+    static final int BUFFER_SIZE = 3 << 16;
+
+    /*
+      The largest number of idle buffers kept by the pool, i.e. 12 MB.
+      Requests mostly wait for the disk rather than a core, so there
+      can be many more requests at once than there are cores.
+    */
+    static final int MAX_POOLED = 64;
+
+    private final FileChannel     channel;
+    private final WAVHeader       header;
+    private final WAVSampleFormat format;
+
+    private final long data_offset;
+    private final long frames;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> pool      = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger                     pooled    = new AtomicInteger();
+    private final AtomicInteger                     allocated = new AtomicInteger();
+
+
+
+
+    private WAVFrameReader(FileChannel channel, WAVHeader header) throws IOException {
+        this.channel     = channel;
+        this.header      = header;
+        this.format      = WAVSampleFormat.of(header);
+        this.data_offset = header.getDataOffset();
+
+        /*
+          We trust the file rather than the header
+          when the file has been truncated.
+        */
+        long data_size = Math.max(0, Math.min(header.getDataSize(), channel.size() - data_offset));
+        this.frames = data_size / header.getBlockSize();
+    }
+
+    /**
+     * This factory method opens a pre-existing WAV file for reading.
+     *
+     * @param name the path to the WAV file to read
+     * @return a WAVFrameReader for the file
+     * @throws WAVFormatException if the samples of the file are not supported
+    */
+    public static WAVFrameReader open(String name) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(name), StandardOpenOption.READ);
+
+        try {
+            return new WAVFrameReader(channel, WAVHeader.readWAVHeader(channel));
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+
+
+    /**
+     * @return the WAVHeader read from the start of the file
+    */
+    public WAVHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * @return the number of complete frames in the data chunk
+    */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * @return the number of direct buffers made so far, which
+     *         stops growing once there are enough for every thread
+    */
+    public int getBuffersAllocated() {
+        return allocated.get();
+    }
+
+
+
+
+    /**
+     * This method decodes frames into an array of 16-bit samples.
+     * It may be called from many threads at once.
+     *
+     * @param first the index of the first frame to read
+     * @param count the number of frames to read
+     * @param dst where the interleaved samples are stored
+     * @param off the index in 'dst' of the first sample
+    */
+    public void readFrames(long first, int count, short[] dst, int off) throws IOException {
+        checkRange(first, count);
+        ByteBuffer buffer = take();
+        try {
+            int per_read = buffer.capacity() / header.getBlockSize();
+            for (int done = 0; done < count; ) {
+                int n = Math.min(per_read, count - done);
+                read(buffer, first + done, n);
+                WAVSampleCodec.decode(buffer, format, dst, off, n * header.getChannels());
+                off  += n * header.getChannels();
+                done += n;
+            }
+        }
+        finally {
+            give(buffer);
+        }
+    }
+
+    /**
+     * This method decodes frames into an array of 32-bit samples.
+     * It may be called from many threads at once.
+     *
+     * @param first the index of the first frame to read
+     * @param count the number of frames to read
+     * @param dst where the interleaved samples are stored
+     * @param off the index in 'dst' of the first sample
+    */
+    public void readFrames(long first, int count, int[] dst, int off) throws IOException {
+        checkRange(first, count);
+        ByteBuffer buffer = take();
+        try {
+            int per_read = buffer.capacity() / header.getBlockSize();
+            for (int done = 0; done < count; ) {
+                int n = Math.min(per_read, count - done);
+                read(buffer, first + done, n);
+                WAVSampleCodec.decode(buffer, format, dst, off, n * header.getChannels());
+                off  += n * header.getChannels();
+                done += n;
+            }
+        }
+        finally {
+            give(buffer);
+        }
+    }
+
+    /**
+     * This method decodes frames into an array of samples between -1 and 1.
+     * It may be called from many threads at once.
+     *
+     * @param first the index of the first frame to read
+     * @param count the number of frames to read
+     * @param dst where the interleaved samples are stored
+     * @param off the index in 'dst' of the first sample
+    */
+    public void readFrames(long first, int count, float[] dst, int off) throws IOException {
+        checkRange(first, count);
+        ByteBuffer buffer = take();
+        try {
+            int per_read = buffer.capacity() / header.getBlockSize();
+            for (int done = 0; done < count; ) {
+                int n = Math.min(per_read, count - done);
+                read(buffer, first + done, n);
+                WAVSampleCodec.decode(buffer, format, dst, off, n * header.getChannels());
+                off  += n * header.getChannels();
+                done += n;
+            }
+        }
+        finally {
+            give(buffer);
+        }
+    }
+
+
+
+
+    /**
+     * This method closes the file. Requests which are
+     * still reading fail with a ClosedChannelException.
+    */
+    public void close() throws IOException {
+        channel.close();
+        pool.clear();
+    }
+
+    /**
+     * This method reads 'count' frames starting at frame 'first'
+     * into 'buffer', which is left ready to be decoded.
+    */
+    private void read(ByteBuffer buffer, long first, int count) throws IOException {
+        buffer.clear().limit(count * header.getBlockSize());
+
+        long position = data_offset + first * header.getBlockSize();
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("WAV file ended before frame " + (first + count));
+            }
+        }
+        buffer.flip();
+    }
+
+    private ByteBuffer take() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            return buffer;
+        }
+        allocated.incrementAndGet();
+
+        int size = Math.max(BUFFER_SIZE / header.getBlockSize(), 1) * header.getBlockSize();
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void give(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() <= MAX_POOLED) {
+            pool.offer(buffer);
+        }
+        else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    private void checkRange(long first, int count) {
+        if (first < 0 || count < 0 || first + count > frames) {
+            throw new IndexOutOfBoundsException("frames " + first + " to " + (first + count)
+                                                + " are not in a file of " + frames + " frames");
+        }
+    }
+}
@@ -1,10 +1,12 @@
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Paths;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 
-import java.io.InputStream;
 import java.io.IOException;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 
 
 
@@ -27,13 +29,14 @@ import java.io.FileNotFoundException;
   displays all relevant information stored by a header.
 
   There are 'getHeaderSize' and 'getDataSize' methods,
-  and there is a convenient 'getBytes' method.
+  getters for the format fields, and there are
+  convenient 'getBytes' and 'writeTo' methods.
 */
 
 
 
 
-public class WAVHeader {
+public class WAVHeader implements Cloneable {
     /*
       With the exception of 'junk'
       (which indicates whether or not there's a JUNK chunk)
@@ -130,19 +133,69 @@ public class WAVHeader {
 
       OTHER CHUNKS
 
-        After the audio data, there could be other chunks.
-        This class does not consider these chunks.
+        Before or after the audio data, there could be other
+        chunks, e.g. LIST or fact chunks. When a header is read
+        from a file, a WAVChunkIndex is used to skip them, and
+        'data_offset' records where the audio data really starts.
+        This class does not otherwise consider these chunks.
+
+
+      RF64 AND BW64
+
+        A RIFF file cannot be larger than 4 GB because its sizes
+        are stored in 4 bytes. RF64 (and BW64, which is the same)
+        files start with 'R', 'F', '6', '4' instead. Their RIFF and
+        data sizes are stored as 0xFFFFFFFF, and the real sizes are
+        stored as longs in a ds64 chunk which comes straight after
+        'W', 'A', 'V', 'E'. Its 28 bytes of payload are...
+
+          8 bytes - the RIFF size
+          8 bytes - the data size
+          8 bytes - the number of frames
+          4 bytes - the length of a table we do not use, i.e. 0
+
+        A ds64 chunk fits exactly where a JUNK chunk of 28 bytes
+        was reserved, so a file that was written as a RIFF file
+        becomes an RF64 file by rewriting its header in place.
+        We store a ds64 chunk as the JUNK chunk, with 'rf64' true.
+
+
+      WAVE_FORMAT_EXTENSIBLE
+
+        When the audio format is 0xFFFE, the format chunk is
+        longer than 16 bytes and the real audio format is stored
+        in the first 2 bytes of a "sub format" at byte 24 of the
+        format chunk. We store the real audio format, so the
+        header is written back as a plain 16 byte format chunk.
+
+
+      IMA ADPCM
+
+        When the audio format is 0x11, each sample is compressed
+        into 4 bits by WAVADPCMCodec, in blocks of the block size.
+        The format chunk is 20 bytes long, and its 16 usual bytes
+        are followed by...
+
+          2 bytes - the number of extra bytes, i.e. 2
+          2 bytes - the number of frames in a block
+
+        A frame no longer takes a whole number of bytes, so a fact
+        chunk comes between the format chunk and the data chunk.
+        It starts with 4 bytes that store the characters 'f', 'a',
+        'c', 't', then the int 4, then an int which says how many
+        frames there are. We only keep the fact chunk of IMA ADPCM
+        files, since other files do not need it.
     */
-    private char[]  riff_header;
-    private int     riff_size;
+    private int     riff_header;
+    private long    riff_size;
 
-    private char[]  wave_header;
+    private int     wave_header;
 
     private boolean junk;
-    private char[]  junk_header;
+    private int     junk_header;
     private int     junk_size;
 
-    private char[]  fmt_header;
+    private int     fmt_header;
     private int     fmt_size;
     private short   audio_fmt;
     private short   channels;
@@ -150,9 +203,43 @@ public class WAVHeader {
     private int     bytes_per_sec;
     private short   block_size_in_bytes;
     private short   bit_depth_of_sample;
+    private short   samples_per_block;
+
+    private boolean fact;
+    private int     fact_header;
+    private int     fact_size;
+    private long    sample_length;
+
+    private int     data_header;
+    private long    data_size;
+
+    private boolean rf64;
+    private long    data_offset;
+
+
 
-    private char[]  data_header;
-    private int     data_size;
+
+    /*
+      The largest size that can be stored in 4 bytes, and
+      the number of bytes of payload of a ds64 chunk.
+    */
+    static final long MAX_RIFF_SIZE = 0xFFFFFFFFL;
+    static final int  DS64_SIZE     = 28;
+
+    /*
+      The 4 characters of each id, packed into an int so that
+      writing the int in little endian writes the characters
+      in order. Storing ids this way means that headers do not
+      copy arrays of characters around.
+    */
+    static final int RIFF = fourCC("RIFF");
+    static final int RF64 = fourCC("RF64");
+    static final int WAVE = fourCC("WAVE");
+    static final int JUNK = fourCC("JUNK");
+    static final int DS64 = fourCC("ds64");
+    static final int FMT  = fourCC("fmt ");
+    static final int FACT = fourCC("fact");
+    static final int DATA = fourCC("data");
 
 
 
@@ -165,15 +252,23 @@ public class WAVHeader {
       be 0, but our constructors can edit these values if necessary.
     */
     {
-        riff_header = new char[] { 'R', 'I', 'F', 'F' };
-        wave_header = new char[] { 'W', 'A', 'V', 'E' };
-        junk_header = new char[] { 'J', 'U', 'N', 'K' };
-         fmt_header = new char[] { 'f', 'm', 't', ' ' };
-        data_header = new char[] { 'd', 'a', 't', 'a' };
+        riff_header = RIFF;
+        wave_header = WAVE;
+        junk_header = JUNK;
+         fmt_header = FMT;
+        fact_header = FACT;
+        data_header = DATA;
 
         junk      = false;
         junk_size = 0;
         fmt_size = 16;
+
+        fact      = false;
+        fact_size = 4;
+
+        rf64 = false;
+
+        data_offset = -1; // Only known for headers read from files.
     }
 
 
@@ -184,13 +279,15 @@ public class WAVHeader {
      * @param channels              1 for mono, 2 for stereo
      * @param sample_rate_per_chan  often 44_100 or 48_000
      * @param bit_depth_of_sample   16, 24, or 32
-     * @param samples_per_channel   depends on the audio file length
+     * @param samples_per_channel   depends on the audio file length;
+     *                              an RF64 header is made if the file
+     *                              would be larger than 4 GB
     */
-    public WAVHeader(int audio_fmt,
-                     int channels,
-                     int sample_rate_per_chan,
-                     int bit_depth_of_sample,
-                     int samples_per_channel) {
+    public WAVHeader(int  audio_fmt,
+                     int  channels,
+                     int  sample_rate_per_chan,
+                     int  bit_depth_of_sample,
+                     long samples_per_channel) {
 
         this.audio_fmt            = (short) audio_fmt;
         this.channels             = (short) channels;
@@ -199,8 +296,12 @@ public class WAVHeader {
         this.block_size_in_bytes  = (short) (channels * (bit_depth_of_sample / 8));
 
         this.bytes_per_sec        = this.block_size_in_bytes * sample_rate_per_chan;
-        this.data_size            = this.block_size_in_bytes * samples_per_channel;
-        this.riff_size            = this.getHeaderSize() - 8 + this.getDataSize();
+
+        long data_size = this.block_size_in_bytes * samples_per_channel;
+        if (44 - 8 + data_size + (data_size & 1) > MAX_RIFF_SIZE) {
+            reserveJunk();
+        }
+        this.setDataSize(data_size);
     }
 
 
@@ -234,6 +335,79 @@ public class WAVHeader {
         return new WAVHeader(1, 2, 44100, 16, left.length);
     }
 
+    /**
+     * This factory method creates a WAVHeader
+     * for compact disk quality audio with any
+     * number of channels, e.g. 6 for 5.1 surround.
+     * 
+     * @param channels an array of shorts for every channel
+     * @return a WAVHeader compatible with the audio data provided
+     * @throws WAVChannelException if the channels have different lengths
+    */
+    public static WAVHeader makeWAVHeaderForCompactDiskQualityAudio(short[][] channels) {
+        int samples_per_channel = WAVInterleaver.checkLengths(channels);
+        return new WAVHeader(1, channels.length, 44100, 16, samples_per_channel);
+    }
+
+
+
+
+    /**
+     * This factory method creates a WAVHeader
+     * for audio data stored outside of the Java heap.
+     * 
+     * @param audio an AudioBuffer containing audio data
+     * @return a WAVHeader compatible with the audio data provided
+    */
+    public static WAVHeader makeWAVHeaderForAudioBuffer(AudioBuffer audio) {
+        return audio.makeWAVHeader();
+    }
+
+    /**
+     * This factory method creates a WAVHeader for IMA ADPCM audio,
+     * with the usual block size for its sample rate.
+     *
+     * @param channels             1 for mono, 2 for stereo
+     * @param sample_rate_per_chan often 44_100 or 48_000
+     * @param samples_per_channel  the number of frames
+     * @return a WAVHeader with audio format 0x11 and a fact chunk
+    */
+    public static WAVHeader makeWAVHeaderForIMAADPCM(int channels, int sample_rate_per_chan, long samples_per_channel) {
+        return makeWAVHeaderForIMAADPCM(channels, sample_rate_per_chan,
+                                        WAVADPCMCodec.getBlockAlign(channels, sample_rate_per_chan),
+                                        samples_per_channel);
+    }
+
+    /**
+     * @param channels             1 for mono, 2 for stereo
+     * @param sample_rate_per_chan often 44_100 or 48_000
+     * @param block_align          the size of a block in bytes
+     * @param samples_per_channel  the number of frames
+     * @return a WAVHeader with audio format 0x11 and a fact chunk
+     * @throws IllegalArgumentException if 'block_align' does not hold whole
+     *         groups of samples, or there are too many frames for a fact chunk
+    */
+    public static WAVHeader makeWAVHeaderForIMAADPCM(int channels, int sample_rate_per_chan, int block_align, long samples_per_channel) {
+        if (samples_per_channel < 0 || samples_per_channel > MAX_RIFF_SIZE) {
+            throw new IllegalArgumentException(samples_per_channel + " frames do not fit in a fact chunk");
+        }
+        WAVHeader header = new WAVHeader(WAVADPCMCodec.AUDIO_FORMAT, channels, sample_rate_per_chan, WAVADPCMCodec.BIT_DEPTH, 0);
+
+        header.fmt_size            = 20;
+        header.block_size_in_bytes = (short) block_align;
+        header.samples_per_block   = (short) WAVADPCMCodec.getSamplesPerBlock(block_align, channels);
+        header.bytes_per_sec       = (int) ((long) sample_rate_per_chan * block_align / header.samples_per_block);
+        header.fact                = true;
+        header.sample_length       = samples_per_channel;
+
+        long data_size = WAVADPCMCodec.getBlockCount(samples_per_channel, header.samples_per_block) * block_align;
+        if (header.getHeaderSize() - 8 + data_size + (data_size & 1) > MAX_RIFF_SIZE) {
+            header.reserveDS64();
+        }
+        header.setDataSize(data_size);
+        return header;
+    }
+
 
 
 
@@ -242,42 +416,72 @@ public class WAVHeader {
      * 
      * @param name the path to the WAV file to read
      * @return a WAVHeader storing the header read from 'name'
+     * @throws WAVFormatException if 'name' is not a WAV file
      *
     */
     public static WAVHeader readWAVHeaderFromFile(String name) throws IOException {
-        InputStream in = null;
-        byte[]   bytes = new byte[4096]; // A WAVHeader should always
-                                         // be fewer than 4096 bytes.
-        try {
-            in = new FileInputStream(name);
-            in.read(bytes);
+        try (FileChannel channel = FileChannel.open(Paths.get(name), StandardOpenOption.READ)) {
+            return readWAVHeader(channel);
         }
-        catch (FileNotFoundException e) {
+        catch (NoSuchFileException e) {
             System.out.println("File called " + name + " not found");
             throw e; // We won't have the necessary information to create a WAVHeader.
         }
+        catch (WAVFormatException e) {
+            System.out.println("File called " + name + " is not a WAV file: " + e.getMessage());
+            throw e;
+        }
         catch (IOException e) {
             System.out.println("Reading from file called " + name + " failed");
             throw e; // We won't have the necessary information to create a WAVHeader.
         }
-        finally {
-            if (in != null) {
-                try {
-                    in.close();
-                }
-                catch (IOException e) {
-                    System.out.println("Closing stream for file called " + name + " failed");
-                }
+    }
+
+    /**
+     * This factory method reads a header from a channel
+     * which has been opened for reading a WAV file.
+     * Only the chunk headers and the format chunk are read.
+     * 
+     * @param channel a channel opened for reading a WAV file
+     * @return a WAVHeader storing the header read from 'channel'
+     * @throws WAVFormatException if 'channel' is not reading a WAV file
+    */
+    public static WAVHeader readWAVHeader(FileChannel channel) throws IOException {
+        WAVEvents.HeaderRead event = new WAVEvents.HeaderRead();
+
+        WAVHeader header;
+        try {
+            WAVChunkIndex index = WAVChunkIndex.read(channel);
+
+            /*
+              We only need the first 40 bytes of the format chunk,
+              which is enough for WAVE_FORMAT_EXTENSIBLE.
+            */
+            WAVChunkIndex.Chunk fmt = index.require("fmt ");
+            if (fmt.size() < 16) {
+                throw new WAVFormatException("'fmt ' chunk is shorter than 16 bytes");
             }
+
+            /*
+              IMA ADPCM files also need the number of frames in their fact chunk.
+            */
+            WAVChunkIndex.Chunk fact = index.find("fact");
+            header = new WAVHeader(index,
+                                   WAVChunkIndex.readPayload(channel, fmt, 40),
+                                   fact == null || fact.size() < 4 ? null : WAVChunkIndex.readPayload(channel, fact, 4));
+        }
+        catch (IOException | RuntimeException e) {
+            event.end(0, 0, 0, e);
+            throw e;
         }
 
-        /*
-          We return a new instance of WAVHeader
-          constructed from an array of bytes which
-          stores the bytes at the start of the file
-          called 'name'.
-        */
-        return new WAVHeader(bytes);
+        event.audio_fmt            = header.getAudioFormat();
+        event.channels             = header.getChannels();
+        event.sample_rate_per_chan = header.getSampleRate();
+        event.bit_depth_of_sample  = header.getBitDepth();
+        event.data_size            = header.getDataSize();
+        event.end(header.getHeaderSize(), header.getFrameCount(), 0, null);
+        return header;
     }
 
 
@@ -288,35 +492,47 @@ public class WAVHeader {
      *         that would be written to a WAV file
     */
     public String toString() {
-        String s = "";
+        StringBuilder s = new StringBuilder(400);
 
 
-        s += "riff_header          " + riff_header[0] + riff_header[1] + riff_header[2] + riff_header[3] + "\n";
-        s += "riff_size            " + riff_size                                                         + "\n";
+        appendFourCC(s.append("riff_header          "), riff_header).append('\n');
+        s.append("riff_size            ").append(riff_size).append('\n');
 
-        s += "wave_header          " + wave_header[0] + wave_header[1] + wave_header[2] + wave_header[3] + "\n";
+        appendFourCC(s.append("wave_header          "), wave_header).append('\n');
 
 
         if (junk) {
-            s += "junk_header          " + junk_header[0] + junk_header[1] + junk_header[2] + junk_header[3] + "\n";
-            s += "junk_size            " + junk_size                                                         + "\n";
+            appendFourCC(s.append("junk_header          "), junk_header).append('\n');
+            s.append("junk_size            ").append(junk_size).append('\n');
         }
 
 
-        s += "fmt_header           " +  fmt_header[0] +  fmt_header[1] +  fmt_header[2] +  fmt_header[3] + "\n";
-        s += "fmt_size             " + fmt_size                                                          + "\n";
-        s += "audio_fmt            " + audio_fmt                                                         + "\n";
-        s += "channels             " + channels                                                          + "\n";
-        s += "sample_rate_per_chan " + sample_rate_per_chan                                              + "\n";
-        s += "bytes_per_sec        " + bytes_per_sec                                                     + "\n";
-        s += "block_size_in_bytes  " + block_size_in_bytes                                               + "\n";
-        s += "bit_depth_of_sample  " + bit_depth_of_sample                                               + "\n";
+        appendFourCC(s.append("fmt_header           "), fmt_header).append('\n');
+        s.append("fmt_size             ").append(fmt_size).append('\n');
+        s.append("audio_fmt            ").append(audio_fmt).append('\n');
+        s.append("channels             ").append(channels).append('\n');
+        s.append("sample_rate_per_chan ").append(sample_rate_per_chan).append('\n');
+        s.append("bytes_per_sec        ").append(bytes_per_sec).append('\n');
+        s.append("block_size_in_bytes  ").append(block_size_in_bytes).append('\n');
+        s.append("bit_depth_of_sample  ").append(bit_depth_of_sample).append('\n');
+
+        if (fmt_size >= 20) {
+            s.append("samples_per_block    ").append(samples_per_block).append('\n');
+        }
 
-        s += "data_header          " + data_header[0] + data_header[1] + data_header[2] + data_header[3] + "\n";
-        s += "data_size            " + data_size                                                         + "\n";
 
+        if (fact) {
+            appendFourCC(s.append("fact_header          "), fact_header).append('\n');
+            s.append("fact_size            ").append(fact_size).append('\n');
+            s.append("sample_length        ").append(sample_length).append('\n');
+        }
 
-        return s;
+
+        appendFourCC(s.append("data_header          "), data_header).append('\n');
+        s.append("data_size            ").append(data_size).append('\n');
+
+
+        return s.toString();
     }
 
 
@@ -325,91 +541,325 @@ public class WAVHeader {
     /**
      * @return the size of 'this' in bytes when it is written to a WAV file
     */
-    public int getHeaderSize() {
-        if (!junk) {
-            return 44;
+    public final int getHeaderSize() {
+        int size = 44 + fmt_size - 16;
+        if (fact) {
+            size += 8 + fact_size;
+        }
+        if (junk) {
+            size += 8 + junk_size + (junk_size & 1);
+        }
+        return size;
+    }
+
+    /**
+     * For a header read from a file, this is where the audio data
+     * starts in that file, which is after any chunks that this class
+     * does not write. Otherwise, it is the same as 'getHeaderSize'.
+     * 
+     * @return the position of the audio data in the WAV file
+    */
+    public long getDataOffset() {
+        if (data_offset < 0) {
+            return getHeaderSize();
         }
-        return 52 + junk_size;
+        return data_offset;
     }
 
     /**
      * @return the size of the audio data in bytes when it is written to a WAV file
     */
-    public int getDataSize() {
+    public long getDataSize() {
         return data_size;
     }
 
+    /**
+     * @return the number of frames, which for IMA ADPCM
+     *         comes from the fact chunk rather than the data size
+    */
+    public long getFrameCount() {
+        if (fact) {
+            return sample_length;
+        }
+        return data_size / block_size_in_bytes;
+    }
+
+    /**
+     * This method is used by writers which only learn
+     * how much audio data there is once they are closed.
+     * 'riff_size' is kept consistent with 'data_size',
+     * including the pad byte that follows odd-sized data.
+     * 
+     * When the sizes no longer fit in 4 bytes, 'this' becomes
+     * an RF64 header, which needs a JUNK chunk to have been
+     * reserved by 'reserveDS64'.
+     * 
+     * @param data_size the size of the audio data in bytes
+     * @throws IllegalStateException if the data is too large
+     *         and there is no room for a ds64 chunk
+    */
+    final void setDataSize(long data_size) {
+        long riff_size = getHeaderSize() - 8 + data_size + (data_size & 1);
+
+        if (riff_size > MAX_RIFF_SIZE && !rf64) {
+            if (!canHold(data_size)) {
+                throw new IllegalStateException("WAV file is larger than 4 GB but no JUNK chunk was reserved for a ds64 chunk");
+            }
+            rf64        = true;
+            riff_header = RF64;
+            junk_header = DS64;
+        }
+
+        this.data_size = data_size;
+        this.riff_size = riff_size;
+    }
+
+    /**
+     * Writers check this before writing audio data,
+     * so that a file which is too large fails at once
+     * rather than once all of it has been written.
+     *
+     * @param data_size a size of audio data in bytes
+     * @return true if 'setDataSize(data_size)' would succeed
+    */
+    final boolean canHold(long data_size) {
+        return rf64 || (junk && junk_size >= DS64_SIZE)
+            || getHeaderSize() - 8 + data_size + (data_size & 1) <= MAX_RIFF_SIZE;
+    }
+
+    /**
+     * This method reserves a JUNK chunk which is large enough
+     * to be turned into a ds64 chunk, so a writer whose file
+     * grows beyond 4 GB can rewrite its header in place.
+     * It must be called before 'this' is written to a file.
+    */
+    public void reserveDS64() {
+        reserveJunk();
+    }
+
+    /**
+     * This method does the work of 'reserveDS64', which the
+     * constructor cannot call since a subclass may override it.
+    */
+    private void reserveJunk() {
+        if (!junk || junk_size < DS64_SIZE) {
+            junk      = true;
+            junk_size = DS64_SIZE;
+        }
+    }
+
+    /**
+     * A WAVHeader only has fields of primitive types,
+     * so a shallow clone is a complete copy.
+     *
+     * @return a WAVHeader equal to 'this' which can be changed
+     *         without changing 'this'
+    */
+    public WAVHeader copy() {
+        try {
+            return (WAVHeader) super.clone();
+        }
+        catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @return true if 'this' is an RF64 or BW64 header
+    */
+    public boolean isRF64() {
+        return rf64;
+    }
+
+
+
+
+    /**
+     * @return 1 for integer samples, 3 for floating point samples
+    */
+    public int getAudioFormat() {
+        return audio_fmt;
+    }
+
+    /**
+     * @return 1 for mono, 2 for stereo
+    */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return the number of samples per second per channel
+    */
+    public int getSampleRate() {
+        return sample_rate_per_chan;
+    }
+
+    /**
+     * @return the number of bits per sample, e.g. 16, 24, or 32
+    */
+    public int getBitDepth() {
+        return bit_depth_of_sample;
+    }
+
+    /**
+     * @return the number of bytes used by one frame,
+     *         i.e. one sample for every channel;
+     *         for IMA ADPCM, the number of bytes in a block
+    */
+    public int getBlockSize() {
+        return block_size_in_bytes;
+    }
+
+    /**
+     * @return the number of frames in a block of IMA ADPCM, otherwise 0
+    */
+    public int getSamplesPerBlock() {
+        return samples_per_block;
+    }
+
+    /**
+     * Two WAV files with the same format can have
+     * their audio data copied from one to the other.
+     * 
+     * @param other another WAVHeader
+     * @return true if 'other' has the same audio format, number
+     *         of channels, sample rate and bit depth as 'this'
+    */
+    public boolean hasSameFormatAs(WAVHeader other) {
+        return audio_fmt            == other.audio_fmt
+            && channels             == other.channels
+            && sample_rate_per_chan == other.sample_rate_per_chan
+            && bit_depth_of_sample  == other.bit_depth_of_sample
+            && samples_per_block    == other.samples_per_block;
+    }
+
 
 
 
     /**
      * This constructor constructs a WAVHeader using
-     * the bytes from the start of a WAV file.
+     * the chunks found at the start of a WAV file.
      * 
-     * @param b an array of bytes that were read
-     *          from the start of a WAV file
+     * @param index the chunks of a WAV file
+     * @param fmt the payload of the file's format chunk
+     * @param fact the payload of the file's fact chunk, or null
     */
-    private WAVHeader(byte[] b) {
+    private WAVHeader(WAVChunkIndex index, ByteBuffer fmt, ByteBuffer fact) throws WAVFormatException {
+        WAVChunkIndex.Chunk junk_chunk = index.find("JUNK");
+        WAVChunkIndex.Chunk ds64_chunk = index.find("ds64");
+        WAVChunkIndex.Chunk data_chunk = index.require("data");
+
+        if (ds64_chunk != null) {
+            junk_chunk  = ds64_chunk;
+            rf64        = true;
+            riff_header = fourCC(index.getRiffId());
+            junk_header = DS64;
+        }
+        if (junk_chunk != null) {
+            junk      = true;
+            junk_size = (int) junk_chunk.size();
+        }
+
+        audio_fmt            = fmt.getShort();
+        channels             = fmt.getShort();
+        sample_rate_per_chan = fmt.getInt();
+        bytes_per_sec        = fmt.getInt();
+        block_size_in_bytes  = fmt.getShort();
+        bit_depth_of_sample  = fmt.getShort();
 
-    ByteBuffer bytes = ByteBuffer.wrap(b);
-    bytes.order(ByteOrder.LITTLE_ENDIAN);
+        if (audio_fmt == (short) 0xFFFE && fmt.remaining() >= 24) {
+            audio_fmt = fmt.getShort(24);
+        }
 
-        riff_header = new char[] { (char) bytes.get(), (char) bytes.get(), (char) bytes.get(), (char) bytes.get() };
-        riff_size = bytes.getInt(); 
-        wave_header = new char[] { (char) bytes.get(), (char) bytes.get(), (char) bytes.get(), (char) bytes.get() }; 
+        if (channels <= 0 || block_size_in_bytes <= 0) {
+            throw new WAVFormatException("'fmt ' chunk describes no audio");
+        }
 
-        if(((char)b[12] == 'J') && ((char)b[13] == 'U') && ((char)b[14] == 'N') && ((char)b[15] == 'K')) { 
-            junk = true; 
-            junk_header = new char[] { (char) bytes.get(), (char) bytes.get(), (char) bytes.get(), (char) bytes.get() };
-            junk_size = bytes.getInt();
-            for( int i = 0; i < junk_size; ++i){
-                  bytes.get();
+        if (audio_fmt == WAVADPCMCodec.AUDIO_FORMAT) {
+            if (fmt.limit() < 20) {
+                throw new WAVFormatException("IMA ADPCM 'fmt ' chunk is shorter than 20 bytes");
+            }
+            fmt_size          = 20;
+            samples_per_block = fmt.getShort(18);
+            if (samples_per_block <= 0) {
+                throw new WAVFormatException("IMA ADPCM 'fmt ' chunk has no samples per block");
             }
 
+            /*
+              Without a fact chunk, we assume that every block is full.
+            */
+            this.fact     = true;
+            sample_length = fact != null ? fact.getInt(0) & MAX_RIFF_SIZE
+                                         : data_chunk.size() / block_size_in_bytes * samples_per_block;
         }
 
-            fmt_header = new char[] { (char) bytes.get(), (char) bytes.get(), (char) bytes.get(), (char) bytes.get() };
-            fmt_size = bytes.getInt();
-            audio_fmt = bytes.getShort();
-            channels= bytes.getShort();
-            sample_rate_per_chan = bytes.getInt();
-            bytes_per_sec = bytes.getInt();
-            block_size_in_bytes = bytes.getShort();
-            bit_depth_of_sample = bytes.getShort();
-            data_header = new char[] { (char) bytes.get(), (char) bytes.get(), (char) bytes.get(), (char) bytes.get() };
-            data_size = bytes.getInt(); 
-
+        /*
+          'riff_size' describes the header that 'getBytes' writes,
+          which leaves out any chunks that this class skips.
+          'setDataSize' is for writers, so we check ourselves
+          that a plain RIFF header can describe the data chunk.
+        */
+        if (!rf64 && getHeaderSize() - 8 + data_chunk.size() + (data_chunk.size() & 1) > MAX_RIFF_SIZE) {
+            throw new WAVFormatException("data chunk of " + data_chunk.size() + " bytes is too large for a "
+                                         + index.getRiffId() + " file without a ds64 chunk");
+        }
+        data_offset = data_chunk.offset();
+        setDataSize(data_chunk.size());
     }
 
     /**
      * This method returns an array of bytes
      * that is suitable for writing to a file
-     * using a FileOutputStream.
+     * using a FileOutputStream. Writers that
+     * write many headers should use 'writeTo'
+     * with a reusable buffer instead.
      * 
      * @return bytes suitable for writing
      *         at the start of a WAV file
     */
+    public byte[] getBytes() {
+        byte[] bytes = new byte[getHeaderSize()];
+        writeTo(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
 
 
-    public byte[] getBytes() {
 
-        int c = getHeaderSize();
-        byte[] b =  new byte[c]; 
-        ByteBuffer bytes = ByteBuffer.wrap(b);
+
+    /**
+     * This method writes the bytes returned by 'getBytes'
+     * into a buffer, starting at the buffer's position.
+     * It is used by writers which keep reusing the same buffer.
+     * 
+     * @param bytes a buffer with at least 'getHeaderSize' bytes remaining
+    */
+    public void writeTo(ByteBuffer bytes) {
+        ByteOrder order = bytes.order();
         bytes.order(ByteOrder.LITTLE_ENDIAN);
-        bytes.put((byte)riff_header[0]).put((byte)riff_header[1]).put((byte)riff_header[2]).put((byte)riff_header[3]);
-        bytes.putInt(riff_size);
-        bytes.put((byte)wave_header[0]).put((byte)wave_header[1]).put((byte)wave_header[2]).put((byte)wave_header[3]);
 
-        if (c>44){ //could also say if junk = true i guess
-            bytes.put((byte)junk_header[0]).put((byte)junk_header[1]).put((byte)junk_header[2]).put((byte)junk_header[3]);
+        bytes.putInt(riff_header);
+        bytes.putInt(rf64 ? -1 : (int) riff_size);
+        bytes.putInt(wave_header);
+
+        if (junk) {
+            bytes.putInt(junk_header);
             bytes.putInt(junk_size);
-            for(int i=0; i<junk_size ;++i){
-                bytes.put((byte)0);
+
+            int i = 0;
+            if (rf64) {
+                bytes.putLong(riff_size);
+                bytes.putLong(data_size);
+                bytes.putLong(getFrameCount());
+                bytes.putInt(0);
+                i = DS64_SIZE;
+            }
+            for (int end = junk_size + (junk_size & 1); i < end; ++i) {
+                bytes.put((byte) 0);
             }
         }
 
-        bytes.put((byte)fmt_header[0]).put((byte)fmt_header[1]).put((byte)fmt_header[2]).put((byte)fmt_header[3]);
+        bytes.putInt(fmt_header);
         bytes.putInt(fmt_size);
         bytes.putShort(audio_fmt);
         bytes.putShort(channels);
@@ -417,31 +867,48 @@ public class WAVHeader {
         bytes.putInt(bytes_per_sec);
         bytes.putShort(block_size_in_bytes);
         bytes.putShort(bit_depth_of_sample);
-        bytes.put((byte)data_header[0]).put((byte)data_header[1]).put((byte)data_header[2]).put((byte)data_header[3]);
-        bytes.putInt(data_size);
-
-        // test: 
 
-        System.out.println(riff_header);
-        System.out.println(riff_size);
-        System.out.println(wave_header);
+        if (fmt_size >= 20) {
+            bytes.putShort((short) 2);
+            bytes.putShort(samples_per_block);
+        }
 
-        if(c>44){
-        System.out.println(junk_header);
-        System.out.println(junk_size);
+        if (fact) {
+            bytes.putInt(fact_header);
+            bytes.putInt(fact_size);
+            bytes.putInt((int) sample_length);
         }
-        System.out.println(fmt_header);
-        System.out.println(fmt_size);
-        System.out.println(audio_fmt);
-        System.out.println(channels);
-        System.out.println(sample_rate_per_chan);
-        System.out.println(bytes_per_sec);
-        System.out.println(block_size_in_bytes);
-        System.out.println(bit_depth_of_sample);
-        System.out.println(data_header);
-        System.out.println(data_size);
-
-        return b;
+
+        bytes.putInt(data_header);
+        bytes.putInt(rf64 ? -1 : (int) data_size);
+
+        bytes.order(order);
+    }
+
+
+
+
+    /**
+     * @param id 4 characters, e.g. "RIFF"
+     * @return the characters packed into an int, first character lowest
+    */
+    static int fourCC(String id) {
+        return (id.charAt(0) & 0xFF)
+             | (id.charAt(1) & 0xFF) << 8
+             | (id.charAt(2) & 0xFF) << 16
+             | (id.charAt(3) & 0xFF) << 24;
+    }
+
+    /**
+     * This method appends the 4 characters packed into 'id'.
+     *
+     * @return 's'
+    */
+    static StringBuilder appendFourCC(StringBuilder s, int id) {
+        return s.append((char) (id & 0xFF))
+                .append((char) (id >>> 8 & 0xFF))
+                .append((char) (id >>> 16 & 0xFF))
+                .append((char) (id >>> 24));
     }
 }
 
@@ -0,0 +1,272 @@
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.io.IOException;
+
+import java.time.Duration;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+  This class remembers the headers of WAV files which have already
+  been read, so asking for the header of a hot file again does not
+  open and parse the file again.
+
+  Every header is stored with the size and the last-modified time
+  that its file had when it was read. A header is only trusted for
+  'revalidate_after' without looking at the file. After that, the
+  next request reads the file's attributes, which is a single stat
+  rather than an open and a read, and the header is read again only
+  if the size or the last-modified time has changed. Within the
+  window, a hit is a lookup in a map and does no file I/O at all.
+
+  Independently, a header can be made to expire 'expire_after' after
+  it was read, whether or not its file has changed.
+
+  At most 'max_entries' headers are kept. When there are too many,
+  the least recently used one is evicted.
+
+  The cache is safe to use from many threads. Files are read outside
+  the lock, so a slow disk does not hold up hits on other files; two
+  threads that miss on the same file at the same time may both read it.
+
+  Every request is given its own copy of the header, so a caller may
+  change it, e.g. with 'setDataSize', without changing the cached one.
+*/
+public final class WAVHeaderCache {
+    /*
+      The default time for which a header is trusted without a stat.
+    */
+    public static final Duration DEFAULT_REVALIDATE_AFTER = Duration.ofSeconds(1);
+
+    private final int  max_entries;
+    private final long expire_after;      // In nanoseconds, or 0 for never.
+    private final long revalidate_after;  // In nanoseconds.
+
+    private final LinkedHashMap<Path, Entry> entries;
+
+    private final LongAdder hits        = new LongAdder();
+    private final LongAdder misses      = new LongAdder();
+    private final LongAdder evictions   = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+
+
+
+    /*
+      A header, the attributes of its file when it was read,
+      and when it was read and last checked, from System.nanoTime.
+    */
+    private static final class Entry {
+        final WAVHeader header;
+        final long      size;
+        final long      modified;
+        final long      loaded;
+        volatile long   checked;
+
+        Entry(WAVHeader header, long size, long modified, long loaded) {
+            this.header   = header;
+            this.size     = size;
+            this.modified = modified;
+            this.loaded   = loaded;
+            this.checked  = loaded;
+        }
+    }
+
+
+
+
+    /**
+     * This constructor makes a cache whose headers never expire
+     * and are revalidated after DEFAULT_REVALIDATE_AFTER.
+     *
+     * @param max_entries the largest number of headers kept
+    */
+    public WAVHeaderCache(int max_entries) {
+        this(max_entries, Duration.ZERO, DEFAULT_REVALIDATE_AFTER);
+    }
+
+    /**
+     * @param max_entries the largest number of headers kept
+     * @param expire_after how long after being read a header is thrown away,
+     *                     or Duration.ZERO for never
+     * @param revalidate_after how long a header is trusted before its file's
+     *                         size and last-modified time are checked again,
+     *                         or Duration.ZERO to check them on every request
+    */
+    public WAVHeaderCache(int max_entries, Duration expire_after, Duration revalidate_after) {
+        if (max_entries <= 0) {
+            throw new IllegalArgumentException("a cache must hold at least one header");
+        }
+        if (expire_after.isNegative() || revalidate_after.isNegative()) {
+            throw new IllegalArgumentException("durations must not be negative");
+        }
+
+        this.max_entries      = max_entries;
+        this.expire_after     = expire_after.toNanos();
+        this.revalidate_after = revalidate_after.toNanos();
+
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+                if (size() > WAVHeaderCache.this.max_entries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+
+
+
+    /**
+     * @param name the path to a WAV file
+     * @return a copy of the header of the file,
+     *         from the cache if it is still valid
+     * @throws WAVFormatException if 'name' is not a WAV file
+    */
+    public WAVHeader get(String name) throws IOException {
+        return get(Paths.get(name));
+    }
+
+    /**
+     * @param path the path to a WAV file
+     * @return a copy of the header of the file,
+     *         from the cache if it is still valid
+     * @throws WAVFormatException if 'path' is not a WAV file
+    */
+    public WAVHeader get(Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        long now = System.nanoTime();
+
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+
+        if (entry != null) {
+            if (expire_after > 0 && now - entry.loaded >= expire_after) {
+                expirations.increment();
+            }
+            else if (now - entry.checked < revalidate_after) {
+                hits.increment();
+                return entry.header.copy();
+            }
+            else {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(key, BasicFileAttributes.class);
+                }
+                catch (IOException e) {
+                    invalidate(key);
+                    throw e; // The file has gone, so its header has too.
+                }
+                if (attributes.size() == entry.size
+                    && attributes.lastModifiedTime().toMillis() == entry.modified) {
+                    entry.checked = now;
+                    hits.increment();
+                    return entry.header.copy();
+                }
+            }
+        }
+
+        misses.increment();
+        entry = load(key, now);
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+        return entry.header.copy();
+    }
+
+    /**
+     * This method forgets the header of a file, e.g. after rewriting it.
+     *
+     * @param path the path to a WAV file
+    */
+    public void invalidate(Path path) {
+        synchronized (entries) {
+            entries.remove(path.toAbsolutePath().normalize());
+        }
+    }
+
+    /**
+     * This method forgets every header.
+    */
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+
+
+
+    /**
+     * @return the number of headers kept
+    */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the number of requests answered from the cache
+    */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of requests which read a file
+    */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of headers evicted to stay within 'max_entries'
+    */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of headers read again because they expired
+    */
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    public String toString() {
+        return "hits " + getHits() + ", misses " + getMisses() + ", evictions " + getEvictions()
+               + ", expirations " + getExpirations() + ", size " + size();
+    }
+
+
+
+
+    /**
+     * This method reads a header, taking the attributes of the file
+     * first so that a change made while reading is noticed next time.
+    */
+    private static Entry load(Path path, long now) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new Entry(WAVHeader.readWAVHeader(channel),
+                             attributes.size(),
+                             attributes.lastModifiedTime().toMillis(),
+                             now);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/*
+  This class reads and writes the fields of a WAV header
+  in place, in a buffer supplied by the caller.
+
+  A WAVHeader copies every field out of the bytes of a file, which
+  is convenient but costs an object per header. A WAVHeaderView
+  instead remembers where the chunks of the header start, and every
+  getter and setter reads or writes the bytes at an offset from
+  there. One WAVHeaderView can be wrapped around header after header,
+  so a service which inspects many files, or stamps out many headers
+  with 'write', does not allocate anything per header.
+
+  The buffer may hold any RIFF, RF64 or BW64 header, with JUNK, LIST
+  or other chunks between the chunks we use, as long as it holds
+  everything up to the header of the data chunk. The fields are read
+  with VarHandles, so the order of the buffer does not matter and its
+  position is never moved.
+
+  A MemorySegment, e.g. a WAV file mapped by an Arena, can be viewed
+  through 'segment.asByteBuffer()', which shares its memory.
+*/
+public final class WAVHeaderView {
+    private static final VarHandle SHORT = MethodHandles.byteBufferViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT   = MethodHandles.byteBufferViewVarHandle(int[].class,   ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG  = MethodHandles.byteBufferViewVarHandle(long[].class,  ByteOrder.LITTLE_ENDIAN);
+
+    private static final int BW64 = WAVHeader.fourCC("BW64");
+
+    private ByteBuffer bytes;
+    private int        base;   // The index of 'R', 'I', 'F', 'F'.
+    private int        fmt;    // The index of the payload of the format chunk.
+    private int        ds64;   // The index of the payload of the ds64 chunk, or -1.
+    private int        data;   // The index of 'd', 'a', 't', 'a'.
+
+
+
+
+    /**
+     * This method points 'this' at the header starting at
+     * index 'offset' of 'bytes', finding its chunks.
+     *
+     * @param bytes a buffer holding a WAV header
+     * @param offset the index of the first byte of the header
+     * @return 'this'
+     * @throws WAVFormatException if the bytes are not a WAV header
+    */
+    public WAVHeaderView wrap(ByteBuffer bytes, int offset) throws WAVFormatException {
+        int limit = bytes.limit();
+        if (offset < 0 || offset + 12 > limit) {
+            throw new WAVFormatException("buffer is too short for a WAV header");
+        }
+
+        int riff = (int) INT.get(bytes, offset);
+        if (riff != WAVHeader.RIFF && riff != WAVHeader.RF64 && riff != BW64
+            || (int) INT.get(bytes, offset + 8) != WAVHeader.WAVE) {
+            throw new WAVFormatException("buffer does not hold a RIFF/WAVE header");
+        }
+
+        int fmt  = -1;
+        int ds64 = -1;
+        for (int p = offset + 12; p + 8 <= limit; ) {
+            int  id   = (int) INT.get(bytes, p);
+            long size = (int) INT.get(bytes, p + 4) & 0xFFFFFFFFL;
+
+            if (id == WAVHeader.DATA) {
+                if (fmt < 0) {
+                    throw new WAVFormatException("'data' chunk comes before the 'fmt ' chunk");
+                }
+                this.bytes = bytes;
+                this.base  = offset;
+                this.fmt   = fmt;
+                this.ds64  = ds64;
+                this.data  = p;
+                return this;
+            }
+            if (id == WAVHeader.FMT) {
+                if (size < 16 || p + 8 + 16 > limit) {
+                    throw new WAVFormatException("'fmt ' chunk is shorter than 16 bytes");
+                }
+                fmt = p + 8;
+            }
+            else if (id == WAVHeader.DS64 && size >= WAVHeader.DS64_SIZE) {
+                ds64 = p + 8;
+            }
+
+            long next = p + 8 + size + (size & 1);
+            if (next > limit) {
+                break;
+            }
+            p = (int) next;
+        }
+        throw new WAVFormatException("buffer ends before the header of the 'data' chunk");
+    }
+
+    /**
+     * @return the buffer that 'this' views
+    */
+    public ByteBuffer buffer() {
+        return bytes;
+    }
+
+
+
+
+    /**
+     * This method writes a plain 44 byte header, without creating a WAVHeader.
+     *
+     * @param bytes where the header is written
+     * @param offset the index of the first byte of the header
+     * @param audio_fmt 1 for integer samples, 3 for floating point samples
+     * @param channels 1 for mono, 2 for stereo
+     * @param sample_rate_per_chan often 44_100 or 48_000
+     * @param bit_depth_of_sample 16, 24, or 32
+     * @param data_size the size of the audio data in bytes
+     * @return the size of the header, i.e. 44
+     * @throws IllegalArgumentException if the file would be larger than 4 GB
+    */
+    public static int write(ByteBuffer bytes, int offset, int audio_fmt, int channels,
+                            int sample_rate_per_chan, int bit_depth_of_sample, long data_size) {
+        long riff_size = 36 + data_size + (data_size & 1);
+        if (data_size < 0 || riff_size > WAVHeader.MAX_RIFF_SIZE) {
+            throw new IllegalArgumentException(data_size + " bytes of audio data need an RF64 header");
+        }
+        int block = channels * (bit_depth_of_sample / 8);
+
+        INT.set(bytes,   offset,      WAVHeader.RIFF);
+        INT.set(bytes,   offset + 4,  (int) riff_size);
+        INT.set(bytes,   offset + 8,  WAVHeader.WAVE);
+        INT.set(bytes,   offset + 12, WAVHeader.FMT);
+        INT.set(bytes,   offset + 16, 16);
+        SHORT.set(bytes, offset + 20, (short) audio_fmt);
+        SHORT.set(bytes, offset + 22, (short) channels);
+        INT.set(bytes,   offset + 24, sample_rate_per_chan);
+        INT.set(bytes,   offset + 28, block * sample_rate_per_chan);
+        SHORT.set(bytes, offset + 32, (short) block);
+        SHORT.set(bytes, offset + 34, (short) bit_depth_of_sample);
+        INT.set(bytes,   offset + 36, WAVHeader.DATA);
+        INT.set(bytes,   offset + 40, (int) data_size);
+        return 44;
+    }
+
+
+
+
+    /**
+     * @return true if the header is an RF64 or BW64 header
+    */
+    public boolean isRF64() {
+        return (int) INT.get(bytes, base) != WAVHeader.RIFF;
+    }
+
+    /**
+     * @return 1 for integer samples, 3 for floating point samples;
+     *         for WAVE_FORMAT_EXTENSIBLE, the format of the sub format
+    */
+    public int getAudioFormat() {
+        int audio_fmt = (short) SHORT.get(bytes, fmt);
+        if (audio_fmt == (short) 0xFFFE && fmt + 26 <= bytes.limit() && getFormatSize() >= 26) {
+            audio_fmt = (short) SHORT.get(bytes, fmt + 24);
+        }
+        return audio_fmt;
+    }
+
+    public int getChannels() {
+        return (short) SHORT.get(bytes, fmt + 2);
+    }
+
+    public int getSampleRate() {
+        return (int) INT.get(bytes, fmt + 4);
+    }
+
+    public int getBytesPerSecond() {
+        return (int) INT.get(bytes, fmt + 8);
+    }
+
+    public int getBlockSize() {
+        return (short) SHORT.get(bytes, fmt + 12);
+    }
+
+    public int getBitDepth() {
+        return (short) SHORT.get(bytes, fmt + 14);
+    }
+
+    /**
+     * @return the size of the payload of the format chunk
+    */
+    public int getFormatSize() {
+        return (int) INT.get(bytes, fmt - 4);
+    }
+
+    /**
+     * @return the RIFF size, taken from the ds64 chunk when it is too large for 4 bytes
+    */
+    public long getRiffSize() {
+        long riff_size = (int) INT.get(bytes, base + 4) & 0xFFFFFFFFL;
+        if (riff_size == WAVHeader.MAX_RIFF_SIZE && ds64 >= 0) {
+            return (long) LONG.get(bytes, ds64);
+        }
+        return riff_size;
+    }
+
+    /**
+     * @return the size of the audio data in bytes,
+     *         taken from the ds64 chunk when it is too large for 4 bytes
+    */
+    public long getDataSize() {
+        long data_size = (int) INT.get(bytes, data + 4) & 0xFFFFFFFFL;
+        if (data_size == WAVHeader.MAX_RIFF_SIZE && ds64 >= 0) {
+            return (long) LONG.get(bytes, ds64 + 8);
+        }
+        return data_size;
+    }
+
+    /**
+     * @return the number of bytes from the start of the header
+     *         to the start of the audio data
+    */
+    public int getHeaderSize() {
+        return data + 8 - base;
+    }
+
+
+
+
+    /**
+     * This method changes the sample rate, and the number of
+     * bytes per second to match it.
+     *
+     * @param sample_rate_per_chan the number of samples per second per channel
+    */
+    public void setSampleRate(int sample_rate_per_chan) {
+        INT.set(bytes, fmt + 4, sample_rate_per_chan);
+        INT.set(bytes, fmt + 8, getBlockSize() * sample_rate_per_chan);
+    }
+
+    /**
+     * This method changes the size of the audio data, and the
+     * RIFF size to match it, including the pad byte of odd-sized data.
+     * The sizes of an RF64 header are changed in its ds64 chunk.
+     *
+     * @param data_size the size of the audio data in bytes
+     * @throws IllegalStateException if the data is too large for a RIFF header
+    */
+    public void setDataSize(long data_size) {
+        long riff_size = getHeaderSize() - 8 + data_size + (data_size & 1);
+
+        if (ds64 >= 0 && isRF64()) {
+            LONG.set(bytes, ds64,      riff_size);
+            LONG.set(bytes, ds64 + 8,  data_size);
+            LONG.set(bytes, ds64 + 16, data_size / getBlockSize());
+            INT.set(bytes, base + 4, -1);
+            INT.set(bytes, data + 4, -1);
+            return;
+        }
+        if (riff_size > WAVHeader.MAX_RIFF_SIZE) {
+            throw new IllegalStateException("WAV file is larger than 4 GB but its header has no ds64 chunk");
+        }
+        INT.set(bytes, base + 4, (int) riff_size);
+        INT.set(bytes, data + 4, (int) data_size);
+    }
+
+
+
+
+    /**
+     * This method appends the fields of the header in the
+     * same form as WAVHeader.toString, without the JUNK chunk.
+     *
+     * @param s where the fields are appended
+     * @return 's'
+    */
+    public StringBuilder appendTo(StringBuilder s) {
+        WAVHeader.appendFourCC(s.append("riff_header          "), (int) INT.get(bytes, base)).append('\n');
+        s.append("riff_size            ").append(getRiffSize()).append('\n');
+        WAVHeader.appendFourCC(s.append("wave_header          "), WAVHeader.WAVE).append('\n');
+        WAVHeader.appendFourCC(s.append("fmt_header           "), WAVHeader.FMT).append('\n');
+        s.append("fmt_size             ").append(getFormatSize()).append('\n');
+        s.append("audio_fmt            ").append(getAudioFormat()).append('\n');
+        s.append("channels             ").append(getChannels()).append('\n');
+        s.append("sample_rate_per_chan ").append(getSampleRate()).append('\n');
+        s.append("bytes_per_sec        ").append(getBytesPerSecond()).append('\n');
+        s.append("block_size_in_bytes  ").append(getBlockSize()).append('\n');
+        s.append("bit_depth_of_sample  ").append(getBitDepth()).append('\n');
+        WAVHeader.appendFourCC(s.append("data_header          "), WAVHeader.DATA).append('\n');
+        s.append("data_size            ").append(getDataSize()).append('\n');
+        return s;
+    }
+
+    public String toString() {
+        return appendTo(new StringBuilder(400)).toString();
+    }
+}
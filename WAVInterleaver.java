@@ -0,0 +1,340 @@
+import java.lang.reflect.Array;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/*
+  This class converts between channels stored in separate arrays
+  and frames stored one after another in a single array,
+  e.g. left, right, left, right, for any number of channels.
+
+  Interleaving only moves samples around, so each frame can be
+  handled independently. Large ranges of frames are therefore
+  split in halves and handled in parallel by the common ForkJoinPool.
+  Ranges smaller than THRESHOLD frames are handled sequentially,
+  since forking would cost more than it saves.
+
+  Every method checks that the channels have the same length
+  and throws a WAVChannelException if they do not.
+*/
+public final class WAVInterleaver {
+    /*
+      The number of frames below which we do not fork.
+    */
+    static final int THRESHOLD = 1 << 16;
+
+
+    private WAVInterleaver() {
+    }
+
+
+
+
+    /**
+     * @param channels an array of shorts for every channel
+     * @return an array of shorts storing the frames one after another
+    */
+    public static short[] interleave(short[][] channels) {
+        int     count = checkLengths(channels);
+        short[] dst   = new short[count * channels.length];
+        interleave(channels, 0, count, dst, 0);
+        return dst;
+    }
+
+    /**
+     * @param channels an array of shorts for every channel
+     * @param first the index of the first sample of each channel to interleave
+     * @param count the number of frames to interleave
+     * @param dst where the frames are stored
+     * @param off the index in 'dst' of the first sample of the first frame
+    */
+    public static void interleave(short[][] channels, int first, int count, short[] dst, int off) {
+        checkLengths(channels);
+
+        if (count < THRESHOLD) {
+            interleaveRange(channels, first, dst, off, 0, count);
+        }
+        else {
+            split(count, (from, to) -> interleaveRange(channels, first, dst, off, from, to));
+        }
+    }
+
+    /**
+     * @param src an array of shorts storing frames one after another
+     * @param channels the number of channels
+     * @return an array of shorts for every channel
+    */
+    public static short[][] deinterleave(short[] src, int channels) {
+        short[][] dst = new short[channels][src.length / channels];
+        deinterleave(src, 0, dst, 0, src.length / channels);
+        return dst;
+    }
+
+    /**
+     * @param src an array of shorts storing frames one after another
+     * @param off the index in 'src' of the first sample of the first frame
+     * @param channels an array of shorts for every channel
+     * @param first the index of the first sample of each channel to store
+     * @param count the number of frames to deinterleave
+    */
+    public static void deinterleave(short[] src, int off, short[][] channels, int first, int count) {
+        checkLengths(channels);
+
+        if (count < THRESHOLD) {
+            deinterleaveRange(src, off, channels, first, 0, count);
+        }
+        else {
+            split(count, (from, to) -> deinterleaveRange(src, off, channels, first, from, to));
+        }
+    }
+
+
+
+
+    /**
+     * @param channels an array of ints for every channel
+     * @return an array of ints storing the frames one after another
+    */
+    public static int[] interleave(int[][] channels) {
+        int   count = checkLengths(channels);
+        int[] dst   = new int[count * channels.length];
+        interleave(channels, 0, count, dst, 0);
+        return dst;
+    }
+
+    /**
+     * @param channels an array of ints for every channel
+     * @param first the index of the first sample of each channel to interleave
+     * @param count the number of frames to interleave
+     * @param dst where the frames are stored
+     * @param off the index in 'dst' of the first sample of the first frame
+    */
+    public static void interleave(int[][] channels, int first, int count, int[] dst, int off) {
+        checkLengths(channels);
+
+        if (count < THRESHOLD) {
+            interleaveRange(channels, first, dst, off, 0, count);
+        }
+        else {
+            split(count, (from, to) -> interleaveRange(channels, first, dst, off, from, to));
+        }
+    }
+
+    /**
+     * @param src an array of ints storing frames one after another
+     * @param channels the number of channels
+     * @return an array of ints for every channel
+    */
+    public static int[][] deinterleave(int[] src, int channels) {
+        int[][] dst = new int[channels][src.length / channels];
+        deinterleave(src, 0, dst, 0, src.length / channels);
+        return dst;
+    }
+
+    /**
+     * @param src an array of ints storing frames one after another
+     * @param off the index in 'src' of the first sample of the first frame
+     * @param channels an array of ints for every channel
+     * @param first the index of the first sample of each channel to store
+     * @param count the number of frames to deinterleave
+    */
+    public static void deinterleave(int[] src, int off, int[][] channels, int first, int count) {
+        checkLengths(channels);
+
+        if (count < THRESHOLD) {
+            deinterleaveRange(src, off, channels, first, 0, count);
+        }
+        else {
+            split(count, (from, to) -> deinterleaveRange(src, off, channels, first, from, to));
+        }
+    }
+
+
+
+
+    /**
+     * @param channels an array of floats for every channel
+     * @return an array of floats storing the frames one after another
+    */
+    public static float[] interleave(float[][] channels) {
+        int     count = checkLengths(channels);
+        float[] dst   = new float[count * channels.length];
+        interleave(channels, 0, count, dst, 0);
+        return dst;
+    }
+
+    /**
+     * @param channels an array of floats for every channel
+     * @param first the index of the first sample of each channel to interleave
+     * @param count the number of frames to interleave
+     * @param dst where the frames are stored
+     * @param off the index in 'dst' of the first sample of the first frame
+    */
+    public static void interleave(float[][] channels, int first, int count, float[] dst, int off) {
+        checkLengths(channels);
+
+        if (count < THRESHOLD) {
+            interleaveRange(channels, first, dst, off, 0, count);
+        }
+        else {
+            split(count, (from, to) -> interleaveRange(channels, first, dst, off, from, to));
+        }
+    }
+
+    /**
+     * @param src an array of floats storing frames one after another
+     * @param channels the number of channels
+     * @return an array of floats for every channel
+    */
+    public static float[][] deinterleave(float[] src, int channels) {
+        float[][] dst = new float[channels][src.length / channels];
+        deinterleave(src, 0, dst, 0, src.length / channels);
+        return dst;
+    }
+
+    /**
+     * @param src an array of floats storing frames one after another
+     * @param off the index in 'src' of the first sample of the first frame
+     * @param channels an array of floats for every channel
+     * @param first the index of the first sample of each channel to store
+     * @param count the number of frames to deinterleave
+    */
+    public static void deinterleave(float[] src, int off, float[][] channels, int first, int count) {
+        checkLengths(channels);
+
+        if (count < THRESHOLD) {
+            deinterleaveRange(src, off, channels, first, 0, count);
+        }
+        else {
+            split(count, (from, to) -> deinterleaveRange(src, off, channels, first, from, to));
+        }
+    }
+
+
+
+
+    /**
+     * This method checks that there is at least one channel
+     * and that every channel has the same number of samples.
+     *
+     * @param channels an array of arrays of samples
+     * @return the number of samples in each channel
+    */
+    static int checkLengths(Object[] channels) {
+        if (channels.length == 0) {
+            throw new WAVChannelException("there are no channels");
+        }
+
+        int length = Array.getLength(channels[0]);
+        for (int c = 1; c < channels.length; ++c) {
+            int actual = Array.getLength(channels[c]);
+            if (actual != length) {
+                throw new WAVChannelException(c, length, actual);
+            }
+        }
+        return length;
+    }
+
+
+
+
+    /*
+      These methods handle the frames from 'from' inclusive to 'to'
+      exclusive. Small ranges call them directly rather than through
+      a lambda, so that interleaving a block does not allocate.
+    */
+    private static void interleaveRange(short[][] channels, int first, short[] dst, int off, int from, int to) {
+        int n = channels.length;
+        for (int c = 0; c < n; ++c) {
+            short[] channel = channels[c];
+            for (int i = from, j = off + from * n + c; i < to; ++i, j += n) {
+                dst[j] = channel[first + i];
+            }
+        }
+    }
+
+    private static void deinterleaveRange(short[] src, int off, short[][] channels, int first, int from, int to) {
+        int n = channels.length;
+        for (int c = 0; c < n; ++c) {
+            short[] channel = channels[c];
+            for (int i = from, j = off + from * n + c; i < to; ++i, j += n) {
+                channel[first + i] = src[j];
+            }
+        }
+    }
+
+    private static void interleaveRange(int[][] channels, int first, int[] dst, int off, int from, int to) {
+        int n = channels.length;
+        for (int c = 0; c < n; ++c) {
+            int[] channel = channels[c];
+            for (int i = from, j = off + from * n + c; i < to; ++i, j += n) {
+                dst[j] = channel[first + i];
+            }
+        }
+    }
+
+    private static void deinterleaveRange(int[] src, int off, int[][] channels, int first, int from, int to) {
+        int n = channels.length;
+        for (int c = 0; c < n; ++c) {
+            int[] channel = channels[c];
+            for (int i = from, j = off + from * n + c; i < to; ++i, j += n) {
+                channel[first + i] = src[j];
+            }
+        }
+    }
+
+    private static void interleaveRange(float[][] channels, int first, float[] dst, int off, int from, int to) {
+        int n = channels.length;
+        for (int c = 0; c < n; ++c) {
+            float[] channel = channels[c];
+            for (int i = from, j = off + from * n + c; i < to; ++i, j += n) {
+                dst[j] = channel[first + i];
+            }
+        }
+    }
+
+    private static void deinterleaveRange(float[] src, int off, float[][] channels, int first, int from, int to) {
+        int n = channels.length;
+        for (int c = 0; c < n; ++c) {
+            float[] channel = channels[c];
+            for (int i = from, j = off + from * n + c; i < to; ++i, j += n) {
+                channel[first + i] = src[j];
+            }
+        }
+    }
+
+    /*
+      A range of frames, from 'from' inclusive to 'to' exclusive.
+    */
+    private interface Range {
+        void run(int from, int to);
+    }
+
+    private static void split(int count, Range range) {
+        ForkJoinPool.commonPool().invoke(new Split(range, 0, count));
+    }
+
+    private static final class Split extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Range range;
+        private final int             from;
+        private final int             to;
+
+        Split(Range range, int from, int to) {
+            this.range = range;
+            this.from  = from;
+            this.to    = to;
+        }
+
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                range.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Split(range, from, mid), new Split(range, mid, to));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+  This class counts what the WAV library does, so a slow job can
+  tell whether its time goes to reading headers, converting samples
+  or writing files, without starting a JFR recording.
+
+  There is a Counter for each kind of operation. Each Counter adds up
+  the number of operations, the bytes, frames and samples that they
+  handled, the time that they took, and the number that failed.
+  Counters use LongAdders, so threads counting at the same time do not
+  contend, and they are updated once per block rather than per sample.
+
+  Counting can be switched off with '-Dwav.metrics.disabled=true',
+  in which case the counters stay at 0. The JFR events in WAVEvents
+  are recorded either way, when JFR is recording them.
+*/
+public final class WAVMetrics {
+    static final boolean ENABLED = !Boolean.getBoolean("wav.metrics.disabled");
+
+    public static final Counter HEADER_READS = new Counter("header reads");
+    public static final Counter ENCODING     = new Counter("encoding");
+    public static final Counter DECODING     = new Counter("decoding");
+    public static final Counter WRITES       = new Counter("writes");
+
+
+    private WAVMetrics() {
+    }
+
+
+
+
+    /*
+      The totals of one kind of operation.
+    */
+    public static final class Counter {
+        private final String name;
+
+        private final LongAdder operations = new LongAdder();
+        private final LongAdder bytes      = new LongAdder();
+        private final LongAdder frames     = new LongAdder();
+        private final LongAdder samples    = new LongAdder();
+        private final LongAdder nanos      = new LongAdder();
+        private final LongAdder errors     = new LongAdder();
+
+        private Counter(String name) {
+            this.name = name;
+        }
+
+        public long getOperations() {
+            return operations.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        public long getFrames() {
+            return frames.sum();
+        }
+
+        public long getSamples() {
+            return samples.sum();
+        }
+
+        /**
+         * @return the total time taken, in nanoseconds
+        */
+        public long getNanos() {
+            return nanos.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        /**
+         * @return the bytes handled per second of time taken,
+         *         or 0 if no time has been taken
+        */
+        public double getThroughput() {
+            long n = getNanos();
+            return n == 0 ? 0 : getBytes() * 1e9 / n;
+        }
+
+        public void reset() {
+            operations.reset();
+            bytes.reset();
+            frames.reset();
+            samples.reset();
+            nanos.reset();
+            errors.reset();
+        }
+
+        /**
+         * @return a line such as "writes: 12 ops, 3145728 bytes, ..."
+        */
+        public String toString() {
+            return new StringBuilder(120)
+                .append(name).append(": ")
+                .append(getOperations()).append(" ops, ")
+                .append(getBytes()).append(" bytes, ")
+                .append(getFrames()).append(" frames, ")
+                .append(getSamples()).append(" samples, ")
+                .append(getNanos() / 1_000_000).append(" ms, ")
+                .append(Math.round(getThroughput() / (1 << 20))).append(" MB/s, ")
+                .append(getErrors()).append(" errors")
+                .toString();
+        }
+
+        void record(long start, long bytes, long frames, long samples) {
+            if (ENABLED) {
+                this.operations.increment();
+                this.bytes.add(bytes);
+                this.frames.add(frames);
+                this.samples.add(samples);
+                this.nanos.add(System.nanoTime() - start);
+            }
+        }
+
+        void fail(long start) {
+            if (ENABLED) {
+                this.operations.increment();
+                this.errors.increment();
+                this.nanos.add(System.nanoTime() - start);
+            }
+        }
+    }
+
+
+
+
+    /**
+     * @return every Counter, one per line
+    */
+    public static String report() {
+        return HEADER_READS + "\n" + ENCODING + "\n" + DECODING + "\n" + WRITES + "\n";
+    }
+
+    /**
+     * This method sets every Counter back to 0.
+    */
+    public static void reset() {
+        HEADER_READS.reset();
+        ENCODING.reset();
+        DECODING.reset();
+        WRITES.reset();
+    }
+
+    /**
+     * @return the time to pass to 'record' or 'fail',
+     *         or 0 if counting is switched off
+    */
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+}
@@ -0,0 +1,291 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+
+/*
+  This class sums many WAV files, e.g. the stems of a song,
+  into one WAV file, without reading any of them onto the heap.
+
+  The data chunk of every input is mapped into memory by its WAVFile,
+  and the inputs are mixed BLOCK frames at a time: each input's frames
+  are decoded into floats, multiplied by its gain and added to the
+  mix, which is then clipped to between -1 and 1 and encoded in the
+  format of the output. The inputs may have different bit depths, but
+  must have the same channels and sample rate. An input which is
+  shorter than the others is treated as silence after its end.
+
+  The frames of the output are split into segments, which are mixed
+  in parallel by the common ForkJoinPool. Each segment writes its own
+  region of the output with positional writes, so the segments never
+  wait for each other. The output header is written first, since the
+  length of the mix is known before mixing starts.
+
+  The mix is written to a temporary file next to the output, which is
+  renamed to the output once it is complete, so a mix which fails
+  leaves any existing output as it was. The output cannot be one of
+  the inputs, which are still mapped while the mix is written.
+
+  Each segment only needs a few blocks of memory, so the memory used
+  depends on the number of inputs and cores, not on the length of
+  the audio. The mapped pages belong to the OS page cache.
+*/
+public final class WAVMixer implements AutoCloseable {
+    /*
+      The number of frames mixed at a time by a segment.
+    */
+    static final int BLOCK = 1 << 13;
+
+    /*
+      The number of segments per core, so a slow segment
+      does not leave the other cores idle at the end.
+    */
+    static final int SEGMENTS_PER_CORE = 4;
+
+    private final WAVFile[] inputs;
+    private final float[]   gains;
+
+    private final int  channels;
+    private final int  sample_rate_per_chan;
+    private final long frames;
+
+
+
+
+    /**
+     * @param inputs the WAVFiles to mix, which are closed by 'close'
+     * @param gains the gain of every input, e.g. 0.5 for about -6 dB
+     * @throws WAVChannelException if the inputs have different channels
+     * @throws IllegalArgumentException if the inputs have different sample rates
+    */
+    public WAVMixer(WAVFile[] inputs, float[] gains) throws IOException {
+        if (inputs.length == 0 || inputs.length != gains.length) {
+            throw new IllegalArgumentException(inputs.length + " inputs but " + gains.length + " gains");
+        }
+
+        WAVHeader first = inputs[0].getHeader();
+        long      most  = 0;
+        for (WAVFile input : inputs) {
+            WAVHeader header = input.getHeader();
+            if (header.getChannels() != first.getChannels()) {
+                throw new WAVChannelException(header.getChannels() + " channels cannot be mixed with " + first.getChannels());
+            }
+            if (header.getSampleRate() != first.getSampleRate()) {
+                throw new IllegalArgumentException(header.getSampleRate() + " Hz cannot be mixed with "
+                                                   + first.getSampleRate() + " Hz; resample it first");
+            }
+            WAVSampleFormat.of(header);
+            most = Math.max(most, input.getFrameCount());
+
+            /*
+              We map the data chunk before the segments start,
+              so they share one mapping rather than racing to make it.
+            */
+            if (input.getFrameCount() * header.getBlockSize() <= Integer.MAX_VALUE) {
+                input.asByteBuffer();
+            }
+        }
+
+        this.inputs               = inputs.clone();
+        this.gains                = gains.clone();
+        this.channels             = first.getChannels();
+        this.sample_rate_per_chan = first.getSampleRate();
+        this.frames               = most;
+    }
+
+    /**
+     * This factory method opens the WAV files to mix.
+     *
+     * @param names the paths to the WAV files to mix
+     * @param gains the gain of every input
+     * @return a WAVMixer of the files
+    */
+    public static WAVMixer open(String[] names, float[] gains) throws IOException {
+        WAVFile[] inputs = new WAVFile[names.length];
+        try {
+            for (int i = 0; i < names.length; ++i) {
+                inputs[i] = WAVFile.open(names[i]);
+            }
+            return new WAVMixer(inputs, gains);
+        }
+        catch (IOException | RuntimeException e) {
+            for (WAVFile input : inputs) {
+                if (input != null) {
+                    input.close();
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * This method mixes WAV files into a 16-bit WAV file.
+     *
+     * @param to the path to the WAV file that is written
+     * @param from the paths to the WAV files to mix
+     * @param gains the gain of every input
+    */
+    public static void mix(String to, String[] from, float[] gains) throws IOException {
+        try (WAVMixer mixer = open(from, gains)) {
+            mixer.mix(to, 1, 16);
+        }
+    }
+
+
+
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getSampleRate() {
+        return sample_rate_per_chan;
+    }
+
+    /**
+     * @return the number of frames in the mix,
+     *         which is the number of frames in the longest input
+    */
+    public long getFrameCount() {
+        return frames;
+    }
+
+
+
+
+    /**
+     * This method writes the mix to a new WAV file.
+     *
+     * @param name the path to the WAV file that is written
+     * @param audio_fmt 1 for integer samples, 3 for floating point samples
+     * @param bit_depth_of_sample the number of bits per sample
+     * @return the number of frames written
+     * @throws IllegalArgumentException if 'name' is one of the inputs
+    */
+    public long mix(String name, int audio_fmt, int bit_depth_of_sample) throws IOException {
+        WAVHeader       header = new WAVHeader(audio_fmt, channels, sample_rate_per_chan, bit_depth_of_sample, frames);
+        WAVSampleFormat format = WAVSampleFormat.of(header);
+
+        Path   path  = Paths.get(name);
+        Path[] paths = new Path[inputs.length];
+        for (int i = 0; i < inputs.length; ++i) {
+            paths[i] = inputs[i].getPath();
+        }
+        WAV.checkNotSameFile(path, paths);
+
+        Path temporary = WAV.temporaryFor(path);
+        try (FileChannel out = FileChannel.open(temporary,
+                                                StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = ByteBuffer.allocate(header.getHeaderSize());
+            header.writeTo(bytes);
+            bytes.flip();
+            WAVWriter.write(out, bytes, 0, 0);
+
+            int  segments = (int) Math.max(1, Math.min((frames + BLOCK - 1) / BLOCK,
+                                                       (long) ForkJoinPool.getCommonPoolParallelism() * SEGMENTS_PER_CORE));
+            long length   = (frames + segments - 1) / segments;
+            try {
+                IntStream.range(0, segments).parallel().forEach(s -> {
+                    long first = s * length;
+                    long count = Math.min(length, frames - first);
+                    if (count > 0) {
+                        try {
+                            mix(first, count, format, out, header.getHeaderSize());
+                        }
+                        catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            if ((header.getDataSize() & 1) != 0) {
+                WAVWriter.write(out, ByteBuffer.allocate(1), header.getHeaderSize() + header.getDataSize(), 0);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        WAV.replace(temporary, path);
+        return frames;
+    }
+
+    /**
+     * This method closes every input.
+    */
+    public void close() throws IOException {
+        IOException failure = null;
+        for (WAVFile input : inputs) {
+            try {
+                input.close();
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+
+
+
+    /**
+     * This method mixes one segment of frames and writes it to its
+     * region of the output, BLOCK frames at a time.
+     *
+     * @param first the index of the first frame of the segment
+     * @param count the number of frames in the segment
+     * @param format the format of the output
+     * @param out the output, whose header has been written
+     * @param data_offset the index of the first byte of audio data in 'out'
+    */
+    private void mix(long first, long count, WAVSampleFormat format, FileChannel out, long data_offset) throws IOException {
+        int        block = (int) Math.min(BLOCK, count);
+        float[]    src   = new float[block * channels];
+        float[]    mix   = new float[block * channels];
+        ByteBuffer bytes = ByteBuffer.allocateDirect(block * channels * format.getBytesPerSample())
+                                     .order(ByteOrder.LITTLE_ENDIAN);
+
+        for (long f = first, end = first + count; f < end; ) {
+            int n = (int) Math.min(block, end - f);
+            int m = n * channels;
+
+            Arrays.fill(mix, 0, m, 0f);
+            for (int i = 0; i < inputs.length; ++i) {
+                int k = (int) Math.max(0, Math.min(n, inputs[i].getFrameCount() - f));
+                if (k > 0) {
+                    inputs[i].readFrames(f, k, src, 0);
+                    DSPKernels.mix(src, 0, gains[i], mix, 0, k * channels);
+                }
+            }
+            DSPKernels.clip(mix, 0, m);
+
+            bytes.clear();
+            WAVSampleCodec.encode(mix, 0, m, format, bytes);
+            bytes.flip();
+            WAVWriter.write(out, bytes, data_offset + f * channels * format.getBytesPerSample(), n);
+
+            f += n;
+        }
+    }
+}
@@ -0,0 +1,521 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+
+/*
+  This class summarizes the audio of a WAV file for drawing its
+  waveform and showing its loudness, without reading it again.
+
+  An overview has the peak and the RMS of every channel over the
+  whole file, and several levels of buckets. Every bucket of level 0
+  covers BUCKET frames, and every bucket of the next level covers
+  FACTOR buckets of the level before, until a level has one bucket.
+  A bucket stores the minimum, maximum and RMS of every channel,
+  each as a 16-bit sample, so a UI can draw a waveform at any zoom
+  from the level whose buckets are closest to its pixels.
+
+  The audio is read once, straight from the data chunk mapped by a
+  WAVFile. Level 0 and the totals are computed from the samples, and
+  every other level from the level below it. Files with more than
+  THRESHOLD frames are split into segments of whole buckets, which
+  are read in parallel by the common ForkJoinPool.
+
+  An overview can be saved next to its WAV file, in a sidecar file
+  with the extension SIDECAR. The sidecar records the size and the
+  last-modified time of the WAV file, so 'load' can tell whether it
+  still describes the WAV file without reading any audio.
+*/
+public final class WAVOverview {
+    /*
+      The number of frames in a bucket of level 0.
+    */
+    public static final int BUCKET = 1 << 9;
+
+    /*
+      The number of buckets of one level in a bucket of the next.
+    */
+    public static final int FACTOR = 4;
+
+    /*
+      What is added to the name of a WAV file to name its sidecar.
+    */
+    public static final String SIDECAR = ".overview";
+
+    /*
+      The number of frames read at a time, a whole number of buckets.
+    */
+    static final int BLOCK = BUCKET << 5;
+
+    /*
+      The number of frames below which we do not fork.
+    */
+    static final int THRESHOLD = 1 << 18;
+
+    private static final int MAGIC   = WAVHeader.fourCC("WOVW");
+    private static final int VERSION = 1;
+
+    private final int  channels;
+    private final int  sample_rate_per_chan;
+    private final long frames;
+
+    private final long source_size;
+    private final long source_modified;   // In milliseconds since the epoch.
+
+    private final float[]  peak;
+    private final double[] rms;
+
+    /*
+      For every level, the minimum, maximum and RMS
+      of every channel of every bucket, in that order.
+    */
+    private final short[][] levels;
+
+
+
+
+    private WAVOverview(int channels, int sample_rate_per_chan, long frames, long source_size, long source_modified,
+                        float[] peak, double[] rms, short[][] levels) {
+        this.channels             = channels;
+        this.sample_rate_per_chan = sample_rate_per_chan;
+        this.frames               = frames;
+        this.source_size          = source_size;
+        this.source_modified      = source_modified;
+        this.peak                 = peak;
+        this.rms                  = rms;
+        this.levels               = levels;
+    }
+
+
+
+
+    /**
+     * This factory method gives the overview of a WAV file, from its
+     * sidecar if the sidecar is up to date, and otherwise by reading
+     * the audio and saving a new sidecar.
+     *
+     * @param name the path to a WAV file
+     * @return the overview of the file
+    */
+    public static WAVOverview load(String name) throws IOException {
+        Path                path       = Paths.get(name);
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        Path                sidecar    = sidecarOf(path);
+
+        try {
+            WAVOverview overview = read(sidecar);
+            if (overview.source_size == attributes.size()
+                && overview.source_modified == attributes.lastModifiedTime().toMillis()) {
+                return overview;
+            }
+        }
+        catch (NoSuchFileException | WAVFormatException e) {
+            // There is no sidecar, or it is not one that we can read.
+        }
+
+        WAVOverview overview = analyze(name);
+        try {
+            overview.save(sidecar);
+        }
+        catch (IOException e) {
+            // The overview is still right; it is just computed again next time.
+        }
+        return overview;
+    }
+
+    /**
+     * This factory method reads the audio of a WAV file.
+     *
+     * @param name the path to a WAV file
+     * @return the overview of the file
+    */
+    public static WAVOverview analyze(String name) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(Paths.get(name), BasicFileAttributes.class);
+
+        try (WAVFile file = WAVFile.open(name)) {
+            return analyze(file, attributes.size(), attributes.lastModifiedTime().toMillis());
+        }
+    }
+
+    /**
+     * @param sidecar the path to a sidecar file
+     * @return the overview saved in the sidecar
+     * @throws WAVFormatException if 'sidecar' is not a sidecar file
+    */
+    public static WAVOverview read(Path sidecar) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(sidecar)).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (bytes.getInt() != MAGIC || bytes.getInt() != VERSION) {
+                throw new WAVFormatException(sidecar + " is not a version " + VERSION + " overview");
+            }
+            long source_size          = bytes.getLong();
+            long source_modified      = bytes.getLong();
+            int  channels             = bytes.getInt();
+            int  sample_rate_per_chan = bytes.getInt();
+            long frames               = bytes.getLong();
+            if (bytes.getInt() != BUCKET || bytes.getInt() != FACTOR || channels <= 0 || frames < 0) {
+                throw new WAVFormatException(sidecar + " has buckets of a different size");
+            }
+
+            float[]  peak = new float[channels];
+            double[] rms  = new double[channels];
+            for (int c = 0; c < channels; ++c) {
+                peak[c] = bytes.getFloat();
+                rms[c]  = bytes.getDouble();
+            }
+
+            short[][] levels = new short[levelCount(frames)][];
+            for (int l = 0; l < levels.length; ++l) {
+                levels[l] = new short[bucketCount(frames, l) * channels * 3];
+                bytes.asShortBuffer().get(levels[l]);
+                bytes.position(bytes.position() + 2 * levels[l].length);
+            }
+            return new WAVOverview(channels, sample_rate_per_chan, frames, source_size, source_modified, peak, rms, levels);
+        }
+        catch (RuntimeException e) {
+            throw new WAVFormatException(sidecar + " is truncated");
+        }
+    }
+
+    /**
+     * This method writes the overview to a sidecar file. It writes a
+     * temporary file first and then renames it, so a reader never
+     * sees half a sidecar.
+     *
+     * @param sidecar the path to the sidecar file
+    */
+    public void save(Path sidecar) throws IOException {
+        int size = 4 + 4 + 8 + 8 + 4 + 4 + 8 + 4 + 4 + channels * (4 + 8);
+        for (short[] level : levels) {
+            size += 2 * level.length;
+        }
+
+        ByteBuffer bytes = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.putInt(MAGIC).putInt(VERSION)
+             .putLong(source_size).putLong(source_modified)
+             .putInt(channels).putInt(sample_rate_per_chan).putLong(frames)
+             .putInt(BUCKET).putInt(FACTOR);
+        for (int c = 0; c < channels; ++c) {
+            bytes.putFloat(peak[c]).putDouble(rms[c]);
+        }
+        for (short[] level : levels) {
+            bytes.asShortBuffer().put(level);
+            bytes.position(bytes.position() + 2 * level.length);
+        }
+        bytes.flip();
+
+        Path temporary = WAV.temporaryFor(sidecar);
+        try (FileChannel out = FileChannel.open(temporary,
+                                                StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        WAV.replace(temporary, sidecar);
+    }
+
+    /**
+     * @param path the path to a WAV file
+     * @return the path to its sidecar file
+    */
+    public static Path sidecarOf(Path path) {
+        return path.resolveSibling(path.getFileName() + SIDECAR);
+    }
+
+
+
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getSampleRate() {
+        return sample_rate_per_chan;
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * @param channel the index of a channel
+     * @return the largest absolute value of a sample of the channel
+    */
+    public float getPeak(int channel) {
+        return peak[channel];
+    }
+
+    /**
+     * @param channel the index of a channel
+     * @return the root mean square of the samples of the channel
+    */
+    public double getRMS(int channel) {
+        return rms[channel];
+    }
+
+    /**
+     * @return the number of levels, the last of which has one bucket
+    */
+    public int getLevels() {
+        return levels.length;
+    }
+
+    /**
+     * @param level the index of a level
+     * @return the number of frames in a bucket of the level
+    */
+    public long getFramesPerBucket(int level) {
+        return bucketSize(level);
+    }
+
+    /**
+     * @param level the index of a level
+     * @return the number of buckets of the level
+    */
+    public int getBucketCount(int level) {
+        return levels[level].length / (channels * 3);
+    }
+
+    /**
+     * @param level the index of a level
+     * @param channel the index of a channel
+     * @param bucket the index of a bucket of the level
+     * @return the smallest sample of the channel in the bucket
+    */
+    public float getMin(int level, int channel, int bucket) {
+        return levels[level][(bucket * channels + channel) * 3] * (1f / 32768);
+    }
+
+    /**
+     * @param level the index of a level
+     * @param channel the index of a channel
+     * @param bucket the index of a bucket of the level
+     * @return the largest sample of the channel in the bucket
+    */
+    public float getMax(int level, int channel, int bucket) {
+        return levels[level][(bucket * channels + channel) * 3 + 1] * (1f / 32768);
+    }
+
+    /**
+     * @param level the index of a level
+     * @param channel the index of a channel
+     * @param bucket the index of a bucket of the level
+     * @return the root mean square of the samples of the channel in the bucket
+    */
+    public float getRMS(int level, int channel, int bucket) {
+        return levels[level][(bucket * channels + channel) * 3 + 2] * (1f / 32767);
+    }
+
+    public String toString() {
+        StringBuilder s = new StringBuilder(100);
+        s.append(frames).append(" frames, ").append(levels.length).append(" levels");
+        for (int c = 0; c < channels; ++c) {
+            s.append(", channel ").append(c).append(" peak ").append(peak[c]).append(" rms ").append((float) rms[c]);
+        }
+        return s.toString();
+    }
+
+
+
+
+    /**
+     * This method reads all of the audio, in parallel segments
+     * of whole buckets when there is enough of it.
+    */
+    private static WAVOverview analyze(WAVFile file, long source_size, long source_modified) throws IOException {
+        WAVHeader header   = file.getHeader();
+        int       channels = header.getChannels();
+        long      frames   = file.getFrameCount();
+        int       buckets  = bucketCount(frames, 0);
+
+        if (frames * header.getBlockSize() <= Integer.MAX_VALUE) {
+            file.asByteBuffer(); // The segments then share one mapping.
+        }
+
+        /*
+          Level 0 is kept as floats and sums of squares
+          until every other level has been made from it.
+        */
+        float[]  mins = new float[buckets * channels];
+        float[]  maxs = new float[buckets * channels];
+        double[] sums = new double[buckets * channels];
+
+        int segments = 1;
+        if (frames >= THRESHOLD) {
+            segments = (int) Math.min(ForkJoinPool.getCommonPoolParallelism() * 4L, frames / (THRESHOLD / 4));
+        }
+        int length = (buckets + segments - 1) / segments;   // In buckets.
+
+        if (segments == 1) {
+            analyze(file, 0, buckets, mins, maxs, sums);
+        }
+        else {
+            try {
+                IntStream.range(0, segments).parallel().forEach(s -> {
+                    try {
+                        analyze(file, s * length, Math.min(buckets, (s + 1) * length), mins, maxs, sums);
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        float[]  peak = new float[channels];
+        double[] rms  = new double[channels];
+        for (int c = 0; c < channels; ++c) {
+            double sum = 0;
+            for (int b = 0; b < buckets; ++b) {
+                int i = b * channels + c;
+                peak[c] = Math.max(peak[c], Math.max(-mins[i], maxs[i]));
+                sum += sums[i];
+            }
+            rms[c] = frames == 0 ? 0 : Math.sqrt(sum / frames);
+        }
+
+        short[][] levels = new short[levelCount(frames)][];
+        for (int l = 0; l < levels.length; ++l) {
+            int count = bucketCount(frames, l);
+            if (l > 0) {
+                merge(mins, maxs, sums, bucketCount(frames, l - 1), count, channels);
+            }
+            levels[l] = quantize(mins, maxs, sums, count, channels, frames, bucketSize(l));
+        }
+
+        return new WAVOverview(channels, header.getSampleRate(), frames, source_size, source_modified, peak, rms, levels);
+    }
+
+    /**
+     * This method fills the buckets of level 0 from 'first' inclusive
+     * to 'end' exclusive, BLOCK frames at a time.
+    */
+    private static void analyze(WAVFile file, int first, int end, float[] mins, float[] maxs, double[] sums) throws IOException {
+        int     channels = file.getHeader().getChannels();
+        long    frames   = file.getFrameCount();
+        float[] samples  = new float[BLOCK * channels];
+
+        for (long f = (long) first * BUCKET, stop = Math.min(frames, (long) end * BUCKET); f < stop; ) {
+            int n = (int) Math.min(BLOCK, stop - f);
+            file.readFrames(f, n, samples, 0);
+
+            for (int b = 0; b * BUCKET < n; ++b) {
+                int from = b * BUCKET * channels;
+                int to   = Math.min(n, (b + 1) * BUCKET) * channels;
+                int i    = (int) (f / BUCKET + b) * channels;
+
+                for (int c = 0; c < channels; ++c) {
+                    float  min = Float.POSITIVE_INFINITY;
+                    float  max = Float.NEGATIVE_INFINITY;
+                    double sum = 0;
+                    for (int k = from + c; k < to; k += channels) {
+                        float x = samples[k];
+                        min  = Math.min(min, x);
+                        max  = Math.max(max, x);
+                        sum += x * x;
+                    }
+                    mins[i + c] = min;
+                    maxs[i + c] = max;
+                    sums[i + c] = sum;
+                }
+            }
+            f += n;
+        }
+    }
+
+    /**
+     * This method merges every FACTOR buckets of a level into one
+     * bucket of the next level, in place at the start of the arrays.
+    */
+    private static void merge(float[] mins, float[] maxs, double[] sums, int from, int to, int channels) {
+        for (int b = 0; b < to; ++b) {
+            for (int c = 0; c < channels; ++c) {
+                float  min = Float.POSITIVE_INFINITY;
+                float  max = Float.NEGATIVE_INFINITY;
+                double sum = 0;
+                for (int k = b * FACTOR; k < Math.min(from, (b + 1) * FACTOR); ++k) {
+                    int i = k * channels + c;
+                    min  = Math.min(min, mins[i]);
+                    max  = Math.max(max, maxs[i]);
+                    sum += sums[i];
+                }
+                int i = b * channels + c;
+                mins[i] = min;
+                maxs[i] = max;
+                sums[i] = sum;
+            }
+        }
+    }
+
+    /**
+     * This method stores the buckets of a level as 16-bit samples,
+     * rounding the minimum down and the maximum up so that the
+     * waveform never looks quieter than the audio.
+    */
+    private static short[] quantize(float[] mins, float[] maxs, double[] sums, int count, int channels,
+                                    long frames, long frames_per_bucket) {
+        short[] level = new short[count * channels * 3];
+        for (int b = 0; b < count; ++b) {
+            long n = Math.min(frames_per_bucket, frames - b * frames_per_bucket);
+            for (int c = 0; c < channels; ++c) {
+                int i = b * channels + c;
+                level[i * 3]     = (short) Math.max(-32768, Math.min(32767, Math.floor(mins[i] * 32768.0)));
+                level[i * 3 + 1] = (short) Math.max(-32768, Math.min(32767, Math.ceil(maxs[i] * 32768.0)));
+                level[i * 3 + 2] = (short) Math.min(32767, Math.round(Math.sqrt(sums[i] / n) * 32767));
+            }
+        }
+        return level;
+    }
+
+    /**
+     * @return the number of buckets of a level of an overview of 'frames' frames
+    */
+    private static int bucketCount(long frames, int level) {
+        long size = bucketSize(level);
+        return (int) Math.max(1, (frames + size - 1) / size);
+    }
+
+    /**
+     * @return the number of frames in a bucket of a level
+    */
+    private static long bucketSize(int level) {
+        long size = BUCKET;
+        for (int l = 0; l < level; ++l) {
+            size *= FACTOR;
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of levels, stopping at the first level with one bucket
+    */
+    private static int levelCount(long frames) {
+        int levels = 1;
+        while (bucketCount(frames, levels - 1) > 1) {
+            ++levels;
+        }
+        return levels;
+    }
+}
@@ -0,0 +1,350 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.LongStream;
+
+
+/*
+  This class allows a WAV file whose length is known in advance
+  to be written by many threads at once, e.g. an offline render
+  whose segments of time can be computed independently.
+
+  The header says how many frames the file has, so the position of
+  every frame is known before any are written: the audio data starts
+  after 'getHeaderSize()' bytes and every frame takes 'getBlockSize()'
+  bytes. The file is therefore sized when it is opened, and each
+  thread is handed a Segment, a range of frames which no other
+  Segment overlaps. A Segment encodes its frames into its own direct
+  buffer and writes them with positional writes at their place in the
+  file, so threads never wait for each other, and the disk is given
+  as many writes at once as there are threads.
+
+  A Segment must be given exactly its frames, in order, and is then
+  committed by closing it. When every frame of the file has been
+  committed, closing the WAVParallelWriter writes the header, so a
+  file whose header is complete has all of its audio data.
+
+  'render' splits the file into Segments and fills them in parallel
+  with the common ForkJoinPool.
+*/
+public final class WAVParallelWriter implements AutoCloseable {
+    /*
+      The size of the buffer of each Segment in bytes, a multiple
+      of 2, 3 and 4 bytes like the buffer of a WAVWriter.
+    */
+    private static final int BUFFER_SIZE = 3 << 16;
+
+    private final FileChannel     channel;
+    private final WAVHeader       header;
+    private final WAVSampleFormat format;
+    private final long            frames;
+
+    /*
+      The first and the end frame of every Segment handed out.
+    */
+    private final TreeMap<Long, Long> segments = new TreeMap<>();
+    private final AtomicLong          committed = new AtomicLong();
+
+    private boolean closed;
+
+
+
+
+    /**
+     * A range of frames of the file, written by a single thread.
+    */
+    public final class Segment implements AutoCloseable {
+        private final long       first;
+        private final long       count;
+        private final ByteBuffer buffer;
+
+        private long    written;   // Frames, including those still buffered.
+        private long    flushed;   // Bytes.
+        private boolean closed;
+
+        private Segment(long first, long count) {
+            this.first  = first;
+            this.count  = count;
+            this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * @return the index of the first frame of the Segment in the file
+        */
+        public long getFirstFrame() {
+            return first;
+        }
+
+        public long getFrameCount() {
+            return count;
+        }
+
+        public long getFramesWritten() {
+            return written;
+        }
+
+        /**
+         * @param frames an array of shorts storing interleaved audio data
+         * @param offset the index of the first short to write
+         * @param count the number of frames to write
+        */
+        public void writeFrames(short[] frames, int offset, int count) throws IOException {
+            checkRoom(count);
+            for (int remaining = count * header.getChannels(); remaining > 0; ) {
+                int n = Math.min(remaining, room());
+                WAVSampleCodec.encode(frames, offset, n, format, buffer);
+                offset    += n;
+                remaining -= n;
+            }
+            written += count;
+        }
+
+        /**
+         * @param frames an array of ints storing interleaved audio data
+         * @param offset the index of the first int to write
+         * @param count the number of frames to write
+        */
+        public void writeFrames(int[] frames, int offset, int count) throws IOException {
+            checkRoom(count);
+            for (int remaining = count * header.getChannels(); remaining > 0; ) {
+                int n = Math.min(remaining, room());
+                WAVSampleCodec.encode(frames, offset, n, format, buffer);
+                offset    += n;
+                remaining -= n;
+            }
+            written += count;
+        }
+
+        /**
+         * @param frames an array of floats between -1 and 1 storing interleaved audio data
+         * @param offset the index of the first float to write
+         * @param count the number of frames to write
+        */
+        public void writeFrames(float[] frames, int offset, int count) throws IOException {
+            checkRoom(count);
+            for (int remaining = count * header.getChannels(); remaining > 0; ) {
+                int n = Math.min(remaining, room());
+                WAVSampleCodec.encode(frames, offset, n, format, buffer);
+                offset    += n;
+                remaining -= n;
+            }
+            written += count;
+        }
+
+        /**
+         * This method writes any buffered frames and commits the Segment.
+         * Closing a Segment more than once has no effect.
+         *
+         * @throws IllegalStateException if fewer frames were written than the Segment has
+        */
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            flush();
+            closed = true;
+            if (written != count) {
+                throw new IllegalStateException(written + " of the " + count + " frames of a segment were written");
+            }
+            committed.addAndGet(count);
+        }
+
+        /**
+         * This method flushes the buffer if it is full.
+         *
+         * @return the number of samples that fit in the buffer
+        */
+        private int room() throws IOException {
+            if (buffer.remaining() < format.getBytesPerSample()) {
+                flush();
+            }
+            return buffer.remaining() / format.getBytesPerSample();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            long position = header.getHeaderSize() + first * header.getBlockSize() + flushed;
+            flushed += buffer.limit();
+            WAVWriter.write(channel, buffer, position, buffer.limit() / header.getBlockSize());
+            buffer.clear();
+        }
+
+        private void checkRoom(int frames) {
+            if (closed) {
+                throw new IllegalStateException("segment is closed");
+            }
+            if (frames < 0 || written + frames > count) {
+                throw new IndexOutOfBoundsException(frames + " more frames do not fit in a segment of "
+                                                    + count + " frames with " + written + " written");
+            }
+        }
+    }
+
+    /*
+      A Renderer fills a Segment with its frames.
+    */
+    public interface Renderer {
+        void render(Segment segment) throws IOException;
+    }
+
+
+
+
+    /**
+     * This constructor creates a WAV file of the length given by
+     * its header. Any existing file called 'name' is truncated.
+     *
+     * @param name the path to the WAV file that is written
+     * @param header a WAVHeader whose 'data_size' is the size of the audio data
+    */
+    public WAVParallelWriter(String name, WAVHeader header) throws IOException {
+        this.header = header;
+        this.format = WAVSampleFormat.of(header);
+        this.frames = header.getDataSize() / header.getBlockSize();
+
+        this.channel = FileChannel.open(Paths.get(name),
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING);
+
+        /*
+          Writing the last byte, which is the pad byte if there is
+          one, sizes the file so no segment has to extend it.
+        */
+        try {
+            long data_size = header.getDataSize();
+            channel.write(ByteBuffer.allocate(1), header.getHeaderSize() + data_size + (data_size & 1) - 1);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+
+
+    /**
+     * This method hands out a range of frames. It may be
+     * called from any thread, and the Segment used by another.
+     *
+     * @param first the index of the first frame of the range
+     * @param count the number of frames in the range
+     * @return a Segment for writing the frames
+     * @throws IllegalArgumentException if the range overlaps another Segment
+    */
+    public Segment segment(long first, long count) {
+        if (first < 0 || count <= 0 || first + count > frames) {
+            throw new IndexOutOfBoundsException("frames " + first + " to " + (first + count)
+                                                + " are not in a file of " + frames + " frames");
+        }
+
+        synchronized (segments) {
+            if (closed) {
+                throw new IllegalStateException("WAVParallelWriter is closed");
+            }
+            Map.Entry<Long, Long> before = segments.floorEntry(first + count - 1);
+            if (before != null && before.getValue() > first) {
+                throw new IllegalArgumentException("frames " + first + " to " + (first + count)
+                                                   + " overlap frames " + before.getKey() + " to " + before.getValue());
+            }
+            segments.put(first, first + count);
+        }
+        return new Segment(first, count);
+    }
+
+    /**
+     * This method splits the file into Segments and renders
+     * them in parallel, committing each one as it is finished.
+     *
+     * @param segment_frames the number of frames in a Segment,
+     *                       except the last, which may have fewer
+     * @param renderer what fills each Segment
+    */
+    public void render(long segment_frames, Renderer renderer) throws IOException {
+        if (segment_frames <= 0) {
+            throw new IllegalArgumentException("a segment must have at least one frame");
+        }
+
+        long count = (frames + segment_frames - 1) / segment_frames;
+        try {
+            LongStream.range(0, count).parallel().forEach(s -> {
+                long first = s * segment_frames;
+                try (Segment segment = segment(first, Math.min(segment_frames, frames - first))) {
+                    renderer.render(segment);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+
+
+
+    /**
+     * @return the WAVHeader describing the file being written
+    */
+    public WAVHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * @return the number of frames in the file
+    */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * @return the number of frames in Segments which have been committed
+    */
+    public long getFramesCommitted() {
+        return committed.get();
+    }
+
+    /**
+     * This method writes the header, once every frame of the file
+     * has been committed, and closes the file. Closing a
+     * WAVParallelWriter more than once has no effect.
+     *
+     * @throws IllegalStateException if some frames were not committed,
+     *                               in which case no header is written
+    */
+    public void close() throws IOException {
+        synchronized (segments) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        try {
+            if (committed.get() != frames) {
+                throw new IllegalStateException("only " + committed.get() + " of " + frames + " frames were committed");
+            }
+
+            ByteBuffer bytes = ByteBuffer.allocate(header.getHeaderSize());
+            header.writeTo(bytes);
+            bytes.flip();
+            WAVWriter.write(channel, bytes, 0, 0);
+        }
+        finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,407 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/*
+  This class converts whole arrays of samples
+  to and from the bytes stored in a WAV file.
+
+  Samples are held in one of three kinds of array:
+
+   - short[] holds 16-bit samples;
+   - int[]   holds 32-bit samples, so 24-bit samples
+             are stored in the upper 24 bits of an int;
+   - float[] holds samples between -1 and 1.
+
+  Any kind of array can be encoded as, and decoded from,
+  any WAVSampleFormat. Converting to fewer bits truncates
+  integer samples, while floating point samples are rounded
+  to the nearest integer sample and clipped.
+
+  When encoding the same kind of sample as the bytes hold,
+  e.g. short[] as PCM_16, we copy through a buffer view, which
+  the JVM turns into a bulk memory copy. Otherwise we use VarHandles
+  which read and write little endian values at byte offsets of a
+  ByteBuffer, so there is no per-sample call to ByteBuffer.getShort.
+  Decoding always uses VarHandles, so that it never needs a view
+  and does not allocate.
+
+  Most methods read or write at the position of the ByteBuffer
+  and move the position past the bytes that they used. The decode
+  methods which take an index read there instead, and leave the
+  position alone, so that many threads can read one mapping.
+
+  Every call is counted in WAVMetrics.ENCODING or WAVMetrics.DECODING,
+  and recorded as a WAVEvents.SampleConversion event.
+*/
+public final class WAVSampleCodec {
+    private static final VarHandle SHORT = MethodHandles.byteBufferViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT   = MethodHandles.byteBufferViewVarHandle(int[].class,   ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle FLOAT = MethodHandles.byteBufferViewVarHandle(float[].class, ByteOrder.LITTLE_ENDIAN);
+
+
+    private WAVSampleCodec() {
+    }
+
+
+
+
+    /**
+     * @param src an array of 16-bit samples
+     * @param off the index of the first sample to encode
+     * @param len the number of samples to encode
+     * @param format the encoding of the samples in 'dst'
+     * @param dst where the encoded samples are written
+    */
+    public static void encode(short[] src, int off, int len, WAVSampleFormat format, ByteBuffer dst) {
+        int p = dst.position();
+        checkRemaining(dst, len, format);
+
+        WAVEvents.SampleConversion event = new WAVEvents.SampleConversion(true, format, len);
+
+        switch (format) {
+            case PCM_8:
+                for (int i = 0; i < len; ++i) {
+                    dst.put(p + i, (byte) ((src[off + i] >> 8) + 128));
+                }
+                break;
+            case PCM_16:
+                dst.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(src, off, len);
+                break;
+            case PCM_24:
+                for (int i = 0; i < len; ++i, p += 3) {
+                    put24(dst, p, src[off + i] << 16);
+                }
+                break;
+            case PCM_32:
+                for (int i = 0; i < len; ++i, p += 4) {
+                    INT.set(dst, p, src[off + i] << 16);
+                }
+                break;
+            case FLOAT_32:
+                for (int i = 0; i < len; ++i, p += 4) {
+                    FLOAT.set(dst, p, src[off + i] * (1f / 32768));
+                }
+                break;
+        }
+        dst.position(dst.position() + len * format.getBytesPerSample());
+        event.end((long) len * format.getBytesPerSample(), 0, len, null);
+    }
+
+    /**
+     * @param src an array of 32-bit samples
+     * @param off the index of the first sample to encode
+     * @param len the number of samples to encode
+     * @param format the encoding of the samples in 'dst'
+     * @param dst where the encoded samples are written
+    */
+    public static void encode(int[] src, int off, int len, WAVSampleFormat format, ByteBuffer dst) {
+        int p = dst.position();
+        checkRemaining(dst, len, format);
+
+        WAVEvents.SampleConversion event = new WAVEvents.SampleConversion(true, format, len);
+
+        switch (format) {
+            case PCM_8:
+                for (int i = 0; i < len; ++i) {
+                    dst.put(p + i, (byte) ((src[off + i] >> 24) + 128));
+                }
+                break;
+            case PCM_16:
+                for (int i = 0; i < len; ++i, p += 2) {
+                    SHORT.set(dst, p, (short) (src[off + i] >> 16));
+                }
+                break;
+            case PCM_24:
+                for (int i = 0; i < len; ++i, p += 3) {
+                    put24(dst, p, src[off + i]);
+                }
+                break;
+            case PCM_32:
+                dst.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(src, off, len);
+                break;
+            case FLOAT_32:
+                for (int i = 0; i < len; ++i, p += 4) {
+                    FLOAT.set(dst, p, (float) (src[off + i] * (1.0 / 2147483648.0)));
+                }
+                break;
+        }
+        dst.position(dst.position() + len * format.getBytesPerSample());
+        event.end((long) len * format.getBytesPerSample(), 0, len, null);
+    }
+
+    /**
+     * @param src an array of samples between -1 and 1
+     * @param off the index of the first sample to encode
+     * @param len the number of samples to encode
+     * @param format the encoding of the samples in 'dst'
+     * @param dst where the encoded samples are written
+    */
+    public static void encode(float[] src, int off, int len, WAVSampleFormat format, ByteBuffer dst) {
+        int p = dst.position();
+        checkRemaining(dst, len, format);
+
+        WAVEvents.SampleConversion event = new WAVEvents.SampleConversion(true, format, len);
+
+        switch (format) {
+            case PCM_8:
+                for (int i = 0; i < len; ++i) {
+                    dst.put(p + i, (byte) (toInt(src[off + i], 128f) + 128));
+                }
+                break;
+            case PCM_16:
+                for (int i = 0; i < len; ++i, p += 2) {
+                    SHORT.set(dst, p, (short) toInt(src[off + i], 32768f));
+                }
+                break;
+            case PCM_24:
+                for (int i = 0; i < len; ++i, p += 3) {
+                    put24(dst, p, toInt(src[off + i], 8388608f) << 8);
+                }
+                break;
+            case PCM_32:
+                for (int i = 0; i < len; ++i, p += 4) {
+                    INT.set(dst, p, toInt32(src[off + i]));
+                }
+                break;
+            case FLOAT_32:
+                dst.duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().put(src, off, len);
+                break;
+        }
+        dst.position(dst.position() + len * format.getBytesPerSample());
+        event.end((long) len * format.getBytesPerSample(), 0, len, null);
+    }
+
+
+
+
+    /**
+     * @param src where the encoded samples are read
+     * @param format the encoding of the samples in 'src'
+     * @param dst an array for 16-bit samples
+     * @param off the index of the first sample to decode
+     * @param len the number of samples to decode
+    */
+    public static void decode(ByteBuffer src, WAVSampleFormat format, short[] dst, int off, int len) {
+        decode(src, src.position(), format, dst, off, len);
+        src.position(src.position() + len * format.getBytesPerSample());
+    }
+
+    /**
+     * This method reads at 'index' and leaves the position alone,
+     * so a buffer shared by many readers needs no duplicate.
+     *
+     * @param src where the encoded samples are read
+     * @param index the index in 'src' of the first encoded sample
+     * @param format the encoding of the samples in 'src'
+     * @param dst an array for 16-bit samples
+     * @param off the index of the first sample to decode
+     * @param len the number of samples to decode
+    */
+    public static void decode(ByteBuffer src, int index, WAVSampleFormat format, short[] dst, int off, int len) {
+        int p = index;
+        checkRemaining(src, index, len, format);
+
+        WAVEvents.SampleConversion event = new WAVEvents.SampleConversion(false, format, len);
+
+        switch (format) {
+            case PCM_8:
+                for (int i = 0; i < len; ++i) {
+                    dst[off + i] = (short) (((src.get(p + i) & 0xFF) - 128) << 8);
+                }
+                break;
+            case PCM_16:
+                for (int i = 0; i < len; ++i, p += 2) {
+                    dst[off + i] = (short) SHORT.get(src, p);
+                }
+                break;
+            case PCM_24:
+                for (int i = 0; i < len; ++i, p += 3) {
+                    dst[off + i] = (short) (get24(src, p) >> 16);
+                }
+                break;
+            case PCM_32:
+                for (int i = 0; i < len; ++i, p += 4) {
+                    dst[off + i] = (short) ((int) INT.get(src, p) >> 16);
+                }
+                break;
+            case FLOAT_32:
+                for (int i = 0; i < len; ++i, p += 4) {
+                    dst[off + i] = (short) toInt((float) FLOAT.get(src, p), 32768f);
+                }
+                break;
+        }
+        event.end((long) len * format.getBytesPerSample(), 0, len, null);
+    }
+
+    /**
+     * @param src where the encoded samples are read
+     * @param format the encoding of the samples in 'src'
+     * @param dst an array for 32-bit samples
+     * @param off the index of the first sample to decode
+     * @param len the number of samples to decode
+    */
+    public static void decode(ByteBuffer src, WAVSampleFormat format, int[] dst, int off, int len) {
+        decode(src, src.position(), format, dst, off, len);
+        src.position(src.position() + len * format.getBytesPerSample());
+    }
+
+    /**
+     * This method reads at 'index' and leaves the position alone,
+     * so a buffer shared by many readers needs no duplicate.
+     *
+     * @param src where the encoded samples are read
+     * @param index the index in 'src' of the first encoded sample
+     * @param format the encoding of the samples in 'src'
+     * @param dst an array for 32-bit samples
+     * @param off the index of the first sample to decode
+     * @param len the number of samples to decode
+    */
+    public static void decode(ByteBuffer src, int index, WAVSampleFormat format, int[] dst, int off, int len) {
+        int p = index;
+        checkRemaining(src, index, len, format);
+
+        WAVEvents.SampleConversion event = new WAVEvents.SampleConversion(false, format, len);
+
+        switch (format) {
+            case PCM_8:
+                for (int i = 0; i < len; ++i) {
+                    dst[off + i] = ((src.get(p + i) & 0xFF) - 128) << 24;
+                }
+                break;
+            case PCM_16:
+                for (int i = 0; i < len; ++i, p += 2) {
+                    dst[off + i] = (short) SHORT.get(src, p) << 16;
+                }
+                break;
+            case PCM_24:
+                for (int i = 0; i < len; ++i, p += 3) {
+                    dst[off + i] = get24(src, p);
+                }
+                break;
+            case PCM_32:
+                for (int i = 0; i < len; ++i, p += 4) {
+                    dst[off + i] = (int) INT.get(src, p);
+                }
+                break;
+            case FLOAT_32:
+                for (int i = 0; i < len; ++i, p += 4) {
+                    dst[off + i] = toInt32((float) FLOAT.get(src, p));
+                }
+                break;
+        }
+        event.end((long) len * format.getBytesPerSample(), 0, len, null);
+    }
+
+    /**
+     * @param src where the encoded samples are read
+     * @param format the encoding of the samples in 'src'
+     * @param dst an array for samples between -1 and 1
+     * @param off the index of the first sample to decode
+     * @param len the number of samples to decode
+    */
+    public static void decode(ByteBuffer src, WAVSampleFormat format, float[] dst, int off, int len) {
+        decode(src, src.position(), format, dst, off, len);
+        src.position(src.position() + len * format.getBytesPerSample());
+    }
+
+    /**
+     * This method reads at 'index' and leaves the position alone,
+     * so a buffer shared by many readers needs no duplicate.
+     *
+     * @param src where the encoded samples are read
+     * @param index the index in 'src' of the first encoded sample
+     * @param format the encoding of the samples in 'src'
+     * @param dst an array for samples between -1 and 1
+     * @param off the index of the first sample to decode
+     * @param len the number of samples to decode
+    */
+    public static void decode(ByteBuffer src, int index, WAVSampleFormat format, float[] dst, int off, int len) {
+        int p = index;
+        checkRemaining(src, index, len, format);
+
+        WAVEvents.SampleConversion event = new WAVEvents.SampleConversion(false, format, len);
+
+        switch (format) {
+            case PCM_8:
+                for (int i = 0; i < len; ++i) {
+                    dst[off + i] = ((src.get(p + i) & 0xFF) - 128) * (1f / 128);
+                }
+                break;
+            case PCM_16:
+                for (int i = 0; i < len; ++i, p += 2) {
+                    dst[off + i] = (short) SHORT.get(src, p) * (1f / 32768);
+                }
+                break;
+            case PCM_24:
+                for (int i = 0; i < len; ++i, p += 3) {
+                    dst[off + i] = (get24(src, p) >> 8) * (1f / 8388608);
+                }
+                break;
+            case PCM_32:
+                for (int i = 0; i < len; ++i, p += 4) {
+                    dst[off + i] = (float) ((int) INT.get(src, p) * (1.0 / 2147483648.0));
+                }
+                break;
+            case FLOAT_32:
+                for (int i = 0; i < len; ++i, p += 4) {
+                    dst[off + i] = (float) FLOAT.get(src, p);
+                }
+                break;
+        }
+        event.end((long) len * format.getBytesPerSample(), 0, len, null);
+    }
+
+
+
+
+    /**
+     * This method writes the upper 24 bits of 'v'
+     * as 3 little endian bytes at index 'p'.
+    */
+    private static void put24(ByteBuffer dst, int p, int v) {
+        SHORT.set(dst, p, (short) (v >> 8));
+        dst.put(p + 2, (byte) (v >> 24));
+    }
+
+    /**
+     * This method reads 3 little endian bytes at index 'p'
+     * into the upper 24 bits of an int.
+    */
+    private static int get24(ByteBuffer src, int p) {
+        return (((short) SHORT.get(src, p) & 0xFFFF) << 8) | (src.get(p + 2) << 24);
+    }
+
+    /**
+     * @return 'x * scale' rounded to the nearest integer
+     *         and clipped to an integer sample of that scale
+    */
+    private static int toInt(float x, float scale) {
+        int v = Math.round(x * scale);
+        return Math.max(-(int) scale, Math.min((int) scale - 1, v));
+    }
+
+    /**
+     * @return 'x' as a 32-bit integer sample,
+     *         rounded and clipped
+    */
+    private static int toInt32(float x) {
+        long v = Math.round(x * 2147483648.0);
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, v));
+    }
+
+    private static void checkRemaining(ByteBuffer bytes, int len, WAVSampleFormat format) {
+        checkRemaining(bytes, bytes.position(), len, format);
+    }
+
+    private static void checkRemaining(ByteBuffer bytes, int index, int len, WAVSampleFormat format) {
+        int remaining = Math.max(0, bytes.limit() - index);
+        if (index < 0 || (long) len * format.getBytesPerSample() > remaining) {
+            throw new IndexOutOfBoundsException(len + " samples do not fit in " + remaining + " bytes at " + index);
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+  This enum lists the encodings of samples that
+  can be stored in the data chunk of a WAV file.
+
+  Integer samples of 8 bits are unsigned, with silence at 128.
+  Integer samples of 16, 24 and 32 bits are signed.
+  Floating point samples are between -1 and 1.
+*/
+public enum WAVSampleFormat {
+    PCM_8   (1,  8),
+    PCM_16  (1, 16),
+    PCM_24  (1, 24),
+    PCM_32  (1, 32),
+    FLOAT_32(3, 32);
+
+
+    /*
+      values() clones its array on every call.
+    */
+    private static final WAVSampleFormat[] FORMATS = values();
+
+    private final int audio_fmt;
+    private final int bit_depth_of_sample;
+
+
+    private WAVSampleFormat(int audio_fmt, int bit_depth_of_sample) {
+        this.audio_fmt           = audio_fmt;
+        this.bit_depth_of_sample = bit_depth_of_sample;
+    }
+
+
+
+
+    /**
+     * @param header a WAVHeader
+     * @return the encoding of the samples described by 'header'
+     * @throws WAVFormatException if the encoding is not supported
+    */
+    public static WAVSampleFormat of(WAVHeader header) throws WAVFormatException {
+        return of(header.getAudioFormat(), header.getBitDepth());
+    }
+
+    /**
+     * @param audio_fmt 1 for integer samples, 3 for floating point samples
+     * @param bit_depth_of_sample 8, 16, 24, or 32
+     * @return the encoding of such samples
+     * @throws WAVFormatException if the encoding is not supported
+    */
+    public static WAVSampleFormat of(int audio_fmt, int bit_depth_of_sample) throws WAVFormatException {
+        WAVSampleFormat format = find(audio_fmt, bit_depth_of_sample);
+        if (format != null) {
+            return format;
+        }
+        throw new WAVFormatException(bit_depth_of_sample + "-bit samples of audio format "
+                                     + audio_fmt + " are not supported");
+    }
+
+    /**
+     * @return the encoding of such samples, or null if it is not supported
+    */
+    static WAVSampleFormat find(int audio_fmt, int bit_depth_of_sample) {
+        for (WAVSampleFormat format : FORMATS) {
+            if (format.audio_fmt == audio_fmt && format.bit_depth_of_sample == bit_depth_of_sample) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+
+
+
+    /**
+     * @return 1 for integer samples, 3 for floating point samples
+    */
+    public int getAudioFormat() {
+        return audio_fmt;
+    }
+
+    /**
+     * @return the number of bits per sample
+    */
+    public int getBitDepth() {
+        return bit_depth_of_sample;
+    }
+
+    /**
+     * @return the number of bytes per sample
+    */
+    public int getBytesPerSample() {
+        return bit_depth_of_sample / 8;
+    }
+}
@@ -0,0 +1,298 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+
+/*
+  This class computes the spectrogram of a WAV file, i.e. how loud
+  every frequency is over time, for displays and band-energy analysis.
+
+  The audio is mixed down to one channel and cut into windows of
+  'size' frames, a window starting every 'hop' frames, so windows
+  overlap when 'hop' is less than 'size'. Each window is multiplied
+  by a Hann window and transformed by an FFT, and every bin of the
+  transform becomes one row entry. Windows which run past the end
+  of the file are padded with silence.
+
+  An entry is the level of a bin in dB relative to a full-scale sine,
+  between FLOOR and 0 dB, stored in one unsigned byte: 0 is FLOOR or
+  quieter and 255 is 0 dB or louder. A row is thus 'size / 2 + 1'
+  bytes, which is an eighth of the size of the window as floats.
+
+  The file is read BATCH rows at a time with a WAVFrameReader, so
+  however long the file is, only a batch of audio and a batch of rows
+  are held at once. The rows of a batch are transformed in parallel
+  by the common ForkJoinPool when the batch has at least THRESHOLD
+  samples, and handed to a Sink in order before the next batch is read.
+
+  A WAVSpectrogram is never changed after it is constructed, so
+  one WAVSpectrogram can be used by many threads at once.
+*/
+public final class WAVSpectrogram {
+    /*
+      The level in dB stored as 0.
+    */
+    public static final float FLOOR = -120f;
+
+    /*
+      What is added to the name of a WAV file to name its spectrogram file.
+    */
+    public static final String EXTENSION = ".spectrogram";
+
+    /*
+      The number of rows computed at a time.
+    */
+    static final int BATCH = 1 << 8;
+
+    /*
+      The number of samples in a batch below which we do not fork.
+    */
+    static final int THRESHOLD = 1 << 16;
+
+    private static final int MAGIC   = WAVHeader.fourCC("WSPG");
+    private static final int VERSION = 1;
+
+    private final FFT     fft;
+    private final int     size;
+    private final int     hop;
+    private final int     bins;
+    private final float[] window;
+
+    /*
+      What the power of a bin is multiplied by so that
+      a full-scale sine has a power of 1, i.e. 0 dB.
+    */
+    private final float scale;
+
+    /*
+      A Sink receives the rows of a spectrogram in order.
+    */
+    public interface Sink {
+        /**
+         * @param first the index of the first row
+         * @param count the number of rows
+         * @param levels the rows, 'getBins()' entries each,
+         *               which are only valid during the call
+        */
+        void accept(long first, int count, byte[] levels) throws IOException;
+    }
+
+
+
+
+    /**
+     * @param size the number of frames in a window, a power of 2 of at least 4
+     * @param hop the number of frames from the start of one window to the next
+    */
+    public WAVSpectrogram(int size, int hop) {
+        if (hop <= 0 || hop > size) {
+            throw new IllegalArgumentException("the hop must be between 1 and the window size " + size + ", not " + hop);
+        }
+        this.fft  = new FFT(size);
+        this.size = size;
+        this.hop  = hop;
+        this.bins = fft.getBins();
+
+        window     = new float[size];
+        double sum = 0;
+        for (int i = 0; i < size; ++i) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / size));
+            sum      += window[i];
+        }
+        scale = (float) (4 / (sum * sum));
+    }
+
+    /**
+     * This method writes the spectrogram of a WAV file to a file,
+     * next to it with the extension EXTENSION if 'to' is null.
+     * The file has a header of little-endian values:
+     *
+     *   "WSPG", the version, the sample rate, 'size', 'hop',
+     *   the number of frames (8 bytes), the number of rows (8 bytes),
+     *   the number of bins and FLOOR (a float)
+     *
+     * followed by the rows, one byte per bin.
+     *
+     * @param from the path to a WAV file
+     * @param to the path to the spectrogram file, or null
+     * @param size the number of frames in a window, a power of 2
+     * @param hop the number of frames from the start of one window to the next
+    */
+    public static void write(String from, String to, int size, int hop) throws IOException {
+        WAVSpectrogram spectrogram = new WAVSpectrogram(size, hop);
+        Path           path        = to != null ? Paths.get(to) : Paths.get(from + EXTENSION);
+        Path           temporary   = WAV.temporaryFor(path);
+
+        try (WAVFrameReader reader = WAVFrameReader.open(from);
+             FileChannel    out    = FileChannel.open(temporary,
+                                                      StandardOpenOption.CREATE,
+                                                      StandardOpenOption.WRITE,
+                                                      StandardOpenOption.TRUNCATE_EXISTING)) {
+            long frames = reader.getFrameCount();
+
+            ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION)
+                  .putInt(reader.getHeader().getSampleRate()).putInt(size).putInt(hop)
+                  .putLong(frames).putLong(spectrogram.getRowCount(frames))
+                  .putInt(spectrogram.getBins()).putFloat(FLOOR)
+                  .flip();
+            write(out, header);
+
+            spectrogram.process(reader, (first, count, levels) -> {
+                write(out, ByteBuffer.wrap(levels, 0, count * spectrogram.getBins()));
+            });
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        WAV.replace(temporary, path);
+    }
+
+
+
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getHop() {
+        return hop;
+    }
+
+    /**
+     * @return the number of entries in a row; entry 'k' is
+     *         the frequency 'k * sample_rate / getSize()'
+    */
+    public int getBins() {
+        return bins;
+    }
+
+    /**
+     * @return the number of rows in the spectrogram of 'frames' frames
+    */
+    public long getRowCount(long frames) {
+        return (frames + hop - 1) / hop;
+    }
+
+    /**
+     * @param level an entry of a row
+     * @return the level in dB that the entry stands for
+    */
+    public static float getDecibels(byte level) {
+        return FLOOR - FLOOR * (level & 0xFF) / 255;
+    }
+
+
+
+
+    /**
+     * This method computes the spectrogram of every frame of a file.
+     *
+     * @param reader the WAV file
+     * @param sink what the rows are handed to, BATCH rows at a time
+    */
+    public void process(WAVFrameReader reader, Sink sink) throws IOException {
+        int  channels = reader.getHeader().getChannels();
+        long frames   = reader.getFrameCount();
+        long rows     = getRowCount(frames);
+        int  span     = (BATCH - 1) * hop + size;   // The frames needed for a batch.
+
+        float[] samples = new float[span * channels];
+        float[] mono    = new float[span];
+        byte[]  levels  = new byte[BATCH * bins];
+
+        for (long row = 0; row < rows; row += BATCH) {
+            int  count = (int) Math.min(BATCH, rows - row);
+            long first = row * hop;
+
+            /*
+              The windows of consecutive batches overlap,
+              so the overlap is simply read again.
+            */
+            int n = (int) Math.min((count - 1) * hop + size, frames - first);
+            reader.readFrames(first, n, samples, 0);
+            for (int i = 0; i < n; ++i) {
+                float sum = 0;
+                for (int c = 0; c < channels; ++c) {
+                    sum += samples[i * channels + c];
+                }
+                mono[i] = sum / channels;
+            }
+            Arrays.fill(mono, n, span, 0f);
+
+            transform(mono, count, levels);
+            sink.accept(row, count, levels);
+        }
+    }
+
+    /**
+     * This method computes rows from mono samples,
+     * in parallel segments when there are enough of them.
+     *
+     * @param mono the samples, starting at the start of the first row
+     * @param count the number of rows
+     * @param levels where the rows are stored
+    */
+    void transform(float[] mono, int count, byte[] levels) {
+        int segments = 1;
+        if ((long) count * size >= THRESHOLD) {
+            segments = Math.min(ForkJoinPool.getCommonPoolParallelism() * 4, count);
+        }
+        int length = (count + segments - 1) / segments;
+
+        if (segments == 1) {
+            transform(mono, 0, count, levels);
+        }
+        else {
+            IntStream.range(0, segments).parallel().forEach(s -> {
+                transform(mono, s * length, Math.min(count, (s + 1) * length), levels);
+            });
+        }
+    }
+
+
+
+
+    /**
+     * This method computes the rows from 'first' inclusive to 'end' exclusive,
+     * with its own arrays so that segments can run at the same time.
+    */
+    private void transform(float[] mono, int first, int end, byte[] levels) {
+        float[] x  = new float[size];
+        float[] re = new float[bins];
+        float[] im = new float[bins];
+
+        for (int r = first; r < end; ++r) {
+            int from = r * hop;
+            for (int i = 0; i < size; ++i) {
+                x[i] = mono[from + i] * window[i];
+            }
+            fft.forward(x, re, im);
+
+            for (int k = 0, p = r * bins; k < bins; ++k, ++p) {
+                float  power    = (re[k] * re[k] + im[k] * im[k]) * scale;
+                double decibels = power > 0 ? 10 * Math.log10(power) : FLOOR;
+                long   level    = Math.round((decibels - FLOOR) * 255 / -FLOOR);
+                levels[p] = (byte) Math.max(0, Math.min(255, level));
+            }
+        }
+    }
+
+    private static void write(FileChannel out, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -3,8 +3,8 @@
   if someone attempts to make a WAVHeader for a stereo WAV file
   but provides a left and right channel with different lengths.
 */
-public class WAVStereoException extends RuntimeException {
+public class WAVStereoException extends WAVChannelException {
     public WAVStereoException() {
         super("left and right channels do not have the same number of samples");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,411 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/*
+  This class converts many WAV files to compact disk quality,
+  i.e. 16-bit integer samples at 44100 Hz, in one JVM.
+
+  Every file is read, converted and written by its own virtual
+  thread: its samples are read as floats, resampled by a Resampler
+  if its sample rate is not 44100 Hz, and rounded to 16 bits by the
+  WAVWriter. The number of channels is kept. A batch of thousands of
+  files thus pays for starting the JVM, and compiling the codecs, once.
+
+  Two semaphores bound the work in flight. One bounds how many files
+  are being converted at once, and is acquired before a virtual thread
+  is started, so listing the files cannot get far ahead of converting
+  them. The other holds the memory budget in KB; each file acquires
+  the memory that its buffers need, from 'getMemoryNeeded', once its
+  header has been read, so files with many channels or a low sample
+  rate wait until there is room for them.
+
+  Every file is written to a temporary file of its own next to its
+  target, which is renamed to the target once it is complete. A file is
+  never written over the file it is converted from, and when several
+  files of a batch have the same target only the first is converted. Files which cannot be
+  converted are recorded as failures rather than stopping the batch;
+  their temporary file is deleted and any existing target is left as it was.
+*/
+public final class WAVTranscoder {
+    /**
+     * The outcome of converting one file.
+     *
+     * @param from the path to the WAV file converted
+     * @param to the path to the WAV file written
+     * @param sample_rate_per_chan the sample rate of 'from'
+     * @param bit_depth_of_sample the number of bits per sample of 'from'
+     * @param bytes_read the size of the audio data of 'from' in bytes
+     * @param bytes_written the size of the audio data of 'to' in bytes
+     * @param seconds the length of the audio in seconds
+     * @param nanos the time taken to convert the file
+     * @param failure why the file could not be converted, or null
+    */
+    public record Result(Path        from,
+                         Path        to,
+                         int         sample_rate_per_chan,
+                         int         bit_depth_of_sample,
+                         long        bytes_read,
+                         long        bytes_written,
+                         double      seconds,
+                         long        nanos,
+                         IOException failure) {
+
+        /**
+         * @return the fields of 'this' separated by tabs
+        */
+        public String toString() {
+            return String.format(Locale.ROOT, "%s\t%s\t%d\t%d\t%d\t%d\t%.3f\t%.3f\t%s",
+                                 from, to, sample_rate_per_chan, bit_depth_of_sample,
+                                 bytes_read, bytes_written, seconds, nanos / 1e6,
+                                 failure == null ? "ok" : failure.getMessage());
+        }
+    }
+
+
+
+
+    /*
+      The sample rate of compact disk quality audio.
+    */
+    public static final int SAMPLE_RATE = 44100;
+
+    /*
+      The default number of files that are converted at once.
+    */
+    public static final int DEFAULT_MAX_FILES = 64;
+
+    /*
+      The default memory budget in bytes, i.e. 256 MB.
+    */
+    public static final long DEFAULT_MEMORY_BUDGET = 1L << 28;
+
+    /*
+      The number of frames read at a time.
+    */
+    static final int BLOCK = Resampler.BLOCK;
+
+    private final List<Result> results;
+    private final long         nanos;
+
+
+
+
+    private WAVTranscoder(List<Result> results, long nanos) {
+        this.results = results;
+        this.nanos   = nanos;
+    }
+
+    /**
+     * This factory method converts every file ending in ".wav" in
+     * a directory tree, into the same relative path under 'to'.
+     * If 'to' is inside the tree, the files already in it are skipped.
+     *
+     * @param root the directory to convert
+     * @param to the directory the converted files are written to
+     * @param max_files the largest number of files converted at once
+     * @param memory_budget the most memory in bytes used for buffers at once
+     * @return the results, sorted by path
+    */
+    public static WAVTranscoder transcode(Path root, Path to, int max_files, long memory_budget) throws IOException {
+        Path       input  = root.toAbsolutePath().normalize();
+        Path       output = to.toAbsolutePath().normalize();
+        boolean    inside = output.startsWith(input) && !output.equals(input);
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(root)) {
+            files = paths.filter(WAVCatalog::isWAVFile)
+                         .filter(path -> !inside || !path.toAbsolutePath().normalize().startsWith(output))
+                         .collect(Collectors.toList());
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause(); // Files.walk failed to list a directory.
+        }
+        return transcode(files, path -> to.resolve(root.relativize(path)), max_files, memory_budget);
+    }
+
+    /**
+     * This factory method converts a list of files,
+     * each into a file of the same name in 'to'.
+     *
+     * @param files the WAV files to convert
+     * @param to the directory the converted files are written to
+     * @param max_files the largest number of files converted at once
+     * @param memory_budget the most memory in bytes used for buffers at once
+     * @return the results, sorted by path
+    */
+    public static WAVTranscoder transcode(List<Path> files, Path to, int max_files, long memory_budget) {
+        return transcode(files, path -> to.resolve(path.getFileName()), max_files, memory_budget);
+    }
+
+    /**
+     * This method converts one file on the calling thread.
+     *
+     * @param from the path to the WAV file to convert
+     * @param to the path to the WAV file that is written
+     * @return the result of the conversion
+    */
+    public static Result transcode(Path from, Path to) throws IOException {
+        return convert(from, to, null, Integer.MAX_VALUE);
+    }
+
+
+
+
+    /**
+     * @return the result of every file, sorted by path
+    */
+    public List<Result> getResults() {
+        return results;
+    }
+
+    /**
+     * @return the results of the files which could not be converted
+    */
+    public List<Result> getFailures() {
+        return results.stream().filter(result -> result.failure() != null).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the time taken to convert the whole batch in nanoseconds
+    */
+    public long getElapsedNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return the size of the audio data read, over the whole batch
+    */
+    public long getBytesRead() {
+        return results.stream().mapToLong(Result::bytes_read).sum();
+    }
+
+    /**
+     * @return the size of the audio data written, over the whole batch
+    */
+    public long getBytesWritten() {
+        return results.stream().mapToLong(Result::bytes_written).sum();
+    }
+
+    /**
+     * @return the number of bytes of audio data read per second
+    */
+    public double getThroughput() {
+        return nanos == 0 ? 0 : getBytesRead() * 1e9 / nanos;
+    }
+
+    /**
+     * @return how many seconds of audio were converted per second
+    */
+    public double getSpeed() {
+        double seconds = results.stream().filter(result -> result.failure() == null).mapToDouble(Result::seconds).sum();
+        return nanos == 0 ? 0 : seconds * 1e9 / nanos;
+    }
+
+    /**
+     * This method writes one tab separated line per file,
+     * followed by a line for the whole batch.
+     *
+     * @param out where the results are written
+    */
+    public void writeTo(Appendable out) throws IOException {
+        out.append("from\tto\tsample_rate_per_chan\tbit_depth_of_sample\tbytes_read\tbytes_written\tseconds\tmillis\tresult\n");
+        for (Result result : results) {
+            out.append(result.toString()).append('\n');
+        }
+        out.append(String.format(Locale.ROOT, "%d files, %d failed, %d bytes in %.3f s, %.1f MB/s, %.1fx real time%n",
+                                 results.size(), getFailures().size(), getBytesRead(), nanos / 1e9,
+                                 getThroughput() / 1e6, getSpeed()));
+    }
+
+    /**
+     * @param header the header of a file to convert
+     * @return about how many bytes of buffers converting the file needs
+    */
+    public static long getMemoryNeeded(WAVHeader header) {
+        long channels = header.getChannels();
+        long output   = (long) BLOCK * SAMPLE_RATE / Math.max(1, header.getSampleRate()) + 1;
+
+        /*
+          The interleaved block read, the block split into channels,
+          the resampled block of each channel, and the WAVWriter's buffer.
+        */
+        return 4 * channels * (2L * BLOCK + output) + (3 << 16);
+    }
+
+
+
+
+    /**
+     * This method converts a directory tree of WAV files.
+     *
+     * @param args the directory to convert and the directory to write to,
+     *             optionally followed by the largest number of files
+     *             converted at once and the memory budget in MB
+    */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: WAVTranscoder from_directory to_directory [max_files [memory_budget_in_MB]]");
+            System.exit(1);
+        }
+        Path root          = Paths.get(args[0]);
+        Path to            = Paths.get(args[1]);
+        int  max_files     = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_MAX_FILES;
+        long memory_budget = args.length > 3 ? Long.parseLong(args[3]) << 20 : DEFAULT_MEMORY_BUDGET;
+
+        transcode(root, to, max_files, memory_budget).writeTo(System.out);
+    }
+
+
+
+
+    private static WAVTranscoder transcode(List<Path> files, Function<Path, Path> target, int max_files, long memory_budget) {
+        if (max_files < 1) {
+            throw new IllegalArgumentException("max_files must be at least 1");
+        }
+        int budget = (int) Math.min(Integer.MAX_VALUE, memory_budget >> 10);
+        if (budget < 1) {
+            throw new IllegalArgumentException("the memory budget must be at least 1 KB");
+        }
+
+        Semaphore                     running = new Semaphore(max_files);
+        Semaphore                     memory  = new Semaphore(budget);
+        ConcurrentLinkedQueue<Result> results = new ConcurrentLinkedQueue<>();
+        Map<Path, Path>               targets = new HashMap<>();
+
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Path from : files) {
+                Path to    = target.apply(from);
+                Path taken = targets.putIfAbsent(to.toAbsolutePath().normalize(), from);
+                if (taken != null) {
+                    results.add(new Result(from, to, 0, 0, 0, 0, 0, 0,
+                                           new IOException(to + " is already the target of " + taken)));
+                    continue;
+                }
+
+                /*
+                  We acquire a permit before starting the virtual thread,
+                  so listing the files cannot get far ahead of converting them.
+                */
+                running.acquireUninterruptibly();
+                executor.execute(() -> {
+                    try {
+                        results.add(convert(from, to, memory, budget));
+                    }
+                    catch (IOException e) {
+                        results.add(new Result(from, to, 0, 0, 0, 0, 0, 0, e));
+                    }
+                    finally {
+                        running.release();
+                    }
+                });
+            }
+        }
+        long nanos = System.nanoTime() - start;
+
+        List<Result> sorted = new ArrayList<>(results);
+        sorted.sort(Comparator.comparing(Result::from));
+        return new WAVTranscoder(sorted, nanos);
+    }
+
+    /**
+     * This method converts one file, taking the memory that it needs
+     * from 'memory' while it does, if 'memory' is not null.
+    */
+    private static Result convert(Path from, Path to, Semaphore memory, int budget) throws IOException {
+        long start = System.nanoTime();
+
+        try (WAVFile in = WAVFile.open(from.toString())) {
+            WAVHeader header = in.getHeader();
+            long      frames = in.getFrameCount();
+
+            /*
+              A file needing more than the whole budget
+              takes all of it, so that it still runs.
+            */
+            int permits = (int) Math.min(budget, (getMemoryNeeded(header) + 1023) >> 10);
+            if (memory != null) {
+                memory.acquireUninterruptibly(permits);
+            }
+
+            try {
+                WAV.checkNotSameFile(to, from);
+
+                Path parent = to.toAbsolutePath().getParent();
+                if (parent != null) {
+                    Files.createDirectories(parent);
+                }
+
+                /*
+                  Each conversion has a temporary file of its own,
+                  even if another conversion has the same target.
+                */
+                Path temporary = Files.createTempFile(parent, to.getFileName().toString(), ".tmp");
+                long written;
+                try {
+                    long      most   = Resampler.getMaxFrameCount(frames, header.getSampleRate(), SAMPLE_RATE);
+                    WAVHeader target = new WAVHeader(1, header.getChannels(), SAMPLE_RATE, 16, most);   // Reserves a ds64 chunk if needed.
+                    try (WAVWriter out = new WAVWriter(temporary.toString(), target)) {
+                        if (header.getSampleRate() == SAMPLE_RATE) {
+                            copy(in, out);
+                        }
+                        else {
+                            Resampler.resample(in, out);
+                        }
+                        written = out.getFramesWritten() * out.getHeader().getBlockSize();
+                    }
+                    WAV.replace(temporary, to);
+                }
+                catch (IOException | RuntimeException e) {
+                    Files.deleteIfExists(temporary);
+                    throw e;
+                }
+
+                return new Result(from, to, header.getSampleRate(), header.getBitDepth(),
+                                  frames * header.getBlockSize(), written,
+                                  (double) frames / header.getSampleRate(), System.nanoTime() - start, null);
+            }
+            finally {
+                if (memory != null) {
+                    memory.release(permits);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            throw new IOException(from + " could not be converted: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * This method copies the samples of a file which
+     * already has the right sample rate, BLOCK frames at a time.
+    */
+    private static void copy(WAVFile in, WAVWriter out) throws IOException {
+        float[] frames = new float[BLOCK * in.getHeader().getChannels()];
+
+        long total = in.getFrameCount();
+        for (long first = 0; first < total; first += BLOCK) {
+            int count = (int) Math.min(BLOCK, total - first);
+            in.readFrames(first, count, frames, 0);
+            out.writeFrames(frames, 0, count);
+        }
+    }
+}
@@ -0,0 +1,432 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.io.IOException;
+
+
+/*
+  This class allows the writing of WAV files whose length
+  is not known in advance.
+
+  A WAVWriter is opened once and is then given blocks of frames
+  as they are produced. The frames are encoded into a reusable
+  direct buffer which is written to a FileChannel whenever it
+  fills up, so the memory used does not depend on the length
+  of the file.
+
+  Frames can be given as short[], int[] or float[] arrays,
+  and a WAVSampleCodec encodes them in bulk in whatever
+  format the header describes, e.g. packed 24-bit samples.
+
+  The header is written when the WAVWriter is opened, with a
+  'data_size' of 0. When the WAVWriter is closed, 'riff_size'
+  and 'data_size' are patched in the WAVHeader and the header
+  is written again at the start of the file.
+
+  The WAVWriter writes a copy of the header it is given, so the
+  caller's WAVHeader is never changed. By default, the header is the
+  usual 44 bytes and the file cannot grow beyond 4 GB. When
+  'reserve_ds64' is true, the header starts with a JUNK chunk of
+  28 bytes. If the file grows beyond 4 GB, the JUNK chunk becomes a
+  ds64 chunk when the header is written again, and the file becomes
+  an RF64 file without any of its audio data being moved. Without the
+  JUNK chunk, writing past 4 GB throws an IOException as soon as the
+  buffer which would cross the limit is flushed, and that buffer is
+  dropped, so closing the WAVWriter still leaves a valid file.
+*/
+public class WAVWriter implements AutoCloseable {
+    /*
+      The size of the reusable buffer in bytes.
+      It is a multiple of 2, 3 and 4 bytes, so no sample
+      of a supported format is split between two writes.
+    */
+    private static final int BUFFER_SIZE = 3 << 16;
+
+    private final FileChannel     channel;
+    private final WAVHeader       header;
+    private final WAVSampleFormat format;
+
+    private final ByteBuffer      buffer;
+
+    /*
+      Reusable arrays for interleaving channels which are
+      stored separately, allocated the first time they are used.
+    */
+    private short[] short_frames;
+    private int[]   int_frames;
+    private float[] float_frames;
+
+    private long    data_size;
+    private boolean closed;
+
+
+
+
+    /**
+     * This constructor opens a WAV file for writing, with the
+     * usual 44 byte header, so the file must stay under 4 GB.
+     * Any existing file called 'name' is truncated.
+     *
+     * @param name the path to the WAV file that is written
+     * @param header a WAVHeader describing the format of the audio data,
+     *               which is copied rather than changed
+    */
+    public WAVWriter(String name, WAVHeader header) throws IOException {
+        this(name, header, false);
+    }
+
+    /**
+     * This constructor opens a WAV file for writing.
+     * Any existing file called 'name' is truncated.
+     *
+     * @param name the path to the WAV file that is written
+     * @param header a WAVHeader describing the format of the audio data,
+     *               which is copied rather than changed
+     * @param reserve_ds64 true to reserve a JUNK chunk so the file
+     *                     can become an RF64 file larger than 4 GB
+    */
+    public WAVWriter(String name, WAVHeader header, boolean reserve_ds64) throws IOException {
+        this.header = header.copy();
+        if (reserve_ds64) {
+            this.header.reserveDS64();
+        }
+        this.header.setDataSize(0);
+
+        this.format  = WAVSampleFormat.of(header);
+        this.channel = FileChannel.open(Paths.get(name),
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING);
+
+        buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, this.header.getHeaderSize()));
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            writeHeader();
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * This factory method opens a WAV file for writing
+     * compact disk quality audio.
+     *
+     * @param name the path to the WAV file that is written
+     * @param channels 1 for mono, 2 for stereo
+     * @return a WAVWriter for 16-bit, 44100 Hz integer samples
+     *         with the usual 44 byte header
+    */
+    public static WAVWriter openCompactDiskQualityWAVFile(String name, int channels) throws IOException {
+        return new WAVWriter(name, new WAVHeader(1, channels, 44100, 16, 0));
+    }
+
+
+
+
+    /**
+     * This method writes frames of 16-bit audio data
+     * that are stored one after another, e.g. left, right, left, right.
+     *
+     * @param frames an array of shorts storing interleaved audio data
+     * @param offset the index of the first short to write
+     * @param count the number of frames to write
+    */
+    public void writeFrames(short[] frames, int offset, int count) throws IOException {
+        checkOpen();
+
+        int remaining = count * header.getChannels();
+        while (remaining > 0) {
+            int n = Math.min(remaining, room());
+            WAVSampleCodec.encode(frames, offset, n, format, buffer);
+
+            offset    += n;
+            remaining -= n;
+        }
+    }
+
+    /**
+     * This method writes frames of 32-bit audio data
+     * that are stored one after another, e.g. left, right, left, right.
+     *
+     * @param frames an array of ints storing interleaved audio data
+     * @param offset the index of the first int to write
+     * @param count the number of frames to write
+    */
+    public void writeFrames(int[] frames, int offset, int count) throws IOException {
+        checkOpen();
+
+        int remaining = count * header.getChannels();
+        while (remaining > 0) {
+            int n = Math.min(remaining, room());
+            WAVSampleCodec.encode(frames, offset, n, format, buffer);
+
+            offset    += n;
+            remaining -= n;
+        }
+    }
+
+    /**
+     * This method writes frames of audio data between -1 and 1
+     * that are stored one after another, e.g. left, right, left, right.
+     *
+     * @param frames an array of floats storing interleaved audio data
+     * @param offset the index of the first float to write
+     * @param count the number of frames to write
+    */
+    public void writeFrames(float[] frames, int offset, int count) throws IOException {
+        checkOpen();
+
+        int remaining = count * header.getChannels();
+        while (remaining > 0) {
+            int n = Math.min(remaining, room());
+            WAVSampleCodec.encode(frames, offset, n, format, buffer);
+
+            offset    += n;
+            remaining -= n;
+        }
+    }
+
+    /**
+     * This method writes frames of 16-bit stereo audio data
+     * that are stored in two separate arrays.
+     *
+     * @param left an array of shorts storing audio data
+     * @param right an array of shorts storing audio data
+     * @param offset the index of the first sample of each channel to write
+     * @param count the number of frames to write
+    */
+    public void writeFrames(short[] left, short[] right, int offset, int count) throws IOException {
+        if (left.length != right.length) {
+            throw new WAVStereoException();
+        }
+        writeFrames(new short[][] { left, right }, offset, count);
+    }
+
+    /**
+     * This method writes frames of 16-bit audio data
+     * that are stored in a separate array for every channel.
+     *
+     * @param channels an array of shorts for every channel
+     * @param offset the index of the first sample of each channel to write
+     * @param count the number of frames to write
+    */
+    public void writeFrames(short[][] channels, int offset, int count) throws IOException {
+        checkChannels(channels);
+        if (short_frames == null) {
+            short_frames = new short[scratchLength()];
+        }
+
+        int per_block = short_frames.length / channels.length;
+        for (int end = offset + count; offset < end; offset += per_block) {
+            int n = Math.min(per_block, end - offset);
+            WAVInterleaver.interleave(channels, offset, n, short_frames, 0);
+            writeFrames(short_frames, 0, n);
+        }
+    }
+
+    /**
+     * This method writes frames of 32-bit audio data
+     * that are stored in a separate array for every channel.
+     *
+     * @param channels an array of ints for every channel
+     * @param offset the index of the first sample of each channel to write
+     * @param count the number of frames to write
+    */
+    public void writeFrames(int[][] channels, int offset, int count) throws IOException {
+        checkChannels(channels);
+        if (int_frames == null) {
+            int_frames = new int[scratchLength()];
+        }
+
+        int per_block = int_frames.length / channels.length;
+        for (int end = offset + count; offset < end; offset += per_block) {
+            int n = Math.min(per_block, end - offset);
+            WAVInterleaver.interleave(channels, offset, n, int_frames, 0);
+            writeFrames(int_frames, 0, n);
+        }
+    }
+
+    /**
+     * This method writes frames of audio data between -1 and 1
+     * that are stored in a separate array for every channel.
+     *
+     * @param channels an array of floats for every channel
+     * @param offset the index of the first sample of each channel to write
+     * @param count the number of frames to write
+    */
+    public void writeFrames(float[][] channels, int offset, int count) throws IOException {
+        checkChannels(channels);
+        if (float_frames == null) {
+            float_frames = new float[scratchLength()];
+        }
+
+        int per_block = float_frames.length / channels.length;
+        for (int end = offset + count; offset < end; offset += per_block) {
+            int n = Math.min(per_block, end - offset);
+            WAVInterleaver.interleave(channels, offset, n, float_frames, 0);
+            writeFrames(float_frames, 0, n);
+        }
+    }
+
+
+
+
+    /**
+     * @return the WAVHeader describing the file being written,
+     *         which is the WAVWriter's own copy
+    */
+    public WAVHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * @return the number of frames written so far,
+     *         including frames that are still buffered
+    */
+    public long getFramesWritten() {
+        return (data_size + fill()) / header.getBlockSize();
+    }
+
+
+
+
+    /**
+     * This method writes any buffered audio data,
+     * patches the header, and closes the file.
+     * Closing a WAVWriter more than once has no effect.
+    */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            flush();
+
+            /*
+              RIFF chunks must have an even size,
+              so odd-sized data is followed by a pad byte.
+            */
+            if ((data_size & 1) != 0) {
+                buffer.clear();
+                buffer.put((byte) 0);
+                buffer.flip();
+                channel.write(buffer, header.getHeaderSize() + data_size);
+            }
+
+            header.setDataSize(data_size);
+            writeHeader();
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+
+
+
+    /**
+     * @return the number of bytes waiting in the buffer
+    */
+    private int fill() {
+        return buffer.position();
+    }
+
+    /**
+     * This method flushes the buffer if it is full.
+     *
+     * @return the number of samples that fit in the buffer
+    */
+    private int room() throws IOException {
+        if (buffer.remaining() < format.getBytesPerSample()) {
+            flush();
+        }
+        return buffer.remaining() / format.getBytesPerSample();
+    }
+
+    /**
+     * This method writes the contents of the buffer
+     * after the data already in the file and empties the buffer.
+    */
+    private void flush() throws IOException {
+        if (!header.canHold(data_size + fill())) {
+            buffer.clear();
+            throw new IOException("a WAV file larger than 4 GB needs a WAVWriter which reserves a ds64 chunk");
+        }
+        buffer.flip();
+        write(channel, buffer, header.getHeaderSize() + data_size, buffer.remaining() / header.getBlockSize());
+        data_size += buffer.limit();
+        buffer.clear();
+    }
+
+    /**
+     * This method writes the header at the start of the file.
+     * It is only called when the buffer is empty.
+    */
+    private void writeHeader() throws IOException {
+        buffer.clear();
+        header.writeTo(buffer);
+        buffer.flip();
+        write(channel, buffer, 0, 0);
+        buffer.clear();
+    }
+
+    /**
+     * This method writes the contents of a buffer at 'position',
+     * counting the write in WAVMetrics.WRITES and WAVEvents.
+     * It is shared with WAVParallelWriter and WAVMixer.
+     *
+     * @param frames the number of frames in the buffer, 0 for a header
+    */
+    static void write(FileChannel channel, ByteBuffer buffer, long position, int frames) throws IOException {
+        WAVEvents.FileWrite event = new WAVEvents.FileWrite(position);
+
+        int         size    = buffer.remaining();
+        IOException failure = null;
+        try {
+            for (long p = position; buffer.hasRemaining(); ) {
+                p += channel.write(buffer, p);
+            }
+        }
+        catch (IOException e) {
+            failure = e;   // Ended below, so that the event object can be removed.
+        }
+
+        event.bytes = size - buffer.remaining();
+        event.end(size, frames, 0, failure);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return the length of the arrays used for interleaving,
+     *         which is a whole number of frames
+    */
+    private int scratchLength() {
+        int channels = header.getChannels();
+        return Math.max(1, BUFFER_SIZE / format.getBytesPerSample() / channels) * channels;
+    }
+
+    private void checkChannels(Object[] channels) {
+        WAVInterleaver.checkLengths(channels);
+        if (channels.length != header.getChannels()) {
+            throw new WAVChannelException(channels.length + " channels were given for a WAV file with "
+                                          + header.getChannels() + " channels");
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("WAVWriter is closed");
+        }
+    }
+}
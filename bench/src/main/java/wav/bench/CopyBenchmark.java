@@ -0,0 +1,87 @@
+package wav.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.file.Path;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/*
+  These benchmarks measure copying a whole WAV file, for several
+  sizes and bit depths. 'copy' uses WAV.copy. 'streamCopy' is the
+  way Test2 copies euclid.wav, reading every byte and writing it
+  one at a time to a BufferedOutputStream, as a baseline.
+
+  The file being copied stays in the page cache after the first
+  iteration, so these numbers describe the CPU cost of copying,
+  not the speed of the disk.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+public class CopyBenchmark {
+    @Param({ "1", "16", "128" })
+    public int megabytes;
+
+    @Param({ "16", "24", "32" })
+    public int bits;
+
+    private Path   directory;
+    private String from;
+    private String to;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        directory = Fixtures.directory();
+        from      = directory.resolve("from.wav").toString();
+        to        = directory.resolve("to.wav").toString();
+        Fixtures.write(Path.of(from), bits, megabytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.delete(directory);
+    }
+
+
+
+
+    @Benchmark
+    public void copy() throws Throwable {
+        WAVLibrary.copy(from, to);
+    }
+
+    @Benchmark
+    public void streamCopy() throws Exception {
+        try (InputStream  in  = new FileInputStream(from);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(to))) {
+            byte[] bytes = in.readAllBytes();
+            for (byte b : bytes) {
+                out.write(b);
+            }
+        }
+    }
+}
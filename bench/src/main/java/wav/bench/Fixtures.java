@@ -0,0 +1,97 @@
+package wav.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+
+/*
+  This class makes the WAV files that the benchmarks read,
+  so the benchmarks need no audio files and no network.
+
+  The audio is a deterministic sine sweep rather than silence,
+  so file systems which compress or deduplicate zeros do not
+  make the numbers look better than they are.
+*/
+final class Fixtures {
+    static final int SAMPLE_RATE = 44100;
+
+
+    private Fixtures() {
+    }
+
+
+
+
+    /**
+     * @return a new, empty directory for the files of one benchmark trial
+    */
+    static Path directory() throws IOException {
+        return Files.createTempDirectory("wav-bench");
+    }
+
+    /**
+     * This method deletes a directory made by 'directory' and everything in it.
+    */
+    static void delete(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * This method writes a stereo PCM WAV file of about 'megabytes' MB.
+     *
+     * @param path the path to the WAV file that is written
+     * @param bit_depth_of_sample 16, 24, or 32
+     * @param megabytes the size of the audio data in units of 2^20 bytes
+    */
+    static void write(Path path, int bit_depth_of_sample, int megabytes) throws Throwable {
+        int  channels = 2;
+        long frames   = ((long) megabytes << 20) / (channels * (bit_depth_of_sample / 8));
+
+        Object header = WAVLibrary.newHeader(1, channels, SAMPLE_RATE, bit_depth_of_sample, 0);
+        Object writer = WAVLibrary.newWriter(path.toString(), header);
+        try {
+            int[] block = new int[1 << 14];
+            for (long first = 0; first < frames; ) {
+                int count = (int) Math.min(block.length / channels, frames - first);
+                for (int i = 0; i < count; ++i) {
+                    int v = (int) (Integer.MAX_VALUE * 0.75 * Math.sin(1e-4 * (first + i) * (first + i) / SAMPLE_RATE));
+                    block[2 * i]     = v;
+                    block[2 * i + 1] = -v;
+                }
+                WAVLibrary.writeFrames(writer, block, 0, count);
+                first += count;
+            }
+        }
+        finally {
+            WAVLibrary.close(writer);
+        }
+    }
+
+    /**
+     * @return 'seconds' of a 16-bit sine wave at 'frequency' Hz
+    */
+    static short[] sine(int seconds, double frequency) {
+        short[] samples = new short[seconds * SAMPLE_RATE];
+        for (int i = 0; i < samples.length; ++i) {
+            samples[i] = (short) (24576 * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,94 @@
+package wav.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/*
+  These benchmarks measure reading and writing a single header:
+  parsing it from a file, from an open channel, and from bytes
+  already in memory, and encoding it with getBytes and writeTo.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+public class HeaderBenchmark {
+    private Path        directory;
+    private String      name;
+    private FileChannel channel;
+
+    private Object     header;
+    private ByteBuffer bytes;
+    private ByteBuffer reusable;
+    private Object     view;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        directory = Fixtures.directory();
+        name      = directory.resolve("header.wav").toString();
+        Fixtures.write(Path.of(name), 16, 1);
+
+        channel  = FileChannel.open(Path.of(name), StandardOpenOption.READ);
+        header   = WAVLibrary.readWAVHeader(channel);
+        bytes    = ByteBuffer.wrap(WAVLibrary.getBytes(header));
+        reusable = ByteBuffer.allocate(bytes.capacity());
+        view     = WAVLibrary.newHeaderView();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.close();
+        Fixtures.delete(directory);
+    }
+
+
+
+
+    @Benchmark
+    public Object readWAVHeaderFromFile() throws Throwable {
+        return WAVLibrary.readWAVHeaderFromFile(name);
+    }
+
+    @Benchmark
+    public Object readWAVHeaderFromOpenChannel() throws Throwable {
+        return WAVLibrary.readWAVHeader(channel);
+    }
+
+    @Benchmark
+    public long wrapHeaderView() throws Throwable {
+        return WAVLibrary.wrapAndGetDataSize(view, bytes);
+    }
+
+    @Benchmark
+    public byte[] getBytes() throws Throwable {
+        return WAVLibrary.getBytes(header);
+    }
+
+    @Benchmark
+    public ByteBuffer writeTo() throws Throwable {
+        reusable.clear();
+        WAVLibrary.writeTo(header, reusable);
+        return reusable;
+    }
+}
@@ -0,0 +1,159 @@
+package wav.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/*
+  This class lets the benchmarks call the WAV library.
+
+  The library is in the default package, which cannot be named
+  from a package, so its classes are found by name and its methods
+  are looked up once as MethodHandles. They are stored in static
+  final fields and called with invokeExact, so the JIT inlines them
+  and the benchmarks measure the library rather than the lookup.
+
+  Library objects, e.g. WAVHeaders, are passed around as Objects.
+*/
+final class WAVLibrary {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    private static final Class<?> WAV_HEADER  = find("WAVHeader");
+    private static final Class<?> WAV_WRITER  = find("WAVWriter");
+    private static final Class<?> HEADER_VIEW = find("WAVHeaderView");
+
+    private static final MethodHandle NEW_HEADER       = constructor(WAV_HEADER, int.class, int.class, int.class, int.class, long.class);
+    private static final MethodHandle READ_HEADER      = method(true, WAV_HEADER, "readWAVHeader", WAV_HEADER, FileChannel.class);
+    private static final MethodHandle READ_HEADER_FILE = method(true, WAV_HEADER, "readWAVHeaderFromFile", WAV_HEADER, String.class);
+    private static final MethodHandle GET_BYTES        = method(false, WAV_HEADER, "getBytes", byte[].class);
+    private static final MethodHandle WRITE_TO         = method(false, WAV_HEADER, "writeTo", void.class, ByteBuffer.class);
+
+    private static final MethodHandle NEW_VIEW  = constructor(HEADER_VIEW);
+    private static final MethodHandle WRAP_VIEW = method(false, HEADER_VIEW, "wrap", HEADER_VIEW, ByteBuffer.class, int.class);
+    private static final MethodHandle VIEW_SIZE = method(false, HEADER_VIEW, "getDataSize", long.class);
+
+    private static final MethodHandle NEW_WRITER   = constructor(WAV_WRITER, String.class, WAV_HEADER);
+    private static final MethodHandle WRITE_FRAMES = method(false, WAV_WRITER, "writeFrames", void.class, int[].class, int.class, int.class);
+    private static final MethodHandle CLOSE_WRITER = method(false, WAV_WRITER, "close", void.class);
+
+    private static final MethodHandle WRITE_MONO   = method(true, find("WAV"), "writeCompactDiskQualityWAVFile", void.class, String.class, short[].class);
+    private static final MethodHandle WRITE_STEREO = method(true, find("WAV"), "writeCompactDiskQualityWAVFile", void.class, String.class, short[].class, short[].class);
+    private static final MethodHandle COPY         = method(true, find("WAV"), "copy", void.class, String.class, String.class);
+
+
+    private WAVLibrary() {
+    }
+
+
+
+
+    static Object newHeader(int audio_fmt, int channels, int sample_rate_per_chan, int bit_depth_of_sample, long frames) throws Throwable {
+        return (Object) NEW_HEADER.invokeExact(audio_fmt, channels, sample_rate_per_chan, bit_depth_of_sample, frames);
+    }
+
+    static Object readWAVHeader(FileChannel channel) throws Throwable {
+        return (Object) READ_HEADER.invokeExact(channel);
+    }
+
+    static Object readWAVHeaderFromFile(String name) throws Throwable {
+        return (Object) READ_HEADER_FILE.invokeExact(name);
+    }
+
+    static byte[] getBytes(Object header) throws Throwable {
+        return (byte[]) GET_BYTES.invokeExact(header);
+    }
+
+    static void writeTo(Object header, ByteBuffer bytes) throws Throwable {
+        WRITE_TO.invokeExact(header, bytes);
+    }
+
+    static Object newHeaderView() throws Throwable {
+        return (Object) NEW_VIEW.invokeExact();
+    }
+
+    static long wrapAndGetDataSize(Object view, ByteBuffer bytes) throws Throwable {
+        Object wrapped = (Object) WRAP_VIEW.invokeExact(view, bytes, 0);
+        return (long) VIEW_SIZE.invokeExact(wrapped);
+    }
+
+    static Object newWriter(String name, Object header) throws Throwable {
+        return (Object) NEW_WRITER.invokeExact(name, header);
+    }
+
+    static void writeFrames(Object writer, int[] frames, int offset, int count) throws Throwable {
+        WRITE_FRAMES.invokeExact(writer, frames, offset, count);
+    }
+
+    static void close(Object writer) throws Throwable {
+        CLOSE_WRITER.invokeExact(writer);
+    }
+
+    static void writeCompactDiskQualityWAVFile(String name, short[] mono) throws Throwable {
+        WRITE_MONO.invokeExact(name, mono);
+    }
+
+    static void writeCompactDiskQualityWAVFile(String name, short[] left, short[] right) throws Throwable {
+        WRITE_STEREO.invokeExact(name, left, right);
+    }
+
+    static void copy(String from, String to) throws Throwable {
+        COPY.invokeExact(from, to);
+    }
+
+
+
+
+    private static Class<?> find(String name) {
+        try {
+            return Class.forName(name);
+        }
+        catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * @return a handle whose library types have been replaced by Object
+    */
+    private static MethodHandle method(boolean is_static, Class<?> owner, String name, Class<?> result, Class<?>... parameters) {
+        try {
+            MethodType   type   = MethodType.methodType(result, parameters);
+            MethodHandle handle = is_static ? LOOKUP.findStatic(owner, name, type)
+                                            : LOOKUP.findVirtual(owner, name, type);
+            return erase(handle);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> owner, Class<?>... parameters) {
+        try {
+            return erase(LOOKUP.findConstructor(owner, MethodType.methodType(void.class, parameters)));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle erase(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); ++i) {
+            if (isLibraryClass(type.parameterType(i))) {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (isLibraryClass(type.returnType())) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    private static boolean isLibraryClass(Class<?> c) {
+        return !c.isPrimitive() && !c.isArray() && c.getPackageName().isEmpty();
+    }
+}
@@ -0,0 +1,67 @@
+package wav.bench;
+
+import java.nio.file.Path;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/*
+  These benchmarks measure writing whole CD quality WAV files from
+  arrays of shorts, the way Test does, for several lengths of audio.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+public class WriteBenchmark {
+    @Param({ "1", "8", "60" })
+    public int seconds;
+
+    private Path    directory;
+    private String  name;
+    private short[] left;
+    private short[] right;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Fixtures.directory();
+        name      = directory.resolve("out.wav").toString();
+        left      = Fixtures.sine(seconds, 220);
+        right     = Fixtures.sine(seconds, 440);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.delete(directory);
+    }
+
+
+
+
+    @Benchmark
+    public void writeMono() throws Throwable {
+        WAVLibrary.writeCompactDiskQualityWAVFile(name, left);
+    }
+
+    @Benchmark
+    public void writeStereo() throws Throwable {
+        WAVLibrary.writeCompactDiskQualityWAVFile(name, left, right);
+    }
+}